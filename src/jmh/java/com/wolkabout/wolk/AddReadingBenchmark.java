@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import com.wolkabout.wolk.persistence.ColumnarPersistence;
+import com.wolkabout.wolk.persistence.InMemoryPersistence;
+import com.wolkabout.wolk.persistence.OffHeapPersistence;
+import com.wolkabout.wolk.persistence.Persistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding a numeric reading, through the reference and through a sensor handle.
+ * <p>
+ * Run with the gc profiler and check {@code gc.alloc.rate.norm}: stores that keep numeric readings
+ * as primitives add them without allocating. Readings are cleared after every publish batch,
+ * as publishing would, so the stores stay at a steady size; publishing itself is left out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddReadingBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"inMemory", "columnar", "offHeap"})
+    public String store;
+
+    private Wolk wolk;
+    private Persistence persistence;
+    private SensorHandle sensor;
+    private double value;
+    private int count;
+
+    @Setup
+    public void setUp() {
+        switch (store) {
+            case "inMemory":
+                persistence = new InMemoryPersistence();
+                break;
+            case "columnar":
+                persistence = new ColumnarPersistence();
+                break;
+            default:
+                persistence = new OffHeapPersistence();
+        }
+
+        wolk = Wolk.builder()
+                .mqtt()
+                .host("tcp://localhost:1883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .build();
+        sensor = wolk.sensor("T");
+    }
+
+    @Benchmark
+    public void addReading() {
+        wolk.addReading("T", next());
+    }
+
+    @Benchmark
+    public void record() {
+        sensor.record(next());
+    }
+
+    private double next() {
+        if (++count == BATCH_SIZE) {
+            count = 0;
+            persistence.removeAll();
+        }
+
+        value = value < 40 ? value + 0.1 : 20;
+        return value;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding and publishing readings while a large backlog is buffered, as during an outage.
+ * <p>
+ * Run with the gc profiler ({@code profilers = ['gc']} in the jmh block of the build) and compare
+ * {@code gc.count} and {@code gc.time}: an on-heap backlog is traced by every collection, an off-heap one is not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx512m", "-XX:MaxDirectMemorySize=512m"})
+public class BacklogChurnBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"inMemory", "offHeap"})
+    public String store;
+
+    @Param({"1000000"})
+    public int backlog;
+
+    private final String[] references = new String[16];
+
+    private Persistence persistence;
+    private final List<Reading> batch = new ArrayList<>(BATCH_SIZE);
+    private long utc;
+
+    @Setup
+    public void fill() {
+        for (int i = 0; i < references.length; i++) {
+            references[i] = "T" + i;
+        }
+
+        persistence = store.equals("offHeap") ? new OffHeapPersistence() : new InMemoryPersistence();
+        for (int i = 0; i < backlog; i++) {
+            persistence.addReading(references[i % references.length], 20.0 + i % 100 / 10.0, utc++);
+        }
+    }
+
+    @Benchmark
+    public int addAndPublishBatch() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            persistence.addReading(references[i % references.length], 21.5, utc++);
+        }
+
+        batch.clear();
+        return persistence.drainTo(batch, BATCH_SIZE);
+    }
+}
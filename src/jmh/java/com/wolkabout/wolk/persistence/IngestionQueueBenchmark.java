@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Throughput of adding readings from 1, 4, 16 and 64 producer threads while a single
+ * consumer drains the store in batches, as the publish task does.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestionQueueBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"mpsc", "linkedBlockingQueue", "linkedBlockingDeque"})
+    public String store;
+
+    private final Reading reading = new Reading("T", "21.5", 0);
+
+    private Consumer<Reading> producer;
+    private Drainer drainer;
+    private Thread consumer;
+    private volatile boolean running;
+
+    @Setup(Level.Iteration)
+    public void start() {
+        switch (store) {
+            case "mpsc":
+                final MpscQueue<Reading> queue = new MpscQueue<>();
+                producer = queue::offer;
+                drainer = queue::drainTo;
+                break;
+            case "linkedBlockingQueue":
+                useBlockingQueue(new LinkedBlockingQueue<>());
+                break;
+            default:
+                useBlockingQueue(new LinkedBlockingDeque<>());
+        }
+
+        running = true;
+        consumer = new Thread(() -> {
+            final List<Reading> batch = new ArrayList<>(BATCH_SIZE);
+            while (running) {
+                batch.clear();
+                if (drainer.drainTo(batch, BATCH_SIZE) == 0) {
+                    Thread.yield();
+                }
+            }
+        }, "benchmark-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws InterruptedException {
+        running = false;
+        consumer.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers1() {
+        producer.accept(reading);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers4() {
+        producer.accept(reading);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void producers16() {
+        producer.accept(reading);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void producers64() {
+        producer.accept(reading);
+    }
+
+    private void useBlockingQueue(BlockingQueue<Reading> queue) {
+        producer = queue::add;
+        drainer = queue::drainTo;
+    }
+
+    private interface Drainer {
+        int drainTo(Collection<Reading> target, int maxItems);
+    }
+}
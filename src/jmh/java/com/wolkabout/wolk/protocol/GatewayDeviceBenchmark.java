@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import com.wolkabout.wolk.Gateway;
+import com.wolkabout.wolk.Wolk;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of bringing a device online and taking it offline again, connected to a {@link LocalBroker}.
+ * <p>
+ * {@code gatewayDevice} builds a device sharing the connection and scheduler of a gateway.
+ * {@code standalone} builds a device with its own MQTT client and connection.
+ * Run with {@code -prof gc} to compare the memory allocated per device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GatewayDeviceBenchmark {
+
+    private final AtomicInteger devices = new AtomicInteger();
+
+    private LocalBroker broker;
+    private Gateway gateway;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new LocalBroker(0, TimeUnit.MILLISECONDS);
+        gateway = Wolk.builder()
+                .mqtt()
+                .host(broker.getServerUri())
+                .deviceKey("gateway")
+                .password("password")
+                .persistence(new MemoryPersistence())
+                .build()
+                .buildGateway();
+        gateway.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        gateway.disconnect();
+        broker.close();
+    }
+
+    @Benchmark
+    public Wolk gatewayDevice() {
+        final Wolk wolk = gateway.device("device" + devices.incrementAndGet()).build();
+        wolk.connect();
+        wolk.disconnect();
+        return wolk;
+    }
+
+    @Benchmark
+    public Wolk standalone() {
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host(broker.getServerUri())
+                .deviceKey("device" + devices.incrementAndGet())
+                .password("password")
+                .persistence(new MemoryPersistence())
+                .build()
+                .build();
+        wolk.connect();
+        wolk.disconnect();
+        return wolk;
+    }
+}
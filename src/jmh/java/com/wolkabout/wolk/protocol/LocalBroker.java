@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal MQTT 3.1.1 broker stand-in for benchmarks, listening on the loopback interface.
+ * <p>
+ * It acknowledges connects, subscriptions, pings and QoS 1 and 2 publishes, and discards the published messages.
+ * Acknowledgements of publishes are delayed to stand in for the round trip to a remote broker.
+ */
+class LocalBroker implements Closeable {
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private static final ThreadFactory THREADS = runnable -> {
+        final Thread thread = new Thread(runnable, "local-broker");
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private final ServerSocket serverSocket;
+    private final long ackDelayMicros;
+    private final ExecutorService connections = Executors.newCachedThreadPool(THREADS);
+    private final ScheduledExecutorService acks = Executors.newSingleThreadScheduledExecutor(THREADS);
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicLong received = new AtomicLong();
+
+    LocalBroker(long ackDelay, TimeUnit unit) throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ackDelayMicros = unit.toMicros(ackDelay);
+        connections.execute(this::accept);
+    }
+
+    String getServerUri() {
+        return "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of publishes received.
+     */
+    long getReceivedCount() {
+        return received.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        connections.shutdownNow();
+        acks.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream out = socket.getOutputStream();
+            while (true) {
+                final int header = in.read();
+                if (header < 0) {
+                    return;
+                }
+
+                final byte[] body = new byte[readRemainingLength(in)];
+                in.readFully(body);
+                switch (header >> 4) {
+                    case CONNECT:
+                        write(out, new byte[]{CONNACK << 4, 2, 0, 0});
+                        break;
+                    case PUBLISH:
+                        onPublish(out, header, body);
+                        break;
+                    case PUBREL:
+                        write(out, new byte[]{PUBCOMP << 4, 2, body[0], body[1]});
+                        break;
+                    case SUBSCRIBE:
+                        onSubscribe(out, body);
+                        break;
+                    case PINGREQ:
+                        write(out, new byte[]{(byte) (PINGRESP << 4), 0});
+                        break;
+                    case DISCONNECT:
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException ignored) {
+            // The connection was closed.
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void onPublish(OutputStream out, int header, byte[] body) {
+        received.incrementAndGet();
+        final int qos = (header >> 1) & 3;
+        if (qos == 0) {
+            return;
+        }
+
+        final int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+        final byte[] ack = {(byte) ((qos == 1 ? PUBACK : PUBREC) << 4), 2, body[2 + topicLength], body[3 + topicLength]};
+        if (ackDelayMicros == 0) {
+            write(out, ack);
+        } else {
+            acks.schedule(() -> write(out, ack), ackDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void onSubscribe(OutputStream out, byte[] body) {
+        int filters = 0;
+        for (int i = 2; i < body.length; i += 2 + (((body[i] & 0xFF) << 8) | (body[i + 1] & 0xFF)) + 1) {
+            filters++;
+        }
+
+        final byte[] ack = new byte[4 + filters];
+        ack[0] = (byte) (SUBACK << 4);
+        ack[1] = (byte) (2 + filters);
+        ack[2] = body[0];
+        ack[3] = body[1];
+        write(out, ack);
+    }
+
+    private static int readRemainingLength(InputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = in.read();
+            if (digit < 0) {
+                throw new IOException("Connection closed.");
+            }
+
+            length |= (digit & 0x7F) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+
+        return length;
+    }
+
+    private static void write(OutputStream out, byte[] packet) {
+        synchronized (out) {
+            try {
+                out.write(packet);
+                out.flush();
+            } catch (IOException ignored) {
+                // The connection was closed.
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import com.wolkabout.wolk.model.Reading;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second delivered to a {@link LocalBroker} that acknowledges publishes after a delay.
+ * <p>
+ * QoS 0 messages complete once written. QoS 1 messages complete when acknowledged: the blocking client
+ * waits for each acknowledgement before the next publish, while the pipelined client keeps up to
+ * {@link #MAX_INFLIGHT} messages awaiting acknowledgement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QosThroughputBenchmark {
+
+    private static final int MESSAGES = 100;
+    private static final int MAX_INFLIGHT = 64;
+
+    @Param({"0", "1"})
+    public int qos;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    @Param({"1"})
+    public int ackDelayMillis;
+
+    private LocalBroker broker;
+    private MqttClient client;
+    private WolkaboutProtocol protocol;
+    private List<Reading> readings;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new LocalBroker(ackDelayMillis, TimeUnit.MILLISECONDS);
+        client = pipelined
+                ? new PipelinedMqttClient(broker.getServerUri(), "benchmark", new MemoryPersistence(), MAX_INFLIGHT)
+                : new WindowedMqttClient(broker.getServerUri(), "benchmark", new MemoryPersistence(),
+                new InflightWindow(MAX_INFLIGHT));
+
+        final MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(MAX_INFLIGHT);
+        client.connect(options);
+
+        protocol = new WolkaboutProtocol(client, null, null);
+        protocol.setQos(MessageClass.READINGS, qos);
+        protocol.setMaxReadingsPerMessage(1);
+
+        readings = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            readings.add(new Reading("T", String.valueOf(20 + i / 10.0), 1_500_000_000_000L + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.disconnect();
+        client.close();
+        broker.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void publish() {
+        protocol.publishReadingsAsync(readings).join();
+    }
+}
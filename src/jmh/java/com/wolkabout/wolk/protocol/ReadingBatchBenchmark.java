@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.model.ReadingBatch;
+import com.wolkabout.wolk.util.GroupedPayloadWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording and serializing many references sampled at the same time.
+ * <p>
+ * {@code readings} creates a reading per reference and writes them grouped by timestamp.
+ * {@code batch} puts the values into a {@link ReadingBatch} and writes it as a single group.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadingBatchBenchmark {
+
+    private static final long UTC = 1_500_000_000_000L;
+
+    @Param({"200"})
+    public int references;
+
+    private final GroupedPayloadWriter writer = new GroupedPayloadWriter(new JsonFactory());
+
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        names = new String[references];
+        for (int i = 0; i < references; i++) {
+            names[i] = "S" + i;
+        }
+    }
+
+    @Benchmark
+    public byte[] readings() {
+        final List<Reading> readings = new ArrayList<>(references);
+        for (int i = 0; i < references; i++) {
+            readings.add(new Reading(names[i], 20 + i / 10.0, UTC));
+        }
+
+        return writer.writeReadings(readings);
+    }
+
+    @Benchmark
+    public byte[] batch() {
+        final ReadingBatch batch = new ReadingBatch(UTC, references, null);
+        for (int i = 0; i < references; i++) {
+            batch.put(names[i], 20 + i / 10.0);
+        }
+
+        return writer.writeReadingBatch(batch);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.util.GroupedPayloadWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a batch of readings into a sensor reading payload.
+ * <p>
+ * {@code tree} builds a map per timestamp and serializes it to a String, as publishing used to.
+ * {@code streaming} writes the grouped payload directly. Run with the gc profiler and compare
+ * {@code gc.alloc.rate.norm} to see the allocation per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadingsPayloadBenchmark {
+
+    private static final String[] REFERENCES = {"T", "H", "P", "ACL"};
+
+    @Param({"10", "1000", "100000"})
+    public int readings;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final GroupedPayloadWriter writer = new GroupedPayloadWriter(new JsonFactory());
+
+    private List<Reading> batch;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<>(readings);
+        for (int i = 0; i < readings; i++) {
+            final String reference = REFERENCES[i % REFERENCES.length];
+            batch.add(new Reading(reference, Double.toString(20 + i % 100 / 10.0), 1_500_000_000_000L + i / REFERENCES.length));
+        }
+    }
+
+    @Benchmark
+    public byte[] tree() throws Exception {
+        final Map<Long, Map<String, Object>> payloadByTime = new HashMap<>();
+        for (Reading reading : batch) {
+            final Map<String, Object> readingMap = payloadByTime.computeIfAbsent(reading.getUtc(), utc -> {
+                final Map<String, Object> map = new HashMap<>();
+                map.put("utc", utc);
+                return map;
+            });
+            readingMap.putIfAbsent(reading.getReference(), String.join(",", reading.getValues()));
+        }
+
+        return mapper.writeValueAsString(new ArrayList<>(payloadByTime.values())).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] streaming() {
+        return writer.writeReadings(batch);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting typical sensor values, with the JDK conversion and with {@link NumericFormat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NumericFormatBenchmark {
+
+    private final double[] values = new double[1024];
+    private final StringBuilder builder = new StringBuilder();
+    private int index;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round(random.nextDouble() * 100_000) / 100.0;
+        }
+    }
+
+    @Benchmark
+    public StringBuilder jdk() {
+        builder.setLength(0);
+        return builder.append(values[index++ & (values.length - 1)]);
+    }
+
+    @Benchmark
+    public StringBuilder numericFormat() {
+        builder.setLength(0);
+        NumericFormat.append(builder, values[index++ & (values.length - 1)]);
+        return builder;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.wolkabout.wolk.model.Reading;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of compressing a batch of readings, against the cost of serializing it.
+ * Compare with the sizes of the payloads before and after compression to weigh it against the bytes saved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCompressionBenchmark {
+
+    private static final String[] REFERENCES = {"T", "H", "P", "ACL"};
+
+    @Param({"10", "100", "500"})
+    public int readings;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private final GroupedPayloadWriter writer = new GroupedPayloadWriter(new JsonFactory());
+
+    private List<Reading> batch;
+    private DeflateCompressor compressor;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<>(readings);
+        for (int i = 0; i < readings; i++) {
+            final String reference = REFERENCES[i % REFERENCES.length];
+            final long utc = 1_600_000_000_000L + i / REFERENCES.length * 1000;
+            batch.add(reference.equals("ACL")
+                    ? new Reading(reference, Arrays.asList("0.41", "-0.2", "9.81"), utc)
+                    : new Reading(reference, Double.toString(20 + i % 37 / 10.0), utc));
+        }
+
+        compressor = new DeflateCompressor(0, level);
+        payload = writer.writeReadings(batch);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return writer.writeReadings(batch);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compressor.compress(payload);
+    }
+}
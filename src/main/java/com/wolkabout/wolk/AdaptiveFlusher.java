@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a flush when the readings added since the last flush reach a limit of the {@link FlushPolicy}.
+ * <p>
+ * The flusher is driven by added data: the count and size limits are checked as readings are added,
+ * and the age timer is started only when the first reading after a flush is added. While nothing is added,
+ * nothing is scheduled. At most one flush is scheduled or running at a time.
+ */
+final class AdaptiveFlusher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveFlusher.class);
+
+    // Quotes, colon and comma around a value in the payload.
+    private static final int FIELD_OVERHEAD = 6;
+    // Assumed length of a formatted numeric value.
+    private static final int NUMERIC_VALUE_SIZE = 8;
+
+    private final FlushPolicy policy;
+    private final ScheduledExecutorService executor;
+    private final Runnable flush;
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Set by every request, so a request made while a flush is running flushes again after it.
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile ScheduledFuture<?> ageTimer;
+    private volatile boolean running;
+
+    AdaptiveFlusher(FlushPolicy policy, ScheduledExecutorService executor, Runnable flush) {
+        this.policy = policy;
+        this.executor = executor;
+        this.flush = flush;
+    }
+
+    /**
+     * Starts with a flush, for data that was stored before.
+     */
+    void start() {
+        running = true;
+        requestFlush();
+    }
+
+    void stop() {
+        running = false;
+        final ScheduledFuture<?> timer = ageTimer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void onBuffered(int readings, long size) {
+        final int total = count.addAndGet(readings);
+        final long totalBytes = bytes.addAndGet(size);
+        if (total >= policy.getMaxReadings() || totalBytes >= policy.getMaxBytes()) {
+            requestFlush();
+        } else if (total == readings) {
+            startAgeTimer();
+        }
+    }
+
+    /**
+     * Flushes right away, for high priority data.
+     */
+    void onPriority() {
+        requestFlush();
+    }
+
+    int getBufferedCount() {
+        return count.get();
+    }
+
+    static long estimateSize(String reference) {
+        return reference.length() + NUMERIC_VALUE_SIZE + FIELD_OVERHEAD;
+    }
+
+    static long estimateSize(Reading reading) {
+        final List<String> values = reading.getValues();
+        if (values instanceof NumericValueList) {
+            return estimateSize(reading.getReference());
+        }
+
+        long size = reading.getReference().length() + FIELD_OVERHEAD;
+        for (String value : values) {
+            size += value.length() + 1;
+        }
+
+        return size;
+    }
+
+    private void startAgeTimer() {
+        if (!running) {
+            return;
+        }
+
+        try {
+            ageTimer = executor.schedule(this::requestFlush, policy.getMaxAgeNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Executor is shut down, stored data is flushed on the next publish.", e);
+        }
+    }
+
+    private void requestFlush() {
+        flushRequested.set(true);
+        if (running && flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // The executor was shut down before the flusher was stopped, e.g. by a gateway.
+                flushScheduled.set(false);
+                LOG.debug("Executor is shut down, stored data is flushed on the next publish.", e);
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        // Only the timer armed before the reset is cancelled. A reading buffered after the reset arms a new one,
+        // since it takes the count from zero, so it is not left waiting without a timer.
+        final ScheduledFuture<?> timer = ageTimer;
+        count.set(0);
+        bytes.set(0);
+        if (timer != null) {
+            timer.cancel(false);
+        }
+
+        try {
+            flush.run();
+        } catch (Exception e) {
+            LOG.info("Could not flush stored data.", e);
+        } finally {
+            flushScheduled.set(false);
+        }
+
+        if (flushRequested.get()) {
+            requestFlush();
+        }
+    }
+}
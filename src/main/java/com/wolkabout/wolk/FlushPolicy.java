@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when automatic publishing flushes the persistence store, see {@link Wolk#startPublishing(FlushPolicy)}.
+ * <p>
+ * A flush happens as soon as any of the limits is reached: the number of readings added since the last flush,
+ * their estimated size in bytes, or the age of the oldest of them. Alarms are flushed as soon as they are added.
+ * Limits that are not set are not checked, except the age, which defaults to {@link #DEFAULT_MAX_AGE_SECONDS}.
+ */
+public final class FlushPolicy {
+
+    public static final long DEFAULT_MAX_AGE_SECONDS = 60;
+
+    private final int maxReadings;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+
+    private FlushPolicy(int maxReadings, long maxBytes, long maxAgeNanos) {
+        this.maxReadings = maxReadings;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getMaxReadings() {
+        return maxReadings;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeNanos() {
+        return maxAgeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{" +
+                "maxReadings=" + maxReadings +
+                ", maxBytes=" + maxBytes +
+                ", maxAgeNanos=" + maxAgeNanos +
+                '}';
+    }
+
+    public static class Builder {
+
+        private int maxReadings = Integer.MAX_VALUE;
+        private long maxBytes = Long.MAX_VALUE;
+        private long maxAgeNanos = TimeUnit.SECONDS.toNanos(DEFAULT_MAX_AGE_SECONDS);
+
+        private Builder() {
+        }
+
+        /**
+         * Flushes once this many readings were added since the last flush.
+         */
+        public Builder maxReadings(int maxReadings) {
+            if (maxReadings <= 0) {
+                throw new IllegalArgumentException("Maximum number of readings must be positive.");
+            }
+
+            this.maxReadings = maxReadings;
+            return this;
+        }
+
+        /**
+         * Flushes once the readings added since the last flush take about this many bytes in a payload.
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("Maximum number of bytes must be positive.");
+            }
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Flushes once the oldest reading added since the last flush is this old.
+         */
+        public Builder maxAge(long maxAge, TimeUnit unit) {
+            if (maxAge <= 0) {
+                throw new IllegalArgumentException("Maximum age must be positive.");
+            }
+
+            this.maxAgeNanos = unit.toNanos(maxAge);
+            return this;
+        }
+
+        public FlushPolicy build() {
+            return new FlushPolicy(maxReadings, maxBytes, maxAgeNanos);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import com.wolkabout.wolk.protocol.InflightWindow;
+import com.wolkabout.wolk.protocol.TopicDispatcher;
+import com.wolkabout.wolk.protocol.WindowedMqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * MQTT connection shared by many devices, built with {@link Wolk.Builder#buildGateway()}.
+ * <p>
+ * Devices built from {@link #device(String)} publish and subscribe to their own topics through the connection
+ * of the gateway, and run their scheduled tasks on the executor of the gateway, so a device adds no sockets
+ * or threads of its own. A {@link TopicDispatcher} routes arriving messages to the devices.
+ */
+public class Gateway {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Gateway.class);
+
+    private final MqttClient client;
+    private final MqttConnectOptions options;
+    private final TopicDispatcher dispatcher;
+    private final Scheduler scheduler;
+    private final long schedulingJitterMillis;
+    // Connected devices, by device key.
+    private final Map<String, Wolk> devices = new ConcurrentHashMap<>();
+
+    Gateway(MqttClient client, MqttConnectOptions options, Scheduler scheduler, long schedulingJitterMillis) {
+        this.client = client;
+        this.options = options;
+        this.dispatcher = new TopicDispatcher(client);
+        this.scheduler = scheduler;
+        this.schedulingJitterMillis = schedulingJitterMillis;
+
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                if (reconnect) {
+                    resubscribe();
+                }
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+    }
+
+    /**
+     * Starts building a device that shares the connection of the gateway.
+     * The MQTT settings of the returned builder are not used.
+     *
+     * @param deviceKey Key of the device, used as a level of its topics, so it must not contain
+     *                  level separators or wildcards.
+     */
+    public Wolk.Builder device(String deviceKey) {
+        if (deviceKey == null || deviceKey.isEmpty() || deviceKey.contains("/") || deviceKey.contains("+")
+                || deviceKey.contains("#")) {
+            throw new IllegalArgumentException("Invalid device key: " + deviceKey);
+        }
+
+        return Wolk.builder(this, deviceKey);
+    }
+
+    public void connect() {
+        try {
+            client.connect(options);
+        } catch (Exception e) {
+            LOG.info("Could not connect to MQTT broker.", e);
+            return;
+        }
+
+        resubscribe();
+    }
+
+    /**
+     * Disconnects from the MQTT broker. The connected devices are disconnected first, publishing their last wills,
+     * and their scheduled tasks stop. The threads of the gateway are shut down unless the executor is shared.
+     * Connect the devices again after connecting the gateway.
+     */
+    public void disconnect() {
+        for (Wolk device : devices.values()) {
+            device.disconnect();
+        }
+
+        try {
+            if (client.isConnected()) {
+                client.publish(options.getWillDestination(), options.getWillMessage().getPayload(), 2, false);
+                client.disconnect();
+            }
+        } catch (MqttException e) {
+            LOG.trace("Could not disconnect from MQTT broker.", e);
+        }
+
+        scheduler.shutdown();
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /**
+     * @return The window of messages in flight of the shared connection, or null if the client does not have one.
+     */
+    public InflightWindow getInflightWindow() {
+        return client instanceof WindowedMqttClient ? ((WindowedMqttClient) client).getInflightWindow() : null;
+    }
+
+    MqttClient getClient() {
+        return client;
+    }
+
+    TopicDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return scheduler.getExecutor();
+    }
+
+    long getSchedulingJitterMillis() {
+        return schedulingJitterMillis;
+    }
+
+    /**
+     * Registers a connected device, to disconnect it with the gateway.
+     */
+    void attach(String deviceKey, Wolk device) {
+        devices.put(deviceKey, device);
+    }
+
+    /**
+     * Stops routing messages to the device, and publishes its last will.
+     */
+    void detach(String deviceKey) {
+        devices.remove(deviceKey);
+        dispatcher.unsubscribe(deviceKey);
+
+        try {
+            if (client.isConnected()) {
+                client.publish(MqttBuilder.LAST_WILL_TOPIC + deviceKey, MqttBuilder.LAST_WILL_MESSAGE.getBytes(),
+                        2, false);
+            }
+        } catch (MqttException e) {
+            LOG.trace("Could not publish last will of device: " + deviceKey, e);
+        }
+    }
+
+    private void resubscribe() {
+        try {
+            dispatcher.resubscribe();
+        } catch (MqttException e) {
+            LOG.debug("Unable to subscribe to all required topics.", e);
+        }
+    }
+}
@@ -16,6 +16,10 @@
  */
 package com.wolkabout.wolk;
 
+import com.wolkabout.wolk.protocol.Backpressure;
+import com.wolkabout.wolk.protocol.InflightWindow;
+import com.wolkabout.wolk.protocol.PipelinedMqttClient;
+import com.wolkabout.wolk.protocol.WindowedMqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
@@ -40,6 +44,9 @@ public class MqttBuilder {
 
     private static final String FACTORY_TYPE = "X.509";
 
+    static final String LAST_WILL_TOPIC = "lastwill/";
+    static final String LAST_WILL_MESSAGE = "Gone offline";
+
     private final WeakReference<Wolk.Builder> wolkBuilder;
 
     /**
@@ -95,6 +102,17 @@ public class MqttBuilder {
      */
     private int maxInflight = 10;
 
+    /**
+     * Publish without waiting for delivery, keeping up to {@link #maxInflight} messages in flight.
+     */
+    private boolean pipelined = false;
+
+    /**
+     * What publishers do once {@link #maxInflight} messages are in flight. If not set, publishes are not
+     * limited by an {@link InflightWindow} unless the client is pipelined, which waits for capacity.
+     */
+    private Backpressure backpressure = null;
+
 
     /**
      * Persistence for inflight MQTT messages. If not set, defaults to {@link MqttDefaultFilePersistence}.
@@ -146,10 +164,39 @@ public class MqttBuilder {
     }
 
     public MqttBuilder maxInflight(int maxInflight) {
+        if (maxInflight <= 0) {
+            throw new IllegalArgumentException("Maximum number of inflight messages must be positive.");
+        }
+
         this.maxInflight = maxInflight;
         return this;
     }
 
+    /**
+     * Publishes through the asynchronous MQTT client, so publishing does not wait for the broker.
+     * Up to {@code maxInflight} messages are awaiting delivery at a time.
+     *
+     * @see PipelinedMqttClient
+     */
+    public MqttBuilder pipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * Limits the publishes in flight to {@code maxInflight}, and sets what publishers do once
+     * that many messages are in flight. Only pipelined publishes are limited by default,
+     * waiting until a message is delivered.
+     */
+    public MqttBuilder backpressure(Backpressure backpressure) {
+        if (backpressure == null) {
+            throw new IllegalArgumentException("Backpressure must be set.");
+        }
+
+        this.backpressure = backpressure;
+        return this;
+    }
+
     public MqttBuilder persistence(MqttClientPersistence mqttClientPersistence) {
         this.persistence = mqttClientPersistence;
         return this;
@@ -169,6 +216,15 @@ public class MqttBuilder {
     }
 
     public MqttClient client() throws MqttException {
+        if (pipelined) {
+            return new PipelinedMqttClient(host, deviceKey, persistence,
+                    new InflightWindow(maxInflight, backpressure == null ? Backpressure.block() : backpressure));
+        }
+
+        if (backpressure != null) {
+            return new WindowedMqttClient(host, deviceKey, persistence, new InflightWindow(maxInflight, backpressure));
+        }
+
         return new MqttClient(host, deviceKey, persistence);
     }
 
@@ -183,7 +239,7 @@ public class MqttBuilder {
         options.setMaxInflight(maxInflight);
         options.setHttpsHostnameVerificationEnabled(false);
 
-        options.setWill("lastwill/" + deviceKey, "Gone offline".getBytes(), 2, false);
+        options.setWill(LAST_WILL_TOPIC + deviceKey, LAST_WILL_MESSAGE.getBytes(), 2, false);
 
         if (host.startsWith("ssl") && certificateAuthority != null) {
             options.setSocketFactory(getSslSocketFactory());
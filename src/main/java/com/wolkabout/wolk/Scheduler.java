@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the scheduled tasks of a {@link Wolk} instance.
+ * <p>
+ * An executor passed in is shared with other instances, such as the devices of a {@link Gateway},
+ * and left running. Otherwise, the instance gets its own executor with named threads, which is
+ * shut down on {@link #shutdown()} and created again when needed.
+ * Periodic tasks start after a random delay of up to the jitter, so instances started together
+ * do not run them at the same time.
+ */
+final class Scheduler {
+
+    private final Supplier<ScheduledExecutorService> shared;
+    private final int threads;
+    private final String threadName;
+    private final long jitterNanos;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private ScheduledExecutorService owned;
+
+    Scheduler(ScheduledExecutorService shared, long jitter, TimeUnit unit) {
+        this(() -> shared, 0, null, jitter, unit);
+    }
+
+    /**
+     * @param shared Provides the executor of another scheduler, whose executor may be replaced.
+     */
+    Scheduler(Supplier<ScheduledExecutorService> shared, long jitter, TimeUnit unit) {
+        this(shared, 0, null, jitter, unit);
+    }
+
+    Scheduler(int threads, String threadName, long jitter, TimeUnit unit) {
+        this(null, threads, threadName, jitter, unit);
+    }
+
+    private Scheduler(Supplier<ScheduledExecutorService> shared, int threads, String threadName,
+                      long jitter, TimeUnit unit) {
+        this.shared = shared;
+        this.threads = threads;
+        this.threadName = threadName;
+        this.jitterNanos = unit.toNanos(jitter);
+    }
+
+    synchronized ScheduledExecutorService getExecutor() {
+        if (shared != null) {
+            return shared.get();
+        }
+
+        if (owned == null || owned.isShutdown()) {
+            final ThreadFactory factory = runnable -> {
+                final Thread thread = new Thread(runnable, threadName + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(false);
+                return thread;
+            };
+            owned = Executors.newScheduledThreadPool(threads, factory);
+        }
+
+        return owned;
+    }
+
+    /**
+     * Runs the task periodically, starting after a random delay of up to the jitter or the period,
+     * whichever is shorter.
+     */
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period, TimeUnit unit) {
+        final long periodNanos = unit.toNanos(period);
+        return getExecutor().scheduleAtFixedRate(task, initialDelayNanos(periodNanos), periodNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    long initialDelayNanos(long periodNanos) {
+        final long bound = Math.min(jitterNanos, periodNanos);
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound) : 0;
+    }
+
+    /**
+     * Shuts down the executor of the instance, letting running tasks complete. A shared executor is left running.
+     */
+    synchronized void shutdown() {
+        if (owned != null) {
+            owned.shutdown();
+            owned = null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+/**
+ * Records readings of a single sensor.
+ * <p>
+ * The reference and the topic are resolved once, when the handle is created with {@link Wolk#sensor(String)},
+ * so recording a numeric value builds no strings.
+ */
+public class SensorHandle {
+
+    private final Wolk wolk;
+    private final String reference;
+    final String topic;
+
+    SensorHandle(Wolk wolk, String reference, String topic) {
+        this.wolk = wolk;
+        this.reference = reference;
+        this.topic = topic;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public void record(double value) {
+        wolk.addReading(this, value, System.currentTimeMillis());
+    }
+
+    public void record(double value, long timestamp) {
+        wolk.addReading(this, value, timestamp);
+    }
+
+    public void record(long value) {
+        wolk.addReading(this, value, System.currentTimeMillis());
+    }
+
+    public void record(long value, long timestamp) {
+        wolk.addReading(this, value, timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "SensorHandle{" +
+                "reference='" + reference + '\'' +
+                '}';
+    }
+}
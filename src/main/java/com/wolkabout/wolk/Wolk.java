@@ -23,12 +23,20 @@ import com.wolkabout.wolk.firmwareupdate.FirmwareInstaller;
 import com.wolkabout.wolk.firmwareupdate.FirmwareUpdateProtocol;
 import com.wolkabout.wolk.model.*;
 import com.wolkabout.wolk.persistence.InMemoryPersistence;
+import com.wolkabout.wolk.persistence.Lease;
 import com.wolkabout.wolk.persistence.Persistence;
+import com.wolkabout.wolk.protocol.InflightWindow;
+import com.wolkabout.wolk.protocol.MessageClass;
 import com.wolkabout.wolk.protocol.Protocol;
 import com.wolkabout.wolk.protocol.ProtocolType;
+import com.wolkabout.wolk.protocol.TopicDispatcher;
+import com.wolkabout.wolk.protocol.WindowedMqttClient;
 import com.wolkabout.wolk.protocol.WolkaboutProtocol;
 import com.wolkabout.wolk.protocol.handler.ActuatorHandler;
 import com.wolkabout.wolk.protocol.handler.ConfigurationHandler;
+import com.wolkabout.wolk.util.DeflateCompressor;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
 import org.eclipse.paho.client.mqttv3.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,11 +44,17 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 /**
  * Handles the connection to the WolkAbout IoT Platform.
@@ -50,7 +64,12 @@ public class Wolk {
     public static final String WOLK_DEMO_URL = "ssl://api-demo.wolkabout.com:8883";
     public static final String WOLK_DEMO_CA = "ca.crt";
     private static final Logger LOG = LoggerFactory.getLogger(Wolk.class);
-    private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    private static final int DEFAULT_FRAME_CAPACITY = 16;
+    private static final CompletableFuture<Void> DELIVERED = CompletableFuture.completedFuture(null);
+    /**
+     * Runs automatic publishing and keep alive messages.
+     */
+    private Scheduler scheduler;
     private boolean keepAliveServiceEnabled = true;
     private ScheduledFuture<?> runningPublishTask;
     private ScheduledFuture<?> runningPublishKeepAliveTask;
@@ -62,6 +81,10 @@ public class Wolk {
      * MQTT connect options
      */
     private MqttConnectOptions options;
+    /**
+     * Gateway whose connection the device shares, if any.
+     */
+    private Gateway gateway;
     /**
      * Protocol for sending and receiving data.
      */
@@ -84,18 +107,63 @@ public class Wolk {
      * Persistence mechanism for storing and retrieving data.
      */
     private Persistence persistence;
+    /**
+     * Data is removed from the persistence store only after it was delivered.
+     */
+    private boolean commitAfterDelivery = false;
+    /**
+     * Rolled back data is published again with the possible duplicate flag set in its payload.
+     */
+    private boolean tagDuplicates = false;
+    /**
+     * Maximum number of items taken from the persistence store for a single publish.
+     */
+    private int publishBatchSize;
+    /**
+     * References of actuators whose status could not be published.
+     */
+    private final Set<String> pendingActuatorStatuses = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean priorityPublishScheduled = new AtomicBoolean();
+    /**
+     * Flushes stored data when a limit of the flush policy is reached, if automatic publishing uses one.
+     */
+    private volatile AdaptiveFlusher flusher;
+    /**
+     * Set when a pipelined delivery fails, to stop the running publish.
+     */
+    private volatile boolean deliveryFailed;
+    /**
+     * Number of alarms the persistence store refused to take, e.g. because it is full.
+     */
+    private final AtomicLong rejectedAlarms = new AtomicLong();
     private final Runnable publishTask = this::publish;
 
     public static Builder builder() {
         return new Builder();
     }
 
+    static Builder builder(Gateway gateway, String deviceKey) {
+        final Builder builder = new Builder();
+        builder.gateway = gateway;
+        builder.deviceKey = deviceKey;
+        builder.schedulingJitterMillis = gateway.getSchedulingJitterMillis();
+        return builder;
+    }
+
+    /**
+     * Connects to the MQTT broker. A device of a {@link Gateway} only subscribes to its topics
+     * through the connection of the gateway.
+     */
     public void connect() {
-        try {
-            client.connect(options);
-        } catch (Exception e) {
-            LOG.info("Could not connect to MQTT broker.", e);
-            return;
+        if (gateway == null) {
+            try {
+                client.connect(options);
+            } catch (Exception e) {
+                LOG.info("Could not connect to MQTT broker.", e);
+                return;
+            }
+        } else {
+            gateway.attach(protocol.getDeviceKey(), this);
         }
 
         subscribe();
@@ -113,26 +181,55 @@ public class Wolk {
 
     /**
      * Disconnects from the MQTT broker.
+     * Automatic publishing and keep alive messages stop, and the threads of the instance are shut down
+     * unless the executor is shared, see {@link Builder#scheduler(ScheduledExecutorService)}.
+     * A device of a {@link Gateway} stops receiving messages and publishes its last will,
+     * leaving the connection of the gateway open.
      */
     public void disconnect() {
-        try {
-            if (client.isConnected()) {
-                client.publish(options.getWillDestination(), options.getWillMessage().getPayload(), 2, false);
-                client.disconnect();
+        if (gateway != null) {
+            gateway.detach(protocol.getDeviceKey());
+        } else {
+            try {
+                if (client.isConnected()) {
+                    client.publish(options.getWillDestination(), options.getWillMessage().getPayload(), 2, false);
+                    client.disconnect();
+                }
+            } catch (MqttException e) {
+                LOG.trace("Could not disconnect from MQTT broker.", e);
             }
-            stopPublishingKeepAlive();
-        } catch (MqttException e) {
-            LOG.trace("Could not disconnect from MQTT broker.", e);
         }
+
+        stopPublishing();
+        stopPublishingKeepAlive();
+        scheduler.shutdown();
     }
 
     public long getPlatformTimestamp() {
         return this.protocol.getPlatformTimestamp();
     }
 
+    /**
+     * Returns the window of messages in flight, which reports its occupancy and the number of publishes
+     * rejected by backpressure.
+     *
+     * @return The window, or null if the MQTT client does not have one.
+     */
+    public InflightWindow getInflightWindow() {
+        return client instanceof WindowedMqttClient ? ((WindowedMqttClient) client).getInflightWindow() : null;
+    }
+
+    /**
+     * @return Number of alarms that were not stored because the persistence store refused them, e.g. a full
+     * {@link com.wolkabout.wolk.persistence.RingBufferPersistence}.
+     */
+    public long getRejectedAlarms() {
+        return rejectedAlarms.get();
+    }
+
     /**
      * Start automatic reading publishing.
-     * Readings are published every X seconds.
+     * Readings are published every X seconds, starting after a random delay of up to the scheduling jitter.
      * Automatic publishing requires a persistence store.
      *
      * @param seconds Time in seconds between 2 publishes.
@@ -142,17 +239,49 @@ public class Wolk {
             throw new IllegalStateException("Automatic publishing requires persistence store.");
         }
 
-        if (runningPublishTask != null && !runningPublishTask.isDone()) {
+        if (isPublishing()) {
             return;
         }
 
-        runningPublishTask = executor.scheduleAtFixedRate(publishTask, 0, seconds, TimeUnit.SECONDS);
+        runningPublishTask = scheduler.scheduleAtFixedRate(publishTask, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start automatic publishing, flushing stored data whenever a limit of the policy is reached,
+     * instead of at a fixed rate. Alarms are published as soon as they are added.
+     * Only data added through this instance counts towards the limits.
+     * Automatic publishing requires a persistence store.
+     *
+     * @param policy Limits that trigger a flush.
+     */
+    public void startPublishing(FlushPolicy policy) {
+        if (persistence == null) {
+            throw new IllegalStateException("Automatic publishing requires persistence store.");
+        }
+
+        if (policy == null) {
+            throw new IllegalArgumentException("Flush policy must be set.");
+        }
+
+        if (isPublishing()) {
+            return;
+        }
+
+        final AdaptiveFlusher flusher = new AdaptiveFlusher(policy, scheduler.getExecutor(), publishTask);
+        this.flusher = flusher;
+        flusher.start();
     }
 
     /**
      * Stop automatic reading publishing
      */
     public void stopPublishing() {
+        final AdaptiveFlusher flusher = this.flusher;
+        if (flusher != null) {
+            flusher.stop();
+            this.flusher = null;
+        }
+
         if (runningPublishTask == null || runningPublishTask.isDone()) {
             return;
         }
@@ -160,9 +289,13 @@ public class Wolk {
         runningPublishTask.cancel(true);
     }
 
+    private boolean isPublishing() {
+        return flusher != null || (runningPublishTask != null && !runningPublishTask.isDone());
+    }
+
     /**
      * Start automatic reading publishing keep alive messages.
-     * Messages are published every X seconds.
+     * Messages are published every X seconds, starting after a random delay of up to the scheduling jitter.
      *
      * @param seconds Time in seconds between 2 publishes.
      */
@@ -174,7 +307,7 @@ public class Wolk {
             return;
         }
 
-        runningPublishKeepAliveTask = executor.scheduleAtFixedRate(publishKeepAlive, 0, seconds, TimeUnit.SECONDS);
+        runningPublishKeepAliveTask = scheduler.scheduleAtFixedRate(publishKeepAlive, seconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -191,23 +324,183 @@ public class Wolk {
     /**
      * Manually publish stored readings.
      * Requires a persistence store.
+     * <p>
+     * Pending actuator statuses and stored alarms are published first. Readings follow in batches
+     * of at most {@link #publishBatchSize}, and alarms that arrive in the meantime are published
+     * between the batches.
+     * <p>
+     * With a pipelined MQTT client, batches are published without waiting for the delivery of the previous ones,
+     * up to the maximum number of inflight messages, and this returns before the last batches are delivered.
+     * Publishing stops early if a delivery fails.
      */
     public void publish() {
         if (persistence == null) {
             throw new IllegalStateException("Manual publishing requires persistence store.");
         }
 
+        deliveryFailed = false;
+        final List<Reading> batch = new ArrayList<>(publishBatchSize);
+        boolean more;
+        do {
+            publishPriority();
+            more = commitAfterDelivery
+                    ? publishLeased(persistence::leaseReadings, this::publishReadings, "Could not publish readings")
+                    : publishDrained(persistence::drainTo, this::publishReadings, batch, "Could not publish readings");
+        } while (more);
+    }
+
+    /**
+     * Publishes actuator statuses that failed to publish earlier, and all stored alarms.
+     */
+    private void publishPriority() {
+        for (String reference : pendingActuatorStatuses) {
+            if (!pendingActuatorStatuses.remove(reference)) {
+                continue;
+            }
+
+            try {
+                protocol.publishActuatorStatus(reference);
+            } catch (Exception e) {
+                pendingActuatorStatuses.add(reference);
+                LOG.info("Could not publish actuator status for actuator: " + reference, e);
+                return;
+            }
+        }
+
+        final List<Alarm> batch = new ArrayList<>();
+        boolean more;
+        do {
+            more = commitAfterDelivery
+                    ? publishLeased(persistence::leaseAlarms, this::publishAlarms, "Could not publish alarms")
+                    : publishDrained(persistence::drainAlarmsTo, this::publishAlarms, batch, "Could not publish alarms");
+        } while (more);
+    }
+
+    private CompletableFuture<Void> publishReadings(Collection<Reading> readings, boolean possibleDuplicate) {
+        if (possibleDuplicate) {
+            return protocol.publishReadingsAsync(readings, true);
+        }
+
+        if (protocol.isPipelined()) {
+            return protocol.publishReadingsAsync(readings);
+        }
+
+        protocol.publishReadings(readings);
+        return DELIVERED;
+    }
+
+    private CompletableFuture<Void> publishAlarms(Collection<Alarm> alarms, boolean possibleDuplicate) {
+        if (possibleDuplicate) {
+            return protocol.publishAlarmsAsync(alarms, true);
+        }
+
+        if (protocol.isPipelined()) {
+            return protocol.publishAlarmsAsync(alarms);
+        }
+
+        protocol.publishAlarms(alarms);
+        return DELIVERED;
+    }
+
+    /**
+     * Publishes high priority data right away when automatic publishing is running,
+     * instead of waiting for the next publish.
+     */
+    private void schedulePriorityPublish() {
+        final AdaptiveFlusher flusher = this.flusher;
+        if (flusher != null) {
+            flusher.onPriority();
+            return;
+        }
+
+        if (runningPublishTask == null || runningPublishTask.isDone()) {
+            return;
+        }
+
+        if (priorityPublishScheduled.compareAndSet(false, true)) {
+            scheduler.getExecutor().execute(() -> {
+                priorityPublishScheduled.set(false);
+                publishPriority();
+            });
+        }
+    }
+
+    /**
+     * Drains and publishes a batch of at most {@link #publishBatchSize} items.
+     * A batch that fails to publish is dropped.
+     *
+     * @return true if a full batch was published, so more items may be waiting.
+     */
+    private <T> boolean publishDrained(Drainer<T> drainer, Publisher<T> publisher, List<T> batch, String error) {
+        final int drained = drainer.drainTo(batch, publishBatchSize);
+        if (drained == 0) {
+            return false;
+        }
+
         try {
-            protocol.publishReadings(persistence.getAll());
+            publisher.publish(batch, false).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    onDeliveryFailed(error, e);
+                }
+            });
         } catch (Exception e) {
-            LOG.info("Could not publish readings", e);
+            LOG.info(error, e);
+            return false;
+        } finally {
+            batch.clear();
+        }
+
+        return drained == publishBatchSize && !deliveryFailed;
+    }
+
+    /**
+     * Leases and publishes a batch of at most {@link #publishBatchSize} items, committing the lease once
+     * it is delivered. The blocking MQTT client returns from publishing only after the delivery token completes,
+     * while with a pipelined client the lease is settled later, when the delivery completes.
+     * A batch that fails to publish is rolled back. As the broker may have received it regardless,
+     * it is published again tagged as a possible duplicate if {@link #tagDuplicates} is set,
+     * as far as the store reports it, see {@link Lease#isRedelivered(int)}.
+     *
+     * @return true if a full batch was published, so more items may be waiting.
+     */
+    private <T> boolean publishLeased(IntFunction<Lease<T>> leaser, Publisher<T> publisher, String error) {
+        final Lease<T> lease = leaser.apply(publishBatchSize);
+        final int size = lease.getItems().size();
+        if (size == 0) {
+            return false;
         }
 
         try {
-            protocol.publishAlarms(persistence.getAllAlarms());
+            publisher.publish(lease.getItems(), tagDuplicates && isRedelivered(lease)).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    lease.commit();
+                } else {
+                    lease.rollback();
+                    onDeliveryFailed(error, e);
+                }
+            });
         } catch (Exception e) {
-            LOG.info("Could not publish alarms", e);
+            lease.rollback();
+            LOG.info(error, e);
+            return false;
         }
+
+        return size == publishBatchSize && !deliveryFailed;
+    }
+
+    private static boolean isRedelivered(Lease<?> lease) {
+        for (int i = 0; i < lease.getItems().size(); i++) {
+            if (lease.isRedelivered(i)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void onDeliveryFailed(String error, Throwable cause) {
+        deliveryFailed = true;
+        LOG.info(error, cause);
     }
 
     /**
@@ -228,23 +521,31 @@ public class Wolk {
     }
 
     public void addReading(String reference, long value) {
-        final Reading reading = new Reading(reference, Long.toString(value));
-        addReading(reading);
+        addReading(reference, value, System.currentTimeMillis());
     }
 
     public void addReading(String reference, long value, long timestamp) {
-        final Reading reading = new Reading(reference, Long.toString(value), timestamp);
-        addReading(reading);
+        if (persistence != null) {
+            persistence.addReading(reference, value, timestamp);
+            onStored(reference);
+            return;
+        }
+
+        addReading(new Reading(reference, value, timestamp));
     }
 
     public void addReading(String reference, double value) {
-        final Reading reading = new Reading(reference, Double.toString(value));
-        addReading(reading);
+        addReading(reference, value, System.currentTimeMillis());
     }
 
     public void addReading(String reference, double value, long timestamp) {
-        final Reading reading = new Reading(reference, Double.toString(value), timestamp);
-        addReading(reading);
+        if (persistence != null) {
+            persistence.addReading(reference, value, timestamp);
+            onStored(reference);
+            return;
+        }
+
+        addReading(new Reading(reference, value, timestamp));
     }
 
     public void addReading(String reference, String value) {
@@ -283,6 +584,7 @@ public class Wolk {
     public void addReading(Reading reading) {
         if (persistence != null) {
             persistence.addReading(reading);
+            onStored(reading);
             return;
         }
 
@@ -302,6 +604,14 @@ public class Wolk {
     public void addReadings(Collection<Reading> readings) {
         if (persistence != null) {
             persistence.addReadings(readings);
+            final AdaptiveFlusher flusher = this.flusher;
+            if (flusher != null) {
+                long size = 0;
+                for (Reading reading : readings) {
+                    size += AdaptiveFlusher.estimateSize(reading);
+                }
+                flusher.onBuffered(readings.size(), size);
+            }
             return;
         }
 
@@ -312,9 +622,78 @@ public class Wolk {
         }
     }
 
+    /**
+     * Starts a batch of readings sampled at the given time, which is added when it is committed:
+     * {@code wolk.frame(utc).put("T", 21.5).put("H", 40).commit()}.
+     *
+     * @param utc Timestamp of all readings in the batch
+     */
+    public ReadingBatch frame(long utc) {
+        return frame(utc, DEFAULT_FRAME_CAPACITY);
+    }
+
+    /**
+     * @param utc      Timestamp of all readings in the batch
+     * @param capacity Expected number of readings in the batch
+     * @see #frame(long)
+     */
+    public ReadingBatch frame(long utc, int capacity) {
+        return new ReadingBatch(utc, capacity, this::addReadingBatch);
+    }
+
+    /**
+     * Starts a batch of readings sampled now.
+     *
+     * @see #frame(long)
+     */
+    public ReadingBatch frame() {
+        return frame(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a batch of readings to be published.
+     * If the persistence store is set, the readings will be stored, numeric values without boxing them.
+     * Otherwise, the batch will be published immediately as a single group.
+     *
+     * @param batch {@link ReadingBatch}
+     */
+    public void addReadingBatch(ReadingBatch batch) {
+        if (persistence != null) {
+            long size = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                final String reference = batch.getReference(i);
+                if (!batch.isNumeric(i)) {
+                    final Reading reading = new Reading(reference, batch.getValue(i), batch.getUtc());
+                    persistence.addReading(reading);
+                    size += AdaptiveFlusher.estimateSize(reading);
+                } else {
+                    if (batch.isDecimal(i)) {
+                        persistence.addReading(reference, batch.getDouble(i), batch.getUtc());
+                    } else {
+                        persistence.addReading(reference, batch.getLong(i), batch.getUtc());
+                    }
+                    size += AdaptiveFlusher.estimateSize(reference);
+                }
+            }
+
+            final AdaptiveFlusher flusher = this.flusher;
+            if (flusher != null) {
+                flusher.onBuffered(batch.size(), size);
+            }
+            return;
+        }
+
+        try {
+            protocol.publishReadingBatch(batch);
+        } catch (Exception e) {
+            LOG.info("Could not publish reading batch", e);
+        }
+    }
+
     /**
      * Adds alarm to be published.
      * If the persistence store is set, the reading will be stored. Otherwise, it will be published immediately.
+     * An alarm the store refuses is logged and counted, see {@link #getRejectedAlarms()}.
      *
      * @param reference Reference of the alarm
      * @param active    Current state of the alarm
@@ -323,7 +702,7 @@ public class Wolk {
         final Alarm alarm = new Alarm(reference, active);
 
         if (persistence != null) {
-            persistence.addAlarm(alarm);
+            storeAlarm(alarm);
             return;
         }
 
@@ -334,6 +713,104 @@ public class Wolk {
         }
     }
 
+    /**
+     * Returns a handle for recording readings of the given sensor, which resolves the reference and the topic
+     * only once. Use it for sensors that are sampled frequently.
+     *
+     * @param reference Reference of the sensor
+     */
+    public SensorHandle sensor(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            throw new IllegalArgumentException("Sensor reference must be set.");
+        }
+
+        final String interned = reference.intern();
+        return new SensorHandle(this, interned, protocol.getReadingTopic(interned));
+    }
+
+    /**
+     * Returns a handle for recording the state of the given alarm, which resolves the reference and the topic
+     * only once.
+     *
+     * @param reference Reference of the alarm
+     */
+    public AlarmHandle alarm(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            throw new IllegalArgumentException("Alarm reference must be set.");
+        }
+
+        final String interned = reference.intern();
+        return new AlarmHandle(this, interned, protocol.getAlarmTopic(interned));
+    }
+
+    void addReading(SensorHandle sensor, double value, long timestamp) {
+        if (persistence != null) {
+            persistence.addReading(sensor.getReference(), value, timestamp);
+            onStored(sensor.getReference());
+            return;
+        }
+
+        publishReading(sensor, new Reading(sensor.getReference(), value, timestamp));
+    }
+
+    void addReading(SensorHandle sensor, long value, long timestamp) {
+        if (persistence != null) {
+            persistence.addReading(sensor.getReference(), value, timestamp);
+            onStored(sensor.getReference());
+            return;
+        }
+
+        publishReading(sensor, new Reading(sensor.getReference(), value, timestamp));
+    }
+
+    private void onStored(String numericReference) {
+        final AdaptiveFlusher flusher = this.flusher;
+        if (flusher != null) {
+            flusher.onBuffered(1, AdaptiveFlusher.estimateSize(numericReference));
+        }
+    }
+
+    private void onStored(Reading reading) {
+        final AdaptiveFlusher flusher = this.flusher;
+        if (flusher != null) {
+            flusher.onBuffered(1, AdaptiveFlusher.estimateSize(reading));
+        }
+    }
+
+    private void publishReading(SensorHandle sensor, Reading reading) {
+        try {
+            protocol.publishReading(sensor.topic, reading);
+        } catch (Exception e) {
+            LOG.info("Could not publish reading: " + sensor.getReference(), e);
+        }
+    }
+
+    void addAlarm(AlarmHandle handle, boolean active, long timestamp) {
+        final Alarm alarm = new Alarm(handle.getReference(), active, timestamp);
+
+        if (persistence != null) {
+            storeAlarm(alarm);
+            return;
+        }
+
+        try {
+            protocol.publishAlarm(handle.topic, alarm);
+        } catch (Exception e) {
+            LOG.info("Could not publish alarm: " + handle.getReference(), e);
+        }
+    }
+
+    private void storeAlarm(Alarm alarm) {
+        try {
+            persistence.addAlarm(alarm);
+        } catch (IllegalStateException e) {
+            rejectedAlarms.incrementAndGet();
+            LOG.warn("Persistence store rejected alarm: " + alarm.getReference(), e);
+        }
+
+        schedulePriorityPublish();
+    }
+
     /**
      * Publishes current configuration.
      */
@@ -347,6 +824,8 @@ public class Wolk {
 
     /**
      * Publishes current actuator status for the given reference.
+     * If the persistence store is set, a status that could not be published is published again,
+     * ahead of stored data, on the next publish.
      *
      * @param ref actuator reference.
      */
@@ -355,6 +834,9 @@ public class Wolk {
             protocol.publishActuatorStatus(ref);
         } catch (Exception e) {
             LOG.info("Could not publish actuator status for actuator: " + ref, e);
+            if (persistence != null) {
+                pendingActuatorStatuses.add(ref);
+            }
         }
     }
 
@@ -407,9 +889,19 @@ public class Wolk {
         }
     }
 
+    private interface Drainer<T> {
+        int drainTo(Collection<T> target, int maxItems);
+    }
+
+    private interface Publisher<T> {
+        CompletableFuture<Void> publish(Collection<T> items, boolean possibleDuplicate);
+    }
+
     public static class Builder {
 
         private static final String DEFAULT_FILE_LOCATION = "files/";
+        private static final int DEFAULT_PUBLISH_BATCH_SIZE = 500;
+        private static final int DEFAULT_SCHEDULER_THREADS = 2;
         private final MqttBuilder mqttBuilder = new MqttBuilder(this);
         private ProtocolType protocolType = ProtocolType.WOLKABOUT_PROTOCOL;
         private Collection<String> actuatorReferences = new ArrayList<>();
@@ -454,6 +946,32 @@ public class Wolk {
 
         private boolean keepAliveServiceEnabled = true;
 
+        private boolean commitAfterDelivery = false;
+
+        private boolean tagDuplicates = false;
+
+        private int publishBatchSize = DEFAULT_PUBLISH_BATCH_SIZE;
+
+        private int maxPayloadSize = Protocol.DEFAULT_MAX_PAYLOAD_SIZE;
+
+        private int maxReadingsPerMessage = Protocol.DEFAULT_MAX_READINGS_PER_MESSAGE;
+
+        private PayloadCodec payloadCodec = JacksonPayloadCodec.json();
+
+        private DeflateCompressor compressor = null;
+
+        private final int[] qos = new int[MessageClass.values().length];
+
+        private ScheduledExecutorService scheduler = null;
+
+        private int schedulerThreads = DEFAULT_SCHEDULER_THREADS;
+
+        private long schedulingJitterMillis = 0;
+
+        private Gateway gateway = null;
+
+        private String deviceKey = null;
+
         private Builder() {
         }
 
@@ -502,6 +1020,149 @@ public class Wolk {
             return this;
         }
 
+        /**
+         * Keeps published data in the persistence store until its delivery completes.
+         * If publishing fails, the data is published again on the next attempt.
+         */
+        public Builder commitAfterDelivery(boolean enable) {
+            this.commitAfterDelivery = enable;
+            return this;
+        }
+
+        /**
+         * Sets the "duplicate" flag in the payload of data published again after it was rolled back,
+         * as the broker may have received it regardless. Requires a platform that understands the flag,
+         * so it is disabled by default. The data is always published to its usual topic.
+         * Rolled back items are recognized by the lease of the persistence store, see {@link Lease#isRedelivered(int)}.
+         */
+        public Builder tagDuplicates(boolean enable) {
+            this.tagDuplicates = enable;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of readings or alarms taken from the persistence store for a single publish.
+         * Larger backlogs are published in multiple batches.
+         */
+        public Builder publishBatchSize(int publishBatchSize) {
+            if (publishBatchSize <= 0) {
+                throw new IllegalArgumentException("Publish batch size must be positive.");
+            }
+
+            this.publishBatchSize = publishBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size in bytes of a message carrying multiple readings or alarms.
+         * Larger batches are split into multiple messages.
+         */
+        public Builder maxPayloadSize(int maxPayloadSize) {
+            if (maxPayloadSize <= 0) {
+                throw new IllegalArgumentException("Maximum payload size must be positive.");
+            }
+
+            this.maxPayloadSize = maxPayloadSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of readings or alarms in a single message.
+         * Larger batches are split into multiple messages.
+         */
+        public Builder maxReadingsPerMessage(int maxReadingsPerMessage) {
+            if (maxReadingsPerMessage <= 0) {
+                throw new IllegalArgumentException("Maximum readings per message must be positive.");
+            }
+
+            this.maxReadingsPerMessage = maxReadingsPerMessage;
+            return this;
+        }
+
+        /**
+         * Sets the format of the message payloads. JSON is used by default.
+         * Binary formats, such as {@link JacksonPayloadCodec#cbor()}, require a receiver that understands them.
+         */
+        public Builder payloadCodec(PayloadCodec payloadCodec) {
+            if (payloadCodec == null) {
+                throw new IllegalArgumentException("Payload codec must be set.");
+            }
+
+            this.payloadCodec = payloadCodec;
+            return this;
+        }
+
+        /**
+         * Compresses messages carrying multiple readings or alarms that are at least the given size in bytes.
+         * Compressed messages are published to their topic with {@link DeflateCompressor#TOPIC_SUFFIX} appended,
+         * and require a receiver that decompresses them.
+         */
+        public Builder compressPayloads(int threshold) {
+            this.compressor = new DeflateCompressor(threshold, Deflater.DEFAULT_COMPRESSION);
+            return this;
+        }
+
+        /**
+         * Sets the MQTT quality of service of the messages of the given class. QoS 0 is used by default.
+         * <p>
+         * QoS 1 messages are acknowledged by the broker. With {@link MqttBuilder#pipelined(boolean)},
+         * they are published without waiting for the acknowledgement of the previous ones,
+         * up to the maximum number of inflight messages.
+         */
+        public Builder qos(MessageClass messageClass, int qos) {
+            if (messageClass == null) {
+                throw new IllegalArgumentException("Message class must be set.");
+            }
+
+            if (qos < 0 || qos > 2) {
+                throw new IllegalArgumentException("QoS must be 0, 1 or 2.");
+            }
+
+            this.qos[messageClass.ordinal()] = qos;
+            return this;
+        }
+
+        /**
+         * Runs automatic publishing and keep alive messages on the given executor, which can be shared
+         * by many instances. The executor is not shut down on {@link Wolk#disconnect()}.
+         * By default, each instance gets its own executor, which is shut down on disconnect.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            if (scheduler == null) {
+                throw new IllegalArgumentException("Scheduler must be set.");
+            }
+
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads of the executor of the instance, if no executor is shared.
+         * The threads are named after the device key.
+         */
+        public Builder schedulerThreads(int schedulerThreads) {
+            if (schedulerThreads <= 0) {
+                throw new IllegalArgumentException("Scheduler threads must be positive.");
+            }
+
+            this.schedulerThreads = schedulerThreads;
+            return this;
+        }
+
+        /**
+         * Delays the first automatic publish and keep alive message by a random time of up to the given jitter,
+         * or the period, whichever is shorter. Spreads the periodic messages of instances started together,
+         * so they do not reach the platform at the same time.
+         */
+        public Builder schedulingJitter(long jitter, TimeUnit unit) {
+            if (jitter < 0) {
+                throw new IllegalArgumentException("Scheduling jitter cannot be negative.");
+            }
+
+            this.schedulingJitterMillis = unit.toMillis(jitter);
+            return this;
+        }
+
         public Builder enableFileManagement() {
             fileManagementEnabled = true;
             return this;
@@ -586,7 +1247,32 @@ public class Wolk {
             return this;
         }
 
+        /**
+         * Builds a connection shared by many devices, with the MQTT settings and scheduling of this builder.
+         * The device key of the MQTT settings identifies the connection. Devices are built with
+         * {@link Gateway#device(String)}, and run their scheduled tasks on the executor of the gateway.
+         */
+        public Gateway buildGateway() {
+            if (gateway != null) {
+                throw new IllegalStateException("A device of a gateway cannot build a gateway.");
+            }
+
+            try {
+                final MqttClient client = mqttBuilder.client();
+                return new Gateway(client, mqttBuilder.options(), scheduler == null
+                        ? new Scheduler(schedulerThreads, "wolk-gateway-" + client.getClientId(),
+                        schedulingJitterMillis, TimeUnit.MILLISECONDS)
+                        : new Scheduler(scheduler, schedulingJitterMillis, TimeUnit.MILLISECONDS),
+                        schedulingJitterMillis);
+            } catch (MqttException mqttException) {
+                throw new IllegalArgumentException("Unable to create MQTT connection.", mqttException);
+            }
+        }
+
         public Wolk build() {
+            if (gateway != null) {
+                return buildGatewayDevice();
+            }
 
             try {
                 final Wolk wolk = new Wolk();
@@ -613,8 +1299,11 @@ public class Wolk {
                 });
 
                 wolk.options = mqttBuilder.options();
-                wolk.protocol = getProtocol(wolk.client);
-                wolk.persistence = persistence;
+                wolk.scheduler = scheduler == null
+                        ? new Scheduler(schedulerThreads, "wolk-" + wolk.client.getClientId(),
+                        schedulingJitterMillis, TimeUnit.MILLISECONDS)
+                        : new Scheduler(scheduler, schedulingJitterMillis, TimeUnit.MILLISECONDS);
+                configure(wolk, getProtocol(wolk.client, null, null));
 
                 if (fileManagementEnabled) {
                     // Create the file system management
@@ -629,6 +1318,8 @@ public class Wolk {
                         wolk.fileManagementProtocol =
                                 new FileManagementProtocol(wolk.client, wolk.fileSystemManagement, urlFileDownloader);
                     }
+                    wolk.fileManagementProtocol.setPayloadCodec(payloadCodec);
+                    wolk.fileManagementProtocol.setQos(qos[MessageClass.FILES.ordinal()]);
 
                     // Create the firmware update if that is something the user wants
                     if (firmwareUpdateEnabled) {
@@ -636,23 +1327,54 @@ public class Wolk {
                         wolk.firmwareVersion = firmwareVersion;
                         wolk.firmwareUpdateProtocol = new FirmwareUpdateProtocol(
                                 wolk.client, wolk.fileSystemManagement, wolk.firmwareInstaller);
+                        wolk.firmwareUpdateProtocol.setPayloadCodec(payloadCodec);
+                        wolk.firmwareUpdateProtocol.setQos(qos[MessageClass.FILES.ordinal()]);
                     }
                 }
 
-                actuatorHandler.setWolk(wolk);
-                configurationHandler.setWolk(wolk);
-
-                wolk.keepAliveServiceEnabled = keepAliveServiceEnabled;
-
                 return wolk;
             } catch (MqttException mqttException) {
                 throw new IllegalArgumentException("Unable to create MQTT connection.", mqttException);
             }
         }
 
-        private Protocol getProtocol(MqttClient client) {
+        private Wolk buildGatewayDevice() {
+            if (fileManagementEnabled) {
+                throw new IllegalStateException("File management is not supported by devices of a gateway.");
+            }
+
+            final Wolk wolk = new Wolk();
+            wolk.gateway = gateway;
+            wolk.client = gateway.getClient();
+            wolk.scheduler = scheduler == null
+                    ? new Scheduler(gateway::getExecutor, schedulingJitterMillis, TimeUnit.MILLISECONDS)
+                    : new Scheduler(scheduler, schedulingJitterMillis, TimeUnit.MILLISECONDS);
+            configure(wolk, getProtocol(wolk.client, deviceKey, gateway.getDispatcher()));
+            return wolk;
+        }
+
+        private void configure(Wolk wolk, Protocol protocol) {
+            wolk.protocol = protocol;
+            protocol.setMaxPayloadSize(maxPayloadSize);
+            protocol.setMaxReadingsPerMessage(maxReadingsPerMessage);
+            protocol.setCompressor(compressor);
+            for (MessageClass messageClass : MessageClass.values()) {
+                protocol.setQos(messageClass, qos[messageClass.ordinal()]);
+            }
+            wolk.persistence = persistence;
+            wolk.commitAfterDelivery = commitAfterDelivery;
+            wolk.tagDuplicates = tagDuplicates;
+            wolk.publishBatchSize = publishBatchSize;
+            wolk.keepAliveServiceEnabled = keepAliveServiceEnabled;
+
+            actuatorHandler.setWolk(wolk);
+            configurationHandler.setWolk(wolk);
+        }
+
+        private Protocol getProtocol(MqttClient client, String deviceKey, TopicDispatcher dispatcher) {
             if (protocolType == ProtocolType.WOLKABOUT_PROTOCOL) {
-                return new WolkaboutProtocol(client, actuatorHandler, configurationHandler);
+                return new WolkaboutProtocol(client, deviceKey, dispatcher, actuatorHandler, configurationHandler,
+                        payloadCodec);
             }
             throw new IllegalArgumentException("Unknown protocol type: " + protocolType);
 
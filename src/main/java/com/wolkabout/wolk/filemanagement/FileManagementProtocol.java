@@ -23,7 +23,8 @@ import com.wolkabout.wolk.filemanagement.model.device2platform.FileInformation;
 import com.wolkabout.wolk.filemanagement.model.device2platform.FileStatus;
 import com.wolkabout.wolk.filemanagement.model.device2platform.UrlStatus;
 import com.wolkabout.wolk.filemanagement.model.platform2device.*;
-import com.wolkabout.wolk.util.JsonUtil;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
 import org.apache.commons.codec.binary.Base64;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -72,6 +73,9 @@ public class FileManagementProtocol {
     protected FileDownloadSession fileDownloadSession;
     protected UrlFileDownloadSession urlFileDownloadSession;
     private final UrlFileDownloader urlFileDownloader;
+    // Format of the message payloads
+    private PayloadCodec codec = JacksonPayloadCodec.json();
+    private int qos = QOS;
 
     /**
      * This is the constructor for the FileManagement feature.
@@ -118,6 +122,32 @@ public class FileManagementProtocol {
         this.executor = Executors.newCachedThreadPool();
     }
 
+    /**
+     * This is the method that sets the format of the message payloads. JSON is used by default.
+     *
+     * @param codec The codec that encodes and decodes the payloads.
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("The payload codec cannot be null.");
+        }
+
+        this.codec = codec;
+    }
+
+    /**
+     * This is the method that sets the MQTT quality of service of the published messages. QoS 0 is used by default.
+     *
+     * @param qos The quality of service, 0, 1 or 2.
+     */
+    public void setQos(int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("The QoS must be 0, 1 or 2.");
+        }
+
+        this.qos = qos;
+    }
+
     /**
      * This is the method that is used to capture the file list and send it.
      */
@@ -178,7 +208,7 @@ public class FileManagementProtocol {
         }
 
         // Parse the initialization message
-        FileInit initMessage = JsonUtil.deserialize(message, FileInit.class);
+        FileInit initMessage = codec.decode(message.getPayload(), FileInit.class);
         LOG.info("Received file transfer session, with file named '" + initMessage.getFileName() + "'.");
 
         // If there was an error creating the management, report a `FILE_SYSTEM_ERROR`.
@@ -252,7 +282,7 @@ public class FileManagementProtocol {
         }
 
         // Parse the payload and check its validity
-        FileAbort abortMessage = JsonUtil.deserialize(message, FileAbort.class);
+        FileAbort abortMessage = codec.decode(message.getPayload(), FileAbort.class);
         if (!abortMessage.getFileName().equals(fileDownloadSession.getInitMessage().getFileName())) {
             LOG.warn("Received file transfer abort message with non-matching file name.");
             return;
@@ -334,7 +364,7 @@ public class FileManagementProtocol {
         }
 
         // Parse the initialization message
-        UrlInfo urlInit = JsonUtil.deserialize(message, UrlInfo.class);
+        UrlInfo urlInit = codec.decode(message.getPayload(), UrlInfo.class);
         LOG.info("Received URL file download session, with URL '" + urlInit.getFileUrl() + "'.");
 
         // If there is no management, return FILE_SYSTEM_ERROR immediately.
@@ -375,7 +405,7 @@ public class FileManagementProtocol {
         }
 
         // Parse the payload, and check its validity
-        UrlAbort abortMessage = JsonUtil.deserialize(message, UrlAbort.class);
+        UrlAbort abortMessage = codec.decode(message.getPayload(), UrlAbort.class);
         if (!abortMessage.getFileUrl().equals(urlFileDownloadSession.getInitMessage().getFileUrl())) {
             LOG.warn("Received URL download abort for non-matching URL paths.");
             return;
@@ -440,7 +470,7 @@ public class FileManagementProtocol {
             return;
         }
 
-        FileDelete fileDelete = JsonUtil.deserialize(message, FileDelete.class);
+        FileDelete fileDelete = codec.decode(message.getPayload(), FileDelete.class);
         LOG.info("Received request to delete file '" + fileDelete.getFileName() + "'. Deleting...");
         management.deleteFile(fileDelete.getFileName());
         publishFileList();
@@ -533,7 +563,7 @@ public class FileManagementProtocol {
     private void publish(String topic, Object payload) {
         try {
             LOG.debug("Publishing to '" + topic + "' payload: " + payload);
-            client.publish(topic, JsonUtil.serialize(payload), QOS, false);
+            client.publish(topic, codec.encode(payload), qos, false);
         } catch (MqttException e) {
             final String message = "MQTT error occurred while publishing a message to topic : '" +
                     topic + "' with payload: '" + payload + "'.";
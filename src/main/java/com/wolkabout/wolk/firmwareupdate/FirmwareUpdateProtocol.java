@@ -21,7 +21,8 @@ import com.wolkabout.wolk.firmwareupdate.model.FirmwareUpdateError;
 import com.wolkabout.wolk.firmwareupdate.model.FirmwareUpdateStatus;
 import com.wolkabout.wolk.firmwareupdate.model.device2platform.UpdateStatus;
 import com.wolkabout.wolk.firmwareupdate.model.platform2device.UpdateInit;
-import com.wolkabout.wolk.util.JsonUtil;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -51,6 +52,9 @@ public class FirmwareUpdateProtocol {
     protected final MqttClient client;
     protected final FileSystemManagement management;
     protected final FirmwareInstaller installer;
+    // Format of the message payloads
+    private PayloadCodec codec = JacksonPayloadCodec.json();
+    private int qos = QOS;
     protected FirmwareUpdateStatus lastSentStatus;
 
     /**
@@ -79,6 +83,32 @@ public class FirmwareUpdateProtocol {
         this.executor = Executors.newCachedThreadPool();
     }
 
+    /**
+     * This is the method that sets the format of the message payloads. JSON is used by default.
+     *
+     * @param codec The codec that encodes and decodes the payloads.
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("The payload codec cannot be null.");
+        }
+
+        this.codec = codec;
+    }
+
+    /**
+     * This is the method that sets the MQTT quality of service of the published messages. QoS 0 is used by default.
+     *
+     * @param qos The quality of service, 0, 1 or 2.
+     */
+    public void setQos(int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("The QoS must be 0, 1 or 2.");
+        }
+
+        this.qos = qos;
+    }
+
     public void checkFirmwareVersion() {
         // Logic for version tracking to report behaviour
         if (this.management.fileExists(FIRMWARE_VERSION_FILE)) {
@@ -142,7 +172,7 @@ public class FirmwareUpdateProtocol {
         logReceivedMqttMessage(topic, message);
 
         // Parse the payload
-        UpdateInit init = JsonUtil.deserialize(message, UpdateInit.class);
+        UpdateInit init = codec.decode(message.getPayload(), UpdateInit.class);
 
         // Check that the file actually exists
         if (!management.fileExists(init.getFileName())) {
@@ -199,7 +229,7 @@ public class FirmwareUpdateProtocol {
 
         try {
             LOG.debug("Publishing to '" + topic + "' payload: '" + version + "'");
-            client.publish(topic, version.getBytes(), QOS, false);
+            client.publish(topic, version.getBytes(), qos, false);
         } catch (Exception e) {
             throw new IllegalArgumentException("Could not publish message to: " +
                     topic + " with payload: '" + version + "'", e);
@@ -222,7 +252,7 @@ public class FirmwareUpdateProtocol {
     private void publish(String topic, Object payload) {
         try {
             LOG.debug("Publishing to '" + topic + "' payload: " + payload);
-            client.publish(topic, JsonUtil.serialize(payload), QOS, false);
+            client.publish(topic, codec.encode(payload), qos, false);
         } catch (Exception e) {
             throw new IllegalArgumentException("Could not publish message to: " + topic + " with payload: " + payload, e);
         }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.model;
+
+import com.wolkabout.wolk.util.NumericFormat;
+
+import java.util.AbstractList;
+
+/**
+ * Single numeric reading value that is formatted only when it is read as a string,
+ * which normally happens while the reading is serialized.
+ */
+public final class NumericValueList extends AbstractList<String> {
+
+    private final long bits;
+    private final boolean decimal;
+
+    private NumericValueList(long bits, boolean decimal) {
+        this.bits = bits;
+        this.decimal = decimal;
+    }
+
+    public static NumericValueList of(double value) {
+        return new NumericValueList(Double.doubleToRawLongBits(value), true);
+    }
+
+    public static NumericValueList of(long value) {
+        return new NumericValueList(value, false);
+    }
+
+    /**
+     * @return true if the value is a double, false if it is a long.
+     */
+    public boolean isDecimal() {
+        return decimal;
+    }
+
+    public double doubleValue() {
+        return decimal ? Double.longBitsToDouble(bits) : bits;
+    }
+
+    public long longValue() {
+        return decimal ? (long) Double.longBitsToDouble(bits) : bits;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index != 0) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+        }
+
+        return decimal ? NumericFormat.toString(Double.longBitsToDouble(bits)) : Long.toString(bits);
+    }
+
+    /**
+     * Formats the value into the builder, without creating a string.
+     */
+    public void appendTo(StringBuilder builder) {
+        if (decimal) {
+            NumericFormat.append(builder, Double.longBitsToDouble(bits));
+        } else {
+            builder.append(bits);
+        }
+    }
+
+    @Override
+    public int size() {
+        return 1;
+    }
+}
@@ -47,6 +47,14 @@ public class Reading {
         this(reference, values, System.currentTimeMillis());
     }
 
+    public Reading(String reference, double value, long utc) {
+        this(reference, NumericValueList.of(value), utc);
+    }
+
+    public Reading(String reference, long value, long utc) {
+        this(reference, NumericValueList.of(value), utc);
+    }
+
     public Reading(String reference, List<String> values, long utc) {
         this.reference = reference;
         this.values = values;
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.model;
+
+import com.wolkabout.wolk.util.NumericFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Values of many references sampled at the same time.
+ * <p>
+ * The batch keeps one timestamp and stores the values in parallel arrays, so numeric values are neither
+ * boxed nor formatted until the batch is serialized, and the batch is written as a single group.
+ * Only the first value put for a reference is published.
+ */
+public class ReadingBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte LONG_VALUE = 0;
+    private static final byte DOUBLE_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+
+    private final long utc;
+    private final Consumer<ReadingBatch> committer;
+
+    private String[] references;
+    private long[] values;
+    private byte[] types;
+    private String[] strings;
+    private int size;
+    private boolean committed;
+
+    public ReadingBatch(long utc) {
+        this(utc, INITIAL_CAPACITY, null);
+    }
+
+    /**
+     * @param capacity  Number of values the batch holds before it grows.
+     * @param committer Receives the batch when it is committed.
+     */
+    public ReadingBatch(long utc, int capacity, Consumer<ReadingBatch> committer) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+
+        this.utc = utc;
+        this.committer = committer;
+        this.references = new String[capacity];
+        this.values = new long[capacity];
+        this.types = new byte[capacity];
+    }
+
+    public ReadingBatch put(String reference, double value) {
+        add(reference, DOUBLE_VALUE);
+        values[size++] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    public ReadingBatch put(String reference, long value) {
+        add(reference, LONG_VALUE);
+        values[size++] = value;
+        return this;
+    }
+
+    public ReadingBatch put(String reference, boolean value) {
+        return put(reference, String.valueOf(value));
+    }
+
+    public ReadingBatch put(String reference, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value must be set.");
+        }
+
+        add(reference, STRING_VALUE);
+        if (strings == null) {
+            strings = new String[references.length];
+        }
+
+        strings[size++] = value;
+        return this;
+    }
+
+    /**
+     * Hands the batch over for publishing. The batch can not be changed after it is committed.
+     */
+    public void commit() {
+        if (committer == null) {
+            throw new IllegalStateException("Reading batch has no committer.");
+        }
+
+        if (committed) {
+            throw new IllegalStateException("Reading batch is already committed.");
+        }
+
+        committed = true;
+        committer.accept(this);
+    }
+
+    public long getUtc() {
+        return utc;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String getReference(int index) {
+        checkIndex(index);
+        return references[index];
+    }
+
+    /**
+     * @return true if the value at the index is a number, false if it is a string.
+     */
+    public boolean isNumeric(int index) {
+        checkIndex(index);
+        return types[index] != STRING_VALUE;
+    }
+
+    /**
+     * @return true if the value at the index is a double.
+     */
+    public boolean isDecimal(int index) {
+        checkIndex(index);
+        return types[index] == DOUBLE_VALUE;
+    }
+
+    public double getDouble(int index) {
+        checkNumeric(index);
+        return types[index] == DOUBLE_VALUE ? Double.longBitsToDouble(values[index]) : values[index];
+    }
+
+    public long getLong(int index) {
+        checkNumeric(index);
+        return types[index] == DOUBLE_VALUE ? (long) Double.longBitsToDouble(values[index]) : values[index];
+    }
+
+    /**
+     * @return The value at the index, formatted as it is published.
+     */
+    public String getValue(int index) {
+        checkIndex(index);
+        switch (types[index]) {
+            case DOUBLE_VALUE:
+                return NumericFormat.toString(Double.longBitsToDouble(values[index]));
+            case LONG_VALUE:
+                return Long.toString(values[index]);
+            default:
+                return strings[index];
+        }
+    }
+
+    /**
+     * Formats the value at the index into the builder, without creating a string.
+     */
+    public void appendValue(int index, StringBuilder builder) {
+        checkIndex(index);
+        switch (types[index]) {
+            case DOUBLE_VALUE:
+                NumericFormat.append(builder, Double.longBitsToDouble(values[index]));
+                break;
+            case LONG_VALUE:
+                builder.append(values[index]);
+                break;
+            default:
+                builder.append(strings[index]);
+        }
+    }
+
+    public List<Reading> toReadings() {
+        final List<Reading> readings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            switch (types[i]) {
+                case DOUBLE_VALUE:
+                    readings.add(new Reading(references[i], Double.longBitsToDouble(values[i]), utc));
+                    break;
+                case LONG_VALUE:
+                    readings.add(new Reading(references[i], values[i], utc));
+                    break;
+                default:
+                    readings.add(new Reading(references[i], strings[i], utc));
+            }
+        }
+
+        return readings;
+    }
+
+    private void add(String reference, byte type) {
+        if (committed) {
+            throw new IllegalStateException("Reading batch is already committed.");
+        }
+
+        if (reference == null || reference.isEmpty()) {
+            throw new IllegalArgumentException("Reference must be set.");
+        }
+
+        if (size == references.length) {
+            final int capacity = size * 2;
+            references = Arrays.copyOf(references, capacity);
+            values = Arrays.copyOf(values, capacity);
+            types = Arrays.copyOf(types, capacity);
+            if (strings != null) {
+                strings = Arrays.copyOf(strings, capacity);
+            }
+        }
+
+        references[size] = reference;
+        types[size] = type;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private void checkNumeric(int index) {
+        if (!isNumeric(index)) {
+            throw new IllegalStateException("Value of " + references[index] + " is not a number.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReadingBatch{" +
+                "utc=" + utc +
+                ", size=" + size +
+                '}';
+    }
+}
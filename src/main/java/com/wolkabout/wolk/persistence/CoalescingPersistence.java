@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Persistence that keeps only the latest reading or alarm of the coalesced references,
+ * such as setpoints and states, so their backlog is bounded by the number of references.
+ * Data of other references is kept by the delegate store.
+ * <p>
+ * Coalesced data is drained before the data of the delegate store.
+ */
+public class CoalescingPersistence extends ForwardingPersistence {
+
+    private final Set<String> references;
+
+    private final Slots<Reading> readings = new Slots<>(Reading::getReference, Reading::getUtc);
+    private final Slots<Alarm> alarms = new Slots<>(Alarm::getReference, Alarm::getUtc);
+
+    public CoalescingPersistence(Persistence delegate, String... references) {
+        this(delegate, Arrays.asList(references));
+    }
+
+    /**
+     * @param delegate   Store for the data of the references that are not coalesced.
+     * @param references References of the sensors and alarms whose latest value is kept.
+     */
+    public CoalescingPersistence(Persistence delegate, Collection<String> references) {
+        super(delegate);
+        this.references = new HashSet<>(references);
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        if (references.contains(reading.getReference())) {
+            readings.put(reading);
+        } else {
+            delegate.addReading(reading);
+        }
+    }
+
+    @Override
+    public void addReading(String reference, double value, long utc) {
+        if (references.contains(reference)) {
+            readings.put(new Reading(reference, value, utc));
+        } else {
+            delegate.addReading(reference, value, utc);
+        }
+    }
+
+    @Override
+    public void addReading(String reference, long value, long utc) {
+        if (references.contains(reference)) {
+            readings.put(new Reading(reference, value, utc));
+        } else {
+            delegate.addReading(reference, value, utc);
+        }
+    }
+
+    @Override
+    public Reading poll() {
+        final Reading reading = readings.poll();
+        return reading != null ? reading : delegate.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> all = new ArrayList<>();
+        drainTo(all, Integer.MAX_VALUE);
+        return all;
+    }
+
+    @Override
+    public void remove(Reading reading) {
+        if (references.contains(reading.getReference())) {
+            readings.remove(reading);
+        } else {
+            delegate.remove(reading);
+        }
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return readings.removeIf(filter) + delegate.removeReadingsIf(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        readings.clear();
+        delegate.removeAll();
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        if (references.contains(alarm.getReference())) {
+            alarms.put(alarm);
+        } else {
+            delegate.addAlarm(alarm);
+        }
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        final Alarm alarm = alarms.poll();
+        return alarm != null ? alarm : delegate.pollAlarms();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        final List<Alarm> all = new ArrayList<>();
+        drainAlarmsTo(all, Integer.MAX_VALUE);
+        return all;
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        if (references.contains(alarm.getReference())) {
+            alarms.remove(alarm);
+        } else {
+            delegate.removeAlarm(alarm);
+        }
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        alarms.clear();
+        delegate.removeAllAlarms();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        final int count = readings.drainTo(target, maxItems);
+        return count + delegate.drainTo(target, maxItems - count);
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        final int count = alarms.drainTo(target, maxItems);
+        return count + delegate.drainAlarmsTo(target, maxItems - count);
+    }
+
+    /**
+     * On rollback, coalesced readings are put back unless a newer reading of the same reference arrived.
+     */
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        final Lease<Reading> coalesced = readings.lease(maxItems);
+        return new CompositeLease<>(Arrays.asList(coalesced,
+                delegate.leaseReadings(maxItems - coalesced.getItems().size())));
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        final Lease<Alarm> coalesced = alarms.lease(maxItems);
+        return new CompositeLease<>(Arrays.asList(coalesced,
+                delegate.leaseAlarms(maxItems - coalesced.getItems().size())));
+    }
+
+    private static final class Slots<T> {
+
+        private final ConcurrentMap<String, T> latest = new ConcurrentHashMap<>();
+        // Stored items that were returned by a rolled back lease.
+        private final Set<T> restored = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        private final Function<T, String> reference;
+        private final ToLongFunction<T> utc;
+
+        private Slots(Function<T, String> reference, ToLongFunction<T> utc) {
+            this.reference = reference;
+            this.utc = utc;
+        }
+
+        private void put(T item) {
+            latest.compute(reference.apply(item), (key, current) -> {
+                if (current == null || utc.applyAsLong(item) >= utc.applyAsLong(current)) {
+                    if (current != null) {
+                        restored.remove(current);
+                    }
+                    return item;
+                }
+
+                return current;
+            });
+        }
+
+        private void restore(List<T> items) {
+            for (T item : items) {
+                put(item);
+                if (latest.get(reference.apply(item)) == item) {
+                    restored.add(item);
+                }
+            }
+        }
+
+        private T poll() {
+            for (String key : latest.keySet()) {
+                final T item = latest.remove(key);
+                if (item != null) {
+                    restored.remove(item);
+                    return item;
+                }
+            }
+
+            return null;
+        }
+
+        private int drainTo(Collection<? super T> target, int maxItems) {
+            int count = 0;
+            for (String key : latest.keySet()) {
+                if (count == maxItems) {
+                    break;
+                }
+
+                final T item = latest.remove(key);
+                if (item != null) {
+                    restored.remove(item);
+                    target.add(item);
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Items that were rolled back before are leased first.
+         */
+        private Lease<T> lease(int maxItems) {
+            final List<T> redelivered = new ArrayList<>();
+            final List<T> items = new ArrayList<>();
+            for (String key : latest.keySet()) {
+                if (redelivered.size() + items.size() == maxItems) {
+                    break;
+                }
+
+                final T item = latest.remove(key);
+                if (item != null) {
+                    (restored.remove(item) ? redelivered : items).add(item);
+                }
+            }
+
+            final int count = redelivered.size();
+            redelivered.addAll(items);
+            return new PolledLease<>(redelivered, count, this::restore);
+        }
+
+        private void remove(T item) {
+            if (latest.remove(reference.apply(item), item)) {
+                restored.remove(item);
+            }
+        }
+
+        private int removeIf(Predicate<? super T> filter) {
+            int count = 0;
+            for (Map.Entry<String, T> entry : latest.entrySet()) {
+                if (filter.test(entry.getValue()) && latest.remove(entry.getKey(), entry.getValue())) {
+                    restored.remove(entry.getValue());
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        private void clear() {
+            latest.clear();
+            restored.clear();
+        }
+    }
+}
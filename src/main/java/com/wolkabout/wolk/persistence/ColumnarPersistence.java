@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that keeps numeric readings in per-reference columns of primitive timestamps
+ * and values instead of a {@link Reading} per value. Columns grow in chunks, and values are
+ * formatted only when the drained readings are serialized.
+ * <p>
+ * Readings that are not numeric, and alarms, are kept in an {@link InMemoryPersistence}.
+ * Numeric readings are drained one reference at a time, so they are not returned in the
+ * order they were added across references. Readings of a rolled back lease are returned to the front
+ * of their column.
+ */
+public class ColumnarPersistence implements Persistence {
+
+    private static final int INITIAL_CHUNK_SIZE = 16;
+    private static final int MAX_CHUNK_SIZE = 1024;
+    private static final int MAX_SPARE_CHUNKS = 2;
+
+    private final ConcurrentMap<String, Column> columns = new ConcurrentHashMap<>();
+    private final InMemoryPersistence fallback = new InMemoryPersistence();
+
+    @Override
+    public void addReading(Reading reading) {
+        if (!(reading.getValues() instanceof NumericValueList)) {
+            fallback.addReading(reading);
+            return;
+        }
+
+        final NumericValueList value = (NumericValueList) reading.getValues();
+        if (value.isDecimal()) {
+            addReading(reading.getReference(), value.doubleValue(), reading.getUtc());
+        } else {
+            addReading(reading.getReference(), value.longValue(), reading.getUtc());
+        }
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public void addReading(String reference, double value, long utc) {
+        column(reference).add(utc, Double.doubleToRawLongBits(value), true);
+    }
+
+    @Override
+    public void addReading(String reference, long value, long utc) {
+        column(reference).add(utc, value, false);
+    }
+
+    @Override
+    public Reading poll() {
+        for (Column column : columns.values()) {
+            final Reading reading = column.poll();
+            if (reading != null) {
+                return reading;
+            }
+        }
+
+        return fallback.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        int count = 0;
+        for (Column column : columns.values()) {
+            if (count == maxItems) {
+                return count;
+            }
+
+            count += column.drainTo(target, maxItems - count);
+        }
+
+        return count + fallback.drainTo(target, maxItems - count);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        final List<Lease<Reading>> leases = new ArrayList<>();
+        int count = 0;
+        for (Column column : columns.values()) {
+            if (count == maxItems) {
+                break;
+            }
+
+            final Lease<Reading> lease = column.lease(maxItems - count);
+            if (!lease.getItems().isEmpty()) {
+                leases.add(lease);
+                count += lease.getItems().size();
+            }
+        }
+
+        leases.add(fallback.leaseReadings(maxItems - count));
+        return leases.size() == 1 ? leases.get(0) : new CompositeLease<>(leases);
+    }
+
+    /**
+     * Removes the first stored numeric reading with the same reference, timestamp and value,
+     * or the given reading if it is not numeric.
+     */
+    @Override
+    public void remove(Reading reading) {
+        if (!(reading.getValues() instanceof NumericValueList)) {
+            fallback.remove(reading);
+            return;
+        }
+
+        final Column column = columns.get(reading.getReference());
+        if (column != null) {
+            final NumericValueList value = (NumericValueList) reading.getValues();
+            if (value.isDecimal()) {
+                column.remove(reading.getUtc(), Double.doubleToRawLongBits(value.doubleValue()), true);
+            } else {
+                column.remove(reading.getUtc(), value.longValue(), false);
+            }
+        }
+    }
+
+    /**
+     * Compacts the columns in place, releasing the chunks left empty.
+     */
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        int removed = 0;
+        for (Column column : columns.values()) {
+            removed += column.removeIf(filter);
+        }
+
+        return removed + fallback.removeReadingsIf(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        for (Column column : columns.values()) {
+            column.clear();
+        }
+
+        fallback.removeAll();
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        fallback.addAlarm(alarm);
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return fallback.pollAlarms();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        return fallback.getAllAlarms();
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        fallback.removeAlarm(alarm);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        fallback.removeAllAlarms();
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return fallback.drainAlarmsTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return fallback.leaseAlarms(maxItems);
+    }
+
+    private Column column(String reference) {
+        final Column column = columns.get(reference);
+        return column != null ? column : columns.computeIfAbsent(reference, Column::new);
+    }
+
+    private static final class Column {
+
+        private final String reference;
+        private final Deque<Reading> returned = new ArrayDeque<>();
+
+        private Chunk head;
+        private Chunk tail;
+        // Drained chunks kept for reuse, so a column that is drained regularly stops allocating.
+        // The tail chunk is also kept once it is drained.
+        private Chunk spare;
+        private int spareCount;
+
+        private Column(String reference) {
+            this.reference = reference;
+        }
+
+        private synchronized void add(long utc, long value, boolean decimal) {
+            if (tail == null) {
+                head = tail = newChunk(INITIAL_CHUNK_SIZE, decimal);
+            } else if (tail.size == 0) {
+                // An empty chunk is only ever the head, so drains would stop at it if it were followed by another.
+                tail.reset(decimal);
+            } else if (tail.isFull() || tail.decimal != decimal) {
+                final Chunk chunk = newChunk(Math.min(tail.utc.length * 2, MAX_CHUNK_SIZE), decimal);
+                tail.next = chunk;
+                tail = chunk;
+            }
+
+            tail.utc[tail.size] = utc;
+            tail.values[tail.size] = value;
+            tail.size++;
+        }
+
+        private synchronized Reading poll() {
+            if (!returned.isEmpty()) {
+                return returned.pollFirst();
+            }
+
+            if (head == null || head.isDrained()) {
+                return null;
+            }
+
+            final Reading reading = head.read(reference);
+            release();
+            return reading;
+        }
+
+        private synchronized int drainTo(Collection<? super Reading> target, int maxItems) {
+            int count = 0;
+            while (count < maxItems && !returned.isEmpty()) {
+                target.add(returned.pollFirst());
+                count++;
+            }
+
+            while (count < maxItems && head != null && !head.isDrained()) {
+                target.add(head.read(reference));
+                count++;
+                release();
+            }
+
+            return count;
+        }
+
+        private synchronized Lease<Reading> lease(int maxItems) {
+            final List<Reading> readings = new ArrayList<>();
+            final int redelivered = Math.min(returned.size(), maxItems);
+            drainTo(readings, maxItems);
+            return new PolledLease<>(readings, redelivered, this::restore);
+        }
+
+        private synchronized void restore(List<Reading> readings) {
+            final ListIterator<Reading> iterator = readings.listIterator(readings.size());
+            while (iterator.hasPrevious()) {
+                returned.addFirst(iterator.previous());
+            }
+        }
+
+        private synchronized void remove(long utc, long value, boolean decimal) {
+            for (Iterator<Reading> iterator = returned.iterator(); iterator.hasNext(); ) {
+                final Reading reading = iterator.next();
+                final NumericValueList stored = (NumericValueList) reading.getValues();
+                if (reading.getUtc() == utc && stored.isDecimal() == decimal
+                        && (decimal ? Double.doubleToRawLongBits(stored.doubleValue()) : stored.longValue()) == value) {
+                    iterator.remove();
+                    return;
+                }
+            }
+
+            Chunk previous = null;
+            for (Chunk chunk = head; chunk != null; previous = chunk, chunk = chunk.next) {
+                if (chunk.decimal != decimal) {
+                    continue;
+                }
+
+                for (int i = chunk.read; i < chunk.size; i++) {
+                    if (chunk.utc[i] == utc && chunk.values[i] == value) {
+                        System.arraycopy(chunk.utc, i + 1, chunk.utc, i, chunk.size - i - 1);
+                        System.arraycopy(chunk.values, i + 1, chunk.values, i, chunk.size - i - 1);
+                        chunk.size--;
+                        if (chunk.isDrained()) {
+                            unlink(previous, chunk);
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        private synchronized int removeIf(Predicate<? super Reading> filter) {
+            int removed = 0;
+            for (Iterator<Reading> iterator = returned.iterator(); iterator.hasNext(); ) {
+                if (filter.test(iterator.next())) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+
+            Chunk previous = null;
+            Chunk chunk = head;
+            while (chunk != null) {
+                int kept = chunk.read;
+                for (int i = chunk.read; i < chunk.size; i++) {
+                    if (filter.test(chunk.get(reference, i))) {
+                        removed++;
+                    } else {
+                        chunk.utc[kept] = chunk.utc[i];
+                        chunk.values[kept] = chunk.values[i];
+                        kept++;
+                    }
+                }
+                chunk.size = kept;
+
+                final Chunk next = chunk.next;
+                if (chunk.isDrained()) {
+                    unlink(previous, chunk);
+                } else {
+                    previous = chunk;
+                }
+                chunk = next;
+            }
+
+            return removed;
+        }
+
+        /**
+         * Drops a chunk left empty by a removal, as drains stop at the first empty chunk.
+         */
+        private void unlink(Chunk previous, Chunk chunk) {
+            if (chunk == head) {
+                release();
+                return;
+            }
+
+            previous.next = chunk.next;
+            if (chunk == tail) {
+                tail = previous;
+            }
+            recycle(chunk);
+        }
+
+        private synchronized void clear() {
+            returned.clear();
+            if (tail == null) {
+                return;
+            }
+
+            while (head != tail) {
+                final Chunk next = head.next;
+                recycle(head);
+                head = next;
+            }
+            tail.reset(tail.decimal);
+        }
+
+        /**
+         * Moves past the head chunk once it is drained. The last chunk is kept for reuse.
+         */
+        private void release() {
+            if (!head.isDrained()) {
+                return;
+            }
+
+            if (head == tail) {
+                head.reset(head.decimal);
+            } else {
+                final Chunk drained = head;
+                head = head.next;
+                recycle(drained);
+            }
+        }
+
+        private Chunk newChunk(int capacity, boolean decimal) {
+            if (spare == null) {
+                return new Chunk(capacity, decimal);
+            }
+
+            final Chunk chunk = spare;
+            spare = chunk.next;
+            spareCount--;
+            chunk.next = null;
+            chunk.reset(decimal);
+            return chunk;
+        }
+
+        private void recycle(Chunk chunk) {
+            // Only chunks of the largest size are kept, as those are the ones a busy column allocates.
+            if (chunk.utc.length == MAX_CHUNK_SIZE && spareCount < MAX_SPARE_CHUNKS) {
+                chunk.next = spare;
+                spare = chunk;
+                spareCount++;
+            }
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long[] utc;
+        private final long[] values;
+        private boolean decimal;
+        private int size;
+        private int read;
+        private Chunk next;
+
+        private Chunk(int capacity, boolean decimal) {
+            this.utc = new long[capacity];
+            this.values = new long[capacity];
+            this.decimal = decimal;
+        }
+
+        private boolean isFull() {
+            return size == utc.length;
+        }
+
+        private boolean isDrained() {
+            return read == size;
+        }
+
+        private Reading read(String reference) {
+            return get(reference, read++);
+        }
+
+        private Reading get(String reference, int index) {
+            return decimal
+                    ? new Reading(reference, Double.longBitsToDouble(values[index]), utc[index])
+                    : new Reading(reference, values[index], utc[index]);
+        }
+
+        private void reset(boolean decimal) {
+            this.decimal = decimal;
+            size = 0;
+            read = 0;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that compacts the oldest readings once the number of stored readings crosses a watermark.
+ * <p>
+ * Compaction takes the oldest readings out of the delegate store until half of the watermark is left,
+ * and replaces the numeric readings of each reference with one multi-value reading per time window,
+ * holding the minimum, maximum, mean and count of the window, in that order. The timestamp of the
+ * aggregate is the start of its window. Other readings are kept as they are.
+ * Compacted readings are drained before the raw readings of the delegate store.
+ * <p>
+ * At most as many compacted readings as the watermark are kept. Above that, adjacent aggregates of
+ * a reference are merged, so their windows grow, and if that is not enough the oldest compacted
+ * readings are dropped and counted in {@link #getDroppedReadings()}. Compacted readings returned by
+ * a rolled back lease are neither merged nor dropped.
+ * <p>
+ * Compaction runs on the thread that adds the reading that crosses the watermark.
+ * The number of stored readings is tracked by this store. Removing a raw reading lowers the count
+ * only if the delegate store supports {@link Persistence#removeReadingsIf}.
+ */
+public class CompactingPersistence extends ForwardingPersistence {
+
+    private final int watermark;
+    private final long window;
+
+    private final AtomicLong rawCount = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong compactedReadings = new AtomicLong();
+    private final AtomicLong droppedReadings = new AtomicLong();
+
+    // Guarded by itself.
+    private final Deque<Reading> compacted = new ArrayDeque<>();
+    // Number of compacted readings at the front that were returned by a rolled back lease, guarded by compacted.
+    private int restored;
+
+    /**
+     * @param delegate  Store for the raw readings.
+     * @param watermark Number of raw readings that starts a compaction, and the limit of compacted readings.
+     * @param window    Length of the time window of an aggregate.
+     * @param unit      Unit of the window.
+     */
+    public CompactingPersistence(Persistence delegate, int watermark, long window, TimeUnit unit) {
+        super(delegate);
+
+        if (watermark < 2) {
+            throw new IllegalArgumentException("Watermark must be at least 2.");
+        }
+
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive.");
+        }
+
+        this.watermark = watermark;
+        this.window = unit.toMillis(window);
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        delegate.addReading(reading);
+        added(1);
+    }
+
+    @Override
+    public void addReading(String reference, double value, long utc) {
+        delegate.addReading(reference, value, utc);
+        added(1);
+    }
+
+    @Override
+    public void addReading(String reference, long value, long utc) {
+        delegate.addReading(reference, value, utc);
+        added(1);
+    }
+
+    @Override
+    public Reading poll() {
+        synchronized (compacted) {
+            if (!compacted.isEmpty()) {
+                restored = Math.max(0, restored - 1);
+                return compacted.pollFirst();
+            }
+        }
+
+        final Reading reading = delegate.poll();
+        if (reading != null) {
+            rawCount.decrementAndGet();
+        }
+
+        return reading;
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    /**
+     * Removes a compacted reading, or the first raw reading with the same reference, timestamp and values.
+     */
+    @Override
+    public void remove(Reading reading) {
+        synchronized (compacted) {
+            if (removeCompacted(compactedReading -> compactedReading == reading, 1) > 0) {
+                return;
+            }
+        }
+
+        final boolean[] matched = new boolean[1];
+        final int removed = delegate.removeReadingsIf(rawReading -> {
+            if (matched[0] || !isEqual(rawReading, reading)) {
+                return false;
+            }
+
+            matched[0] = true;
+            return true;
+        });
+
+        if (removed > 0) {
+            rawCount.addAndGet(-removed);
+        } else {
+            delegate.remove(reading);
+        }
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        final int removedCompacted;
+        synchronized (compacted) {
+            removedCompacted = removeCompacted(filter, Integer.MAX_VALUE);
+        }
+
+        final int removedRaw = delegate.removeReadingsIf(filter);
+        rawCount.addAndGet(-removedRaw);
+        return removedCompacted + removedRaw;
+    }
+
+    @Override
+    public void removeAll() {
+        synchronized (compacted) {
+            compacted.clear();
+            restored = 0;
+        }
+
+        delegate.removeAll();
+        rawCount.set(0);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        int count = 0;
+        synchronized (compacted) {
+            while (count < maxItems && !compacted.isEmpty()) {
+                target.add(compacted.pollFirst());
+                count++;
+            }
+            restored = Math.max(0, restored - count);
+        }
+
+        final int drained = delegate.drainTo(target, maxItems - count);
+        rawCount.addAndGet(-drained);
+        return count + drained;
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        final List<Reading> items = new ArrayList<>();
+        final int redelivered;
+        synchronized (compacted) {
+            while (items.size() < maxItems && !compacted.isEmpty()) {
+                items.add(compacted.pollFirst());
+            }
+            redelivered = Math.min(restored, items.size());
+            restored -= redelivered;
+        }
+
+        final Lease<Reading> raw = delegate.leaseReadings(maxItems - items.size());
+        final int rawItems = raw.getItems().size();
+        rawCount.addAndGet(-rawItems);
+
+        final Lease<Reading> rawLease = new Lease<Reading>() {
+            @Override
+            public List<Reading> getItems() {
+                return raw.getItems();
+            }
+
+            @Override
+            public void commit() {
+                raw.commit();
+            }
+
+            @Override
+            public void rollback() {
+                raw.rollback();
+                rawCount.addAndGet(rawItems);
+            }
+
+            @Override
+            public boolean isRedelivered(int index) {
+                return raw.isRedelivered(index);
+            }
+        };
+
+        return new CompositeLease<>(Arrays.asList(new PolledLease<>(items, redelivered, this::restore), rawLease));
+    }
+
+    /**
+     * @return Number of raw readings replaced by aggregates.
+     */
+    public long getCompactedReadings() {
+        return compactedReadings.get();
+    }
+
+    /**
+     * @return Number of compacted readings dropped because the limit of compacted readings was reached.
+     */
+    public long getDroppedReadings() {
+        return droppedReadings.get();
+    }
+
+    /**
+     * Compacts the oldest readings until half of the watermark is left.
+     */
+    public void compact() {
+        final List<Reading> oldest = new ArrayList<>();
+        rawCount.addAndGet(-delegate.drainTo(oldest, (int) Math.max(0, rawCount.get() - watermark / 2)));
+
+        final Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+        final List<Reading> result = new ArrayList<>();
+        for (Reading reading : oldest) {
+            final List<String> values = reading.getValues();
+            final Double value = values.size() == 1 ? toDouble(reading) : null;
+            if (value == null) {
+                result.add(reading);
+                continue;
+            }
+
+            final long start = Math.floorDiv(reading.getUtc(), window) * window;
+            final String key = reading.getReference() + '\n' + start;
+            Aggregate aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                aggregate = new Aggregate(reading.getReference(), start);
+                aggregates.put(key, aggregate);
+                result.add(null);
+                aggregate.position = result.size() - 1;
+            }
+
+            aggregate.add(value);
+        }
+
+        for (Aggregate aggregate : aggregates.values()) {
+            result.set(aggregate.position, aggregate.toReading());
+        }
+
+        compactedReadings.addAndGet(oldest.size() - result.size());
+
+        synchronized (compacted) {
+            compacted.addAll(result);
+            boolean merged = true;
+            while (merged && compacted.size() > watermark) {
+                merged = mergeCompacted();
+            }
+            dropCompacted();
+        }
+    }
+
+    private void added(int count) {
+        if (rawCount.addAndGet(count) <= watermark || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            compact();
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    // Merges pairs of adjacent aggregates of the same reference, called with the lock of compacted held.
+    private boolean mergeCompacted() {
+        final List<Reading> merged = new ArrayList<>(compacted.size());
+        final Map<String, Integer> pending = new HashMap<>();
+        int index = 0;
+        for (Reading reading : compacted) {
+            if (index++ < restored || !(reading instanceof AggregateReading)) {
+                pending.remove(reading.getReference());
+                merged.add(reading);
+                continue;
+            }
+
+            final Integer position = pending.remove(reading.getReference());
+            if (position == null) {
+                pending.put(reading.getReference(), merged.size());
+                merged.add(reading);
+            } else {
+                merged.set(position, ((AggregateReading) merged.get(position)).merge((AggregateReading) reading));
+            }
+        }
+
+        final int count = compacted.size() - merged.size();
+        if (count == 0) {
+            return false;
+        }
+
+        compacted.clear();
+        compacted.addAll(merged);
+        compactedReadings.addAndGet(count);
+        return true;
+    }
+
+    // Drops the oldest compacted readings above the limit, called with the lock of compacted held.
+    private void dropCompacted() {
+        final int count = Math.min(compacted.size() - watermark, compacted.size() - restored);
+        if (count <= 0) {
+            return;
+        }
+
+        final Iterator<Reading> iterator = compacted.iterator();
+        for (int i = 0; i < restored; i++) {
+            iterator.next();
+        }
+
+        for (int i = 0; i < count; i++) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        droppedReadings.addAndGet(count);
+    }
+
+    // Called with the lock of compacted held.
+    private int removeCompacted(Predicate<? super Reading> filter, int maxItems) {
+        int removed = 0;
+        int index = 0;
+        final Iterator<Reading> iterator = compacted.iterator();
+        while (removed < maxItems && iterator.hasNext()) {
+            if (filter.test(iterator.next())) {
+                iterator.remove();
+                removed++;
+                if (index < restored) {
+                    restored--;
+                }
+            } else {
+                index++;
+            }
+        }
+
+        return removed;
+    }
+
+    private void restore(List<Reading> items) {
+        synchronized (compacted) {
+            final ListIterator<Reading> iterator = items.listIterator(items.size());
+            while (iterator.hasPrevious()) {
+                compacted.addFirst(iterator.previous());
+            }
+            restored += items.size();
+        }
+    }
+
+    private static boolean isEqual(Reading first, Reading second) {
+        return first == second || first.getUtc() == second.getUtc()
+                && first.getReference().equals(second.getReference())
+                && first.getValues().equals(second.getValues());
+    }
+
+    private static Double toDouble(Reading reading) {
+        if (reading.getValues() instanceof NumericValueList) {
+            return ((NumericValueList) reading.getValues()).doubleValue();
+        }
+
+        try {
+            return Double.parseDouble(reading.getValues().get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static final class Aggregate {
+
+        private final String reference;
+        private final long start;
+        private int position;
+
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private long count;
+
+        private Aggregate(String reference, long start) {
+            this.reference = reference;
+            this.start = start;
+        }
+
+        private void add(double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+        }
+
+        private Reading toReading() {
+            return new AggregateReading(reference, start, min, max, sum, count);
+        }
+    }
+
+    /**
+     * Compacted reading that keeps the statistics of its window, to be merged with the next window.
+     */
+    private static final class AggregateReading extends Reading {
+
+        private final double min;
+        private final double max;
+        private final double sum;
+        private final long count;
+
+        private AggregateReading(String reference, long start, double min, double max, double sum, long count) {
+            super(reference, Arrays.asList(Double.toString(min), Double.toString(max),
+                    Double.toString(sum / count), Long.toString(count)), start);
+
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.count = count;
+        }
+
+        private AggregateReading merge(AggregateReading next) {
+            return new AggregateReading(getReference(), Math.min(getUtc(), next.getUtc()), Math.min(min, next.min),
+                    Math.max(max, next.max), sum + next.sum, count + next.count);
+        }
+    }
+}
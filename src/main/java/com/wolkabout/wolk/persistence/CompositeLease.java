@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lease over the items of several leases, committed and rolled back together.
+ */
+class CompositeLease<T> implements Lease<T> {
+
+    private final List<Lease<T>> leases;
+    private final List<T> items = new ArrayList<>();
+
+    CompositeLease(List<Lease<T>> leases) {
+        this.leases = leases;
+        for (Lease<T> lease : leases) {
+            items.addAll(lease.getItems());
+        }
+    }
+
+    @Override
+    public List<T> getItems() {
+        return items;
+    }
+
+    @Override
+    public void commit() {
+        for (Lease<T> lease : leases) {
+            lease.commit();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        for (int i = leases.size() - 1; i >= 0; i--) {
+            leases.get(i).rollback();
+        }
+    }
+
+    @Override
+    public boolean isRedelivered(int index) {
+        for (Lease<T> lease : leases) {
+            final int size = lease.getItems().size();
+            if (index < size) {
+                return lease.isRedelivered(index);
+            }
+            index -= size;
+        }
+
+        return false;
+    }
+}
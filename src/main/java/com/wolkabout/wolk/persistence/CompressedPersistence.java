@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that compresses numeric readings into per-reference series of {@link GorillaBlock}s,
+ * using delta-of-delta timestamps and XORed values. A series of a slowly changing sensor sampled at
+ * a regular interval takes a few bits per reading instead of a {@link Reading} object.
+ * <p>
+ * Readings are decompressed one at a time while they are drained.
+ * Readings that are not numeric, and alarms, are kept in an {@link InMemoryPersistence}.
+ * Numeric readings are drained one reference at a time, so they are not returned in the
+ * order they were added across references. Readings of a rolled back lease are returned to the front
+ * of their series. A removed reading is skipped when it is decompressed.
+ */
+public class CompressedPersistence implements Persistence {
+
+    private final ConcurrentMap<String, Series> seriesByReference = new ConcurrentHashMap<>();
+    private final InMemoryPersistence fallback = new InMemoryPersistence();
+
+    @Override
+    public void addReading(Reading reading) {
+        if (!(reading.getValues() instanceof NumericValueList)) {
+            fallback.addReading(reading);
+            return;
+        }
+
+        final NumericValueList value = (NumericValueList) reading.getValues();
+        if (value.isDecimal()) {
+            addReading(reading.getReference(), value.doubleValue(), reading.getUtc());
+        } else {
+            addReading(reading.getReference(), value.longValue(), reading.getUtc());
+        }
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public void addReading(String reference, double value, long utc) {
+        series(reference).add(utc, Double.doubleToRawLongBits(value), true);
+    }
+
+    @Override
+    public void addReading(String reference, long value, long utc) {
+        series(reference).add(utc, value, false);
+    }
+
+    @Override
+    public Reading poll() {
+        for (Series series : seriesByReference.values()) {
+            final Reading reading = series.poll();
+            if (reading != null) {
+                return reading;
+            }
+        }
+
+        return fallback.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        int count = 0;
+        for (Series series : seriesByReference.values()) {
+            if (count == maxItems) {
+                return count;
+            }
+
+            count += series.drainTo(target, maxItems - count);
+        }
+
+        return count + fallback.drainTo(target, maxItems - count);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        final List<Lease<Reading>> leases = new ArrayList<>();
+        int count = 0;
+        for (Series series : seriesByReference.values()) {
+            if (count == maxItems) {
+                break;
+            }
+
+            final Lease<Reading> lease = series.lease(maxItems - count);
+            if (!lease.getItems().isEmpty()) {
+                leases.add(lease);
+                count += lease.getItems().size();
+            }
+        }
+
+        leases.add(fallback.leaseReadings(maxItems - count));
+        return leases.size() == 1 ? leases.get(0) : new CompositeLease<>(leases);
+    }
+
+    /**
+     * Removes the first stored numeric reading with the same reference, timestamp and value,
+     * or the given reading if it is not numeric.
+     */
+    @Override
+    public void remove(Reading reading) {
+        if (!(reading.getValues() instanceof NumericValueList)) {
+            fallback.remove(reading);
+            return;
+        }
+
+        final Series series = seriesByReference.get(reading.getReference());
+        if (series != null) {
+            final NumericValueList value = (NumericValueList) reading.getValues();
+            if (value.isDecimal()) {
+                series.remove(reading.getUtc(), Double.doubleToRawLongBits(value.doubleValue()), true);
+            } else {
+                series.remove(reading.getUtc(), value.longValue(), false);
+            }
+        }
+    }
+
+    /**
+     * Marks the matching points as removed, and drops the leading blocks that hold only removed points.
+     */
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        int removed = 0;
+        for (Series series : seriesByReference.values()) {
+            removed += series.removeIf(filter);
+        }
+
+        return removed + fallback.removeReadingsIf(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        for (Series series : seriesByReference.values()) {
+            series.clear();
+        }
+
+        fallback.removeAll();
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        fallback.addAlarm(alarm);
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return fallback.pollAlarms();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        return fallback.getAllAlarms();
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        fallback.removeAlarm(alarm);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        fallback.removeAllAlarms();
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return fallback.drainAlarmsTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return fallback.leaseAlarms(maxItems);
+    }
+
+    /**
+     * @return Number of bytes held by the compressed series.
+     */
+    public long getCompressedBytes() {
+        long bytes = 0;
+        for (Series series : seriesByReference.values()) {
+            bytes += series.capacity();
+        }
+
+        return bytes;
+    }
+
+    private Series series(String reference) {
+        final Series series = seriesByReference.get(reference);
+        return series != null ? series : seriesByReference.computeIfAbsent(reference, Series::new);
+    }
+
+    private static final class Series {
+
+        private final String reference;
+        private final Deque<GorillaBlock> blocks = new ArrayDeque<>();
+        private final Deque<Reading> returned = new ArrayDeque<>();
+        // Sequence numbers of removed points, counted from the first point of the series.
+        private final Set<Long> removed = new HashSet<>();
+
+        private GorillaBlock.Cursor cursor;
+        // Number of points decoded by the cursor, and by all cursors so far.
+        private int cursorIndex;
+        private long decoded;
+
+        private Series(String reference) {
+            this.reference = reference;
+        }
+
+        private synchronized void add(long utc, long value, boolean decimal) {
+            GorillaBlock block = blocks.peekLast();
+            if (block == null || block.isFull() || block.isDecimal() != decimal) {
+                if (block != null) {
+                    block.seal();
+                }
+
+                block = new GorillaBlock(decimal);
+                blocks.addLast(block);
+            }
+
+            block.append(utc, value);
+        }
+
+        private synchronized Reading poll() {
+            if (!returned.isEmpty()) {
+                return returned.pollFirst();
+            }
+
+            while (advance()) {
+                cursor.next();
+                cursorIndex++;
+                if (!removed.isEmpty() && removed.remove(decoded++)) {
+                    continue;
+                }
+
+                return blocks.peekFirst().isDecimal()
+                        ? new Reading(reference, Double.longBitsToDouble(cursor.value()), cursor.utc())
+                        : new Reading(reference, cursor.value(), cursor.utc());
+            }
+
+            return null;
+        }
+
+        private synchronized Lease<Reading> lease(int maxItems) {
+            final List<Reading> readings = new ArrayList<>();
+            final int redelivered = Math.min(returned.size(), maxItems);
+            drainTo(readings, maxItems);
+            return new PolledLease<>(readings, redelivered, this::restore);
+        }
+
+        private synchronized void restore(List<Reading> readings) {
+            final ListIterator<Reading> iterator = readings.listIterator(readings.size());
+            while (iterator.hasPrevious()) {
+                returned.addFirst(iterator.previous());
+            }
+        }
+
+        private synchronized void remove(long utc, long value, boolean decimal) {
+            for (Iterator<Reading> iterator = returned.iterator(); iterator.hasNext(); ) {
+                final Reading reading = iterator.next();
+                final NumericValueList stored = (NumericValueList) reading.getValues();
+                if (reading.getUtc() == utc && stored.isDecimal() == decimal
+                        && (decimal ? Double.doubleToRawLongBits(stored.doubleValue()) : stored.longValue()) == value) {
+                    iterator.remove();
+                    return;
+                }
+            }
+
+            // Scans the points that were not decoded yet with cursors of its own.
+            long sequence = decoded - cursorIndex;
+            int skipped = cursorIndex;
+            for (GorillaBlock block : blocks) {
+                final GorillaBlock.Cursor scan = block.cursor();
+                while (scan.hasNext()) {
+                    scan.next();
+                    if (skipped > 0) {
+                        skipped--;
+                    } else if (block.isDecimal() == decimal && scan.utc() == utc && scan.value() == value
+                            && removed.add(sequence)) {
+                        return;
+                    }
+                    sequence++;
+                }
+            }
+        }
+
+        private synchronized int removeIf(Predicate<? super Reading> filter) {
+            int count = 0;
+            for (Iterator<Reading> iterator = returned.iterator(); iterator.hasNext(); ) {
+                if (filter.test(iterator.next())) {
+                    iterator.remove();
+                    count++;
+                }
+            }
+
+            long sequence = decoded - cursorIndex;
+            int skipped = cursorIndex;
+            for (GorillaBlock block : blocks) {
+                final GorillaBlock.Cursor scan = block.cursor();
+                while (scan.hasNext()) {
+                    scan.next();
+                    if (skipped > 0) {
+                        skipped--;
+                    } else if (!removed.contains(sequence) && filter.test(block.isDecimal()
+                            ? new Reading(reference, Double.longBitsToDouble(scan.value()), scan.utc())
+                            : new Reading(reference, scan.value(), scan.utc()))) {
+                        removed.add(sequence);
+                        count++;
+                    }
+                    sequence++;
+                }
+            }
+
+            dropRemovedBlocks();
+            return count;
+        }
+
+        /**
+         * Drops the leading blocks whose points left to decode are all removed.
+         */
+        private void dropRemovedBlocks() {
+            while (!blocks.isEmpty()) {
+                final long end = decoded - cursorIndex + blocks.peekFirst().size();
+                for (long sequence = decoded; sequence < end; sequence++) {
+                    if (!removed.contains(sequence)) {
+                        return;
+                    }
+                }
+
+                for (long sequence = decoded; sequence < end; sequence++) {
+                    removed.remove(sequence);
+                }
+                decoded = end;
+                blocks.removeFirst();
+                cursor = null;
+                cursorIndex = 0;
+            }
+        }
+
+        private synchronized int drainTo(Collection<? super Reading> target, int maxItems) {
+            int count = 0;
+            Reading reading;
+            while (count < maxItems && (reading = poll()) != null) {
+                target.add(reading);
+                count++;
+            }
+
+            return count;
+        }
+
+        private synchronized void clear() {
+            blocks.clear();
+            returned.clear();
+            removed.clear();
+            cursor = null;
+            cursorIndex = 0;
+        }
+
+        private synchronized long capacity() {
+            long capacity = 0;
+            for (GorillaBlock block : blocks) {
+                capacity += block.capacity();
+            }
+
+            return capacity;
+        }
+
+        /**
+         * Drops drained blocks.
+         *
+         * @return true if there is a point to decode.
+         */
+        private boolean advance() {
+            while (!blocks.isEmpty()) {
+                if (cursor == null) {
+                    cursor = blocks.peekFirst().cursor();
+                }
+
+                if (cursor.hasNext()) {
+                    return true;
+                }
+
+                if (blocks.size() == 1 && !blocks.peekFirst().isFull()) {
+                    // The last block may still get points, so it is dropped only when drained entirely.
+                    blocks.clear();
+                    cursor = null;
+                    cursorIndex = 0;
+                    return false;
+                }
+
+                blocks.removeFirst();
+                cursor = null;
+                cursorIndex = 0;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that keeps readings and alarms on disk, in append-only logs made of
+ * fixed-size memory-mapped segment files.
+ * <p>
+ * Stored data survives restarts, and the backlog is bounded by the disk instead of the heap.
+ * Segments are deleted as soon as they are drained. Removing a single reading or alarm marks its record
+ * as removed in place.
+ * <p>
+ * Leases are read ahead of the committed position, which only moves past a lease once it and
+ * every lease taken before it are committed. Rolling back a lease also returns all leases taken
+ * after it, so their items are delivered again. Uncommitted leases are replayed after a restart.
+ */
+public class FilePersistence implements Persistence, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final String READINGS_DIRECTORY = "readings";
+    private static final String ALARMS_DIRECTORY = "alarms";
+
+    private final LeasedLog<Reading> readingLog;
+    private final LeasedLog<Alarm> alarmLog;
+
+    public FilePersistence(String directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   Directory where the segment files are kept.
+     * @param segmentSize Size of a single segment file in bytes.
+     */
+    public FilePersistence(String directory, int segmentSize) {
+        if (directory == null || directory.isEmpty()) {
+            throw new IllegalArgumentException("Persistence directory must be set.");
+        }
+
+        readingLog = new LeasedLog<>(new SegmentedLog(new File(directory, READINGS_DIRECTORY), segmentSize),
+                FilePersistence::decodeReading);
+        alarmLog = new LeasedLog<>(new SegmentedLog(new File(directory, ALARMS_DIRECTORY), segmentSize),
+                FilePersistence::decodeAlarm);
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        readingLog.log.append(encode(reading));
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public Reading poll() {
+        return readingLog.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    /**
+     * Marks the first stored reading with the same reference, timestamp and values as removed.
+     * The log is scanned from its committed position, and removed readings are skipped when read.
+     */
+    @Override
+    public void remove(Reading reading) {
+        final byte[] record = encode(reading);
+        readingLog.log.remove(stored -> Arrays.equals(stored, record), 1);
+    }
+
+    @Override
+    public void removeAll() {
+        readingLog.clear();
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return readingLog.log.remove(record -> filter.test(decodeReading(record)), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        alarmLog.log.append(encode(alarm));
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return alarmLog.poll();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        final List<Alarm> alarms = new ArrayList<>();
+        drainAlarmsTo(alarms, Integer.MAX_VALUE);
+        return alarms;
+    }
+
+    /**
+     * @see #remove(Reading)
+     */
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        final byte[] record = encode(alarm);
+        alarmLog.log.remove(stored -> Arrays.equals(stored, record), 1);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        alarmLog.clear();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        return readingLog.drainTo(target, maxItems);
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return alarmLog.drainTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        return readingLog.lease(maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return alarmLog.lease(maxItems);
+    }
+
+    public boolean isEmpty() {
+        return readingLog.log.isEmpty() && alarmLog.log.isEmpty();
+    }
+
+    /**
+     * Flushes the mapped segments to the disk.
+     */
+    @Override
+    public void close() {
+        readingLog.log.close();
+        alarmLog.log.close();
+    }
+
+    private static byte[] encode(Reading reading) {
+        final byte[] reference = reading.getReference().getBytes(StandardCharsets.UTF_8);
+        final List<String> values = reading.getValues();
+        final byte[][] encodedValues = new byte[values.size()][];
+
+        int size = Integer.BYTES + reference.length + Long.BYTES + Integer.BYTES;
+        for (int i = 0; i < values.size(); i++) {
+            encodedValues[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + encodedValues[i].length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        putBytes(buffer, reference);
+        buffer.putLong(reading.getUtc());
+        buffer.putInt(encodedValues.length);
+        for (byte[] value : encodedValues) {
+            putBytes(buffer, value);
+        }
+
+        return buffer.array();
+    }
+
+    private static Reading decodeReading(byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        final String reference = getString(buffer);
+        final long utc = buffer.getLong();
+        final int count = buffer.getInt();
+        final List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getString(buffer));
+        }
+
+        return new Reading(reference, values, utc);
+    }
+
+    private static byte[] encode(Alarm alarm) {
+        final byte[] reference = alarm.getReference().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + reference.length + 1 + Long.BYTES);
+        putBytes(buffer, reference);
+        buffer.put((byte) (Boolean.parseBoolean(alarm.getActive()) ? 1 : 0));
+        buffer.putLong(alarm.getUtc());
+        return buffer.array();
+    }
+
+    private static Alarm decodeAlarm(byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        final String reference = getString(buffer);
+        final boolean active = buffer.get() == 1;
+        final long utc = buffer.getLong();
+        return new Alarm(reference, active, utc);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static class LeasedLog<T> {
+
+        private final SegmentedLog log;
+        private final Function<byte[], T> decoder;
+        private final Deque<LogLease> leases = new ArrayDeque<>();
+        // End of the records read by rolled back leases, which are read again before it.
+        private SegmentedLog.Position redeliveredEnd;
+
+        private LeasedLog(SegmentedLog log, Function<byte[], T> decoder) {
+            this.log = log;
+            this.decoder = decoder;
+        }
+
+        private synchronized T poll() {
+            final Lease<T> lease = lease(1);
+            lease.commit();
+            return lease.getItems().isEmpty() ? null : lease.getItems().get(0);
+        }
+
+        private synchronized int drainTo(Collection<? super T> target, int maxItems) {
+            final Lease<T> lease = lease(maxItems);
+            lease.commit();
+            target.addAll(lease.getItems());
+            return lease.getItems().size();
+        }
+
+        private synchronized Lease<T> lease(int maxItems) {
+            final SegmentedLog.Position start = log.position();
+            final List<T> items = new ArrayList<>();
+            int redelivered = 0;
+            byte[] record;
+            while (items.size() < maxItems && (record = log.read()) != null) {
+                items.add(decoder.apply(record));
+                if (redeliveredEnd != null && !redeliveredEnd.isBefore(log.position())) {
+                    redelivered = items.size();
+                }
+            }
+
+            final LogLease lease = new LogLease(items, redelivered, start, log.position());
+            if (!items.isEmpty()) {
+                leases.addLast(lease);
+            }
+
+            return lease;
+        }
+
+        private synchronized void commit(LogLease lease) {
+            if (!leases.contains(lease)) {
+                return;
+            }
+
+            lease.committed = true;
+            while (!leases.isEmpty() && leases.peekFirst().committed) {
+                log.commit(leases.removeFirst().end);
+            }
+        }
+
+        private synchronized void rollback(LogLease lease) {
+            if (!leases.contains(lease) || lease.committed) {
+                return;
+            }
+
+            final SegmentedLog.Position end = leases.peekLast().end;
+            if (redeliveredEnd == null || redeliveredEnd.isBefore(end)) {
+                redeliveredEnd = end;
+            }
+
+            while (leases.peekLast() != lease) {
+                leases.removeLast();
+            }
+            leases.removeLast();
+
+            log.rewind(lease.start);
+        }
+
+        private synchronized void clear() {
+            leases.clear();
+            redeliveredEnd = null;
+            log.clear();
+        }
+
+        private class LogLease implements Lease<T> {
+
+            private final List<T> items;
+            private final int redelivered;
+            private final SegmentedLog.Position start;
+            private final SegmentedLog.Position end;
+            private boolean committed;
+
+            private LogLease(List<T> items, int redelivered, SegmentedLog.Position start, SegmentedLog.Position end) {
+                this.items = items;
+                this.redelivered = redelivered;
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            public List<T> getItems() {
+                return items;
+            }
+
+            @Override
+            public void commit() {
+                LeasedLog.this.commit(this);
+            }
+
+            @Override
+            public void rollback() {
+                LeasedLog.this.rollback(this);
+            }
+
+            @Override
+            public boolean isRedelivered(int index) {
+                return index < redelivered;
+            }
+        }
+    }
+}
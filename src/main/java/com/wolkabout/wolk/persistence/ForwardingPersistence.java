@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that forwards every call to another persistence store.
+ * Extended by stores that change how a part of the data is kept.
+ */
+public abstract class ForwardingPersistence implements Persistence {
+
+    protected final Persistence delegate;
+
+    protected ForwardingPersistence(Persistence delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate persistence must be set.");
+        }
+
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        delegate.addReading(reading);
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public void addReading(String reference, double value, long utc) {
+        delegate.addReading(reference, value, utc);
+    }
+
+    @Override
+    public void addReading(String reference, long value, long utc) {
+        delegate.addReading(reference, value, utc);
+    }
+
+    @Override
+    public Reading poll() {
+        return delegate.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        return delegate.getAll();
+    }
+
+    @Override
+    public void remove(Reading reading) {
+        delegate.remove(reading);
+    }
+
+    @Override
+    public void removeAll() {
+        delegate.removeAll();
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return delegate.removeReadingsIf(filter);
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        delegate.addAlarm(alarm);
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return delegate.pollAlarms();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        return delegate.getAllAlarms();
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        delegate.removeAlarm(alarm);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        delegate.removeAllAlarms();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        return delegate.drainTo(target, maxItems);
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return delegate.drainAlarmsTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        return delegate.leaseReadings(maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return delegate.leaseAlarms(maxItems);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Compressed block of a numeric time series, encoded as in Facebook's Gorilla paper.
+ * <p>
+ * The first point is stored in full. Every following timestamp is stored as the difference
+ * between its delta and the previous delta, which takes a single bit for evenly spaced points.
+ * Every following value is XORed with the previous one, and only the meaningful bits of the
+ * result are stored, which takes a single bit for an unchanged value.
+ * Values are 64-bit patterns: raw double bits or longs.
+ */
+final class GorillaBlock {
+
+    static final int MAX_POINTS = 1024;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final boolean decimal;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int bitCount;
+    private int count;
+
+    private long lastUtc;
+    private long lastDelta;
+    private long lastValue;
+    private int windowLeading = -1;
+    private int windowTrailing;
+
+    GorillaBlock(boolean decimal) {
+        this.decimal = decimal;
+    }
+
+    boolean isDecimal() {
+        return decimal;
+    }
+
+    boolean isFull() {
+        return count == MAX_POINTS;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return Number of bytes held by the block.
+     */
+    int capacity() {
+        return bytes.length;
+    }
+
+    void append(long utc, long value) {
+        if (count == 0) {
+            writeBits(utc, Long.SIZE);
+            writeBits(value, Long.SIZE);
+        } else {
+            final long delta = utc - lastUtc;
+            writeTimestamp(delta - lastDelta);
+            writeValue(value ^ lastValue);
+            lastDelta = delta;
+        }
+
+        lastUtc = utc;
+        lastValue = value;
+        count++;
+    }
+
+    /**
+     * Releases the unused part of the buffer once no more points will be appended.
+     */
+    void seal() {
+        bytes = Arrays.copyOf(bytes, (bitCount + Byte.SIZE - 1) / Byte.SIZE);
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    private void writeTimestamp(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(deltaOfDelta, Long.SIZE);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+
+        final int leading = Long.numberOfLeadingZeros(xor);
+        final int trailing = Long.numberOfTrailingZeros(xor);
+        if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> windowTrailing, Long.SIZE - windowLeading - windowTrailing);
+            return;
+        }
+
+        final int length = Long.SIZE - leading - trailing;
+        writeBits(0b11, 2);
+        writeBits(leading, 6);
+        writeBits(length - 1, 6);
+        writeBits(xor >>> trailing, length);
+        windowLeading = leading;
+        windowTrailing = trailing;
+    }
+
+    private void writeBits(long value, int bits) {
+        final int required = (bitCount + bits + Byte.SIZE - 1) / Byte.SIZE;
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+        }
+
+        int remaining = bits;
+        while (remaining > 0) {
+            final int free = Byte.SIZE - (bitCount & 7);
+            final int taken = Math.min(free, remaining);
+            final int chunk = (int) (value >>> (remaining - taken)) & ((1 << taken) - 1);
+            bytes[bitCount >>> 3] |= chunk << (free - taken);
+            bitCount += taken;
+            remaining -= taken;
+        }
+    }
+
+    /**
+     * Decodes the points of the block in order. Points appended after the cursor was created
+     * are decoded as well.
+     */
+    final class Cursor {
+
+        private int position;
+        private int index;
+
+        private long utc;
+        private long delta;
+        private long value;
+        private int leading = -1;
+        private int trailing;
+
+        boolean hasNext() {
+            return index < count;
+        }
+
+        /**
+         * Decodes the next point, which is then available from {@link #utc()} and {@link #value()}.
+         */
+        void next() {
+            if (index == 0) {
+                utc = readBits(Long.SIZE);
+                value = readBits(Long.SIZE);
+            } else {
+                delta += readTimestamp();
+                utc += delta;
+                value ^= readValue();
+            }
+
+            index++;
+        }
+
+        long utc() {
+            return utc;
+        }
+
+        long value() {
+            return value;
+        }
+
+        private long readTimestamp() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+
+            if (readBits(1) == 0) {
+                return readBits(7) - 63;
+            }
+
+            if (readBits(1) == 0) {
+                return readBits(9) - 255;
+            }
+
+            if (readBits(1) == 0) {
+                return readBits(12) - 2047;
+            }
+
+            return readBits(Long.SIZE);
+        }
+
+        private long readValue() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+
+            if (readBits(1) == 1) {
+                leading = (int) readBits(6);
+                trailing = Long.SIZE - leading - ((int) readBits(6) + 1);
+            }
+
+            return readBits(Long.SIZE - leading - trailing) << trailing;
+        }
+
+        private long readBits(int bits) {
+            long result = 0;
+            int remaining = bits;
+            while (remaining > 0) {
+                final int available = Byte.SIZE - (position & 7);
+                final int taken = Math.min(available, remaining);
+                final int chunk = (bytes[position >>> 3] >>> (available - taken)) & ((1 << taken) - 1);
+                result = (result << taken) | chunk;
+                position += taken;
+                remaining -= taken;
+            }
+
+            return result;
+        }
+    }
+}
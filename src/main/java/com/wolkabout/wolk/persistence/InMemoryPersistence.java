@@ -22,22 +22,27 @@ import com.wolkabout.wolk.model.Reading;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
 
+/**
+ * Unbounded in-memory persistence. Readings and alarms are added without locking,
+ * so many threads can add data while the publish task drains it.
+ */
 public class InMemoryPersistence implements Persistence {
 
-    private final Queue<Reading> store = new LinkedBlockingQueue<>();
-    private final Queue<Alarm> alarmStore = new LinkedBlockingQueue<>();
+    private final MpscQueue<Reading> store = new MpscQueue<>();
+    private final MpscQueue<Alarm> alarmStore = new MpscQueue<>();
 
     @Override
     public void addReading(Reading reading) {
-        store.add(reading);
+        store.offer(reading);
     }
 
     @Override
     public void addReadings(Collection<Reading> readings) {
-        store.addAll(readings);
+        for (Reading reading : readings) {
+            store.offer(reading);
+        }
     }
 
     @Override
@@ -47,8 +52,8 @@ public class InMemoryPersistence implements Persistence {
 
     @Override
     public List<Reading> getAll() {
-        final ArrayList<Reading> readings = new ArrayList<>(store);
-        store.clear();
+        final ArrayList<Reading> readings = new ArrayList<>();
+        store.drainTo(readings, Integer.MAX_VALUE);
         return readings;
     }
 
@@ -62,9 +67,14 @@ public class InMemoryPersistence implements Persistence {
         store.clear();
     }
 
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return store.removeIf(filter, Integer.MAX_VALUE);
+    }
+
     @Override
     public void addAlarm(Alarm alarm) {
-        alarmStore.add(alarm);
+        alarmStore.offer(alarm);
     }
 
     @Override
@@ -74,8 +84,8 @@ public class InMemoryPersistence implements Persistence {
 
     @Override
     public List<Alarm> getAllAlarms() {
-        final ArrayList<Alarm> alarms = new ArrayList<>(alarmStore);
-        alarmStore.clear();
+        final ArrayList<Alarm> alarms = new ArrayList<>();
+        alarmStore.drainTo(alarms, Integer.MAX_VALUE);
         return alarms;
     }
 
@@ -86,7 +96,27 @@ public class InMemoryPersistence implements Persistence {
 
     @Override
     public void removeAllAlarms() {
-        store.clear();
+        alarmStore.clear();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        return store.drainTo(target, maxItems);
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return alarmStore.drainTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        return store.lease(maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return alarmStore.lease(maxItems);
     }
 
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.List;
+
+/**
+ * Batch of items taken from a {@link Persistence} store.
+ * The items are removed from the store only when the lease is committed.
+ * Rolling the lease back returns the items to the store. Where they are returned depends on the store:
+ * the stores of this package return them to the front, so they are leased again first, while the default
+ * {@link Persistence#leaseReadings(int)} adds them back to the end.
+ * Once either is called, further calls have no effect.
+ *
+ * @param <T> Type of the leased items
+ */
+public interface Lease<T> {
+
+    List<T> getItems();
+
+    void commit();
+
+    void rollback();
+
+    /**
+     * Tells if an item was leased before and rolled back, so it may have been delivered already.
+     * Stores that do not keep track of rolled back items report false.
+     *
+     * @param index Index of the item in {@link #getItems()}
+     */
+    default boolean isRedelivered(int index) {
+        return false;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded multi-producer, single-consumer queue made of linked fixed-size array chunks.
+ * <p>
+ * Producers never lock: each one claims a slot by incrementing the producer index and writes
+ * its item into the slot. The consumer side is synchronized, so several threads may drain the
+ * queue, but only one at a time. An item whose producer claimed a slot but has not written it
+ * yet is not visible to the consumer, which then stops at that slot.
+ */
+class MpscQueue<T> {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final Object REMOVED = new Object();
+
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicReference<Chunk> producerChunk;
+
+    // Consumer state, guarded by this.
+    private final Deque<T> returned = new ArrayDeque<>();
+    private Chunk consumerChunk;
+    private long consumerIndex;
+
+    MpscQueue() {
+        final Chunk first = new Chunk(0, null);
+        producerChunk = new AtomicReference<>(first);
+        consumerChunk = first;
+    }
+
+    void offer(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item must not be null.");
+        }
+
+        final long index = producerIndex.getAndIncrement();
+        final Chunk chunk = producerChunkFor(index >>> CHUNK_SHIFT);
+        chunk.slots.lazySet((int) (index & CHUNK_MASK), item);
+    }
+
+    synchronized T poll() {
+        if (!returned.isEmpty()) {
+            return returned.pollFirst();
+        }
+
+        Object item;
+        do {
+            item = take();
+        } while (item == REMOVED);
+
+        return cast(item);
+    }
+
+    synchronized int drainTo(Collection<? super T> target, int maxItems) {
+        int count = 0;
+        while (count < maxItems && !returned.isEmpty()) {
+            target.add(returned.pollFirst());
+            count++;
+        }
+
+        while (count < maxItems) {
+            final Object item = take();
+            if (item == null) {
+                break;
+            }
+
+            if (item != REMOVED) {
+                target.add(cast(item));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Polls up to the given number of items under a lease, which puts them back in front of the queue on rollback.
+     */
+    synchronized Lease<T> lease(int maxItems) {
+        final List<T> items = new ArrayList<>();
+        final int redelivered = Math.min(returned.size(), maxItems);
+        drainTo(items, maxItems);
+        return new PolledLease<>(items, redelivered, this::restore);
+    }
+
+    /**
+     * Puts the items back in front of the queue.
+     */
+    synchronized void restore(List<T> items) {
+        final ListIterator<T> iterator = items.listIterator(items.size());
+        while (iterator.hasPrevious()) {
+            returned.addFirst(iterator.previous());
+        }
+    }
+
+    /**
+     * Replaces the first occurrence of the item that is visible to the consumer with a tombstone.
+     */
+    synchronized void remove(Object item) {
+        removeIf(item::equals, 1);
+    }
+
+    /**
+     * Replaces up to the given number of items that are visible to the consumer and match the filter
+     * with tombstones.
+     *
+     * @return Number of removed items.
+     */
+    synchronized int removeIf(Predicate<? super T> filter, int maxItems) {
+        int removed = 0;
+        final Iterator<T> iterator = returned.iterator();
+        while (removed < maxItems && iterator.hasNext()) {
+            if (filter.test(iterator.next())) {
+                iterator.remove();
+                removed++;
+            }
+        }
+
+        Chunk chunk = consumerChunk;
+        long index = consumerIndex;
+        final long end = producerIndex.get();
+        while (removed < maxItems && index < end) {
+            if (chunk.id < index >>> CHUNK_SHIFT) {
+                chunk = chunk.next.get();
+                if (chunk == null) {
+                    break;
+                }
+            }
+
+            final int offset = (int) (index & CHUNK_MASK);
+            final Object current = chunk.slots.get(offset);
+            if (current == null) {
+                break;
+            }
+
+            if (current != REMOVED && filter.test(cast(current))
+                    && chunk.slots.compareAndSet(offset, current, REMOVED)) {
+                removed++;
+            }
+
+            index++;
+        }
+
+        return removed;
+    }
+
+    synchronized void clear() {
+        returned.clear();
+        while (take() != null) {
+            // Drop everything that is visible to the consumer.
+        }
+    }
+
+    /**
+     * @return Approximate number of stored items, including removed items that were not drained yet.
+     */
+    synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, producerIndex.get() - consumerIndex + returned.size());
+    }
+
+    /**
+     * Takes the item at the consumer index.
+     *
+     * @return The item, {@link #REMOVED}, or null if the next slot is not written yet.
+     */
+    private Object take() {
+        final long chunkId = consumerIndex >>> CHUNK_SHIFT;
+        if (consumerChunk.id < chunkId) {
+            final Chunk next = consumerChunk.next.get();
+            if (next == null) {
+                return null;
+            }
+
+            // Producers walk back over previous links, but never to a chunk the consumer has left.
+            next.previous = null;
+            consumerChunk = next;
+        }
+
+        final int offset = (int) (consumerIndex & CHUNK_MASK);
+        final Object item = consumerChunk.slots.get(offset);
+        if (item == null) {
+            return null;
+        }
+
+        consumerChunk.slots.lazySet(offset, null);
+        consumerIndex++;
+        return item;
+    }
+
+    private Chunk producerChunkFor(long chunkId) {
+        Chunk chunk = producerChunk.get();
+        while (chunk.id < chunkId) {
+            Chunk next = chunk.next.get();
+            if (next == null) {
+                final Chunk created = new Chunk(chunk.id + 1, chunk);
+                next = chunk.next.compareAndSet(null, created) ? created : chunk.next.get();
+            }
+
+            chunk = next;
+        }
+
+        // A slow producer may find that faster ones have already moved on to later chunks.
+        while (chunk.id > chunkId) {
+            chunk = chunk.previous;
+        }
+
+        Chunk current = producerChunk.get();
+        while (current.id < chunk.id && !producerChunk.compareAndSet(current, chunk)) {
+            current = producerChunk.get();
+        }
+
+        return chunk;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T cast(Object item) {
+        return (T) item;
+    }
+
+    private static final class Chunk {
+
+        private final long id;
+        private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+        private final AtomicReference<Chunk> next = new AtomicReference<>();
+        private volatile Chunk previous;
+
+        private Chunk(long id, Chunk previous) {
+            this.id = id;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that encodes readings into pooled direct {@link ByteBuffer} slabs outside the heap,
+ * so a large backlog does not add to garbage collection work.
+ * <p>
+ * A reading is stored as the id of its reference, its timestamp and its typed value.
+ * Numeric readings are stored and restored without formatting their value, which happens only
+ * when they are serialized. Drained slabs are returned to a pool of at most {@code maxPooledSlabs}.
+ * <p>
+ * A removed reading is marked in its slab and skipped when drained. Alarms are kept in an {@link InMemoryPersistence}.
+ */
+public class OffHeapPersistence implements Persistence {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_POOLED_SLABS = 16;
+
+    private static final byte LONG_VALUE = 0;
+    private static final byte DOUBLE_VALUE = 1;
+    private static final byte STRING_VALUES = 2;
+    // Set in the type of a removed reading.
+    private static final byte REMOVED = (byte) 0x80;
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + 1;
+
+    private final int slabSize;
+    private final int maxPooledSlabs;
+
+    // Guarded by this.
+    private final Deque<Slab> slabs = new ArrayDeque<>();
+    private final Deque<ByteBuffer> pool = new ArrayDeque<>();
+    private final Deque<Reading> returned = new ArrayDeque<>();
+    private final Map<String, Integer> referenceIds = new HashMap<>();
+    private final List<String> references = new ArrayList<>();
+    private int readingCount;
+    private long bytesInUse;
+    private long allocatedSlabs;
+
+    private final InMemoryPersistence alarms = new InMemoryPersistence();
+
+    public OffHeapPersistence() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_SLABS);
+    }
+
+    /**
+     * @param slabSize       Size of a single slab in bytes.
+     * @param maxPooledSlabs Maximum number of drained slabs kept for reuse.
+     */
+    public OffHeapPersistence(int slabSize, int maxPooledSlabs) {
+        if (slabSize <= HEADER_SIZE + Long.BYTES) {
+            throw new IllegalArgumentException("Slab size is too small: " + slabSize);
+        }
+
+        if (maxPooledSlabs < 0) {
+            throw new IllegalArgumentException("Maximum number of pooled slabs must not be negative.");
+        }
+
+        this.slabSize = slabSize;
+        this.maxPooledSlabs = maxPooledSlabs;
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        final List<String> values = reading.getValues();
+        if (values instanceof NumericValueList) {
+            final NumericValueList value = (NumericValueList) values;
+            if (value.isDecimal()) {
+                addReading(reading.getReference(), value.doubleValue(), reading.getUtc());
+            } else {
+                addReading(reading.getReference(), value.longValue(), reading.getUtc());
+            }
+            return;
+        }
+
+        final byte[][] encoded = new byte[values.size()][];
+        int size = HEADER_SIZE + Integer.BYTES;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + encoded[i].length;
+        }
+
+        synchronized (this) {
+            final ByteBuffer buffer = writeHeader(reading.getReference(), reading.getUtc(), STRING_VALUES, size);
+            buffer.putInt(encoded.length);
+            for (byte[] value : encoded) {
+                buffer.putInt(value.length);
+                buffer.put(value);
+            }
+        }
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public synchronized void addReading(String reference, double value, long utc) {
+        writeHeader(reference, utc, DOUBLE_VALUE, HEADER_SIZE + Long.BYTES).putDouble(value);
+    }
+
+    @Override
+    public synchronized void addReading(String reference, long value, long utc) {
+        writeHeader(reference, utc, LONG_VALUE, HEADER_SIZE + Long.BYTES).putLong(value);
+    }
+
+    @Override
+    public synchronized Reading poll() {
+        if (!returned.isEmpty()) {
+            return returned.pollFirst();
+        }
+
+        return readingCount == 0 ? null : read();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Reading> target, int maxItems) {
+        int count = 0;
+        while (count < maxItems && !returned.isEmpty()) {
+            target.add(returned.pollFirst());
+            count++;
+        }
+
+        while (count < maxItems && readingCount > 0) {
+            target.add(read());
+            count++;
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized Lease<Reading> leaseReadings(int maxItems) {
+        final List<Reading> readings = new ArrayList<>();
+        final int redelivered = Math.min(returned.size(), maxItems);
+        drainTo(readings, maxItems);
+        return new PolledLease<>(readings, redelivered, this::restore);
+    }
+
+    /**
+     * Removes the first stored reading with the same reference, timestamp and values.
+     */
+    @Override
+    public void remove(Reading reading) {
+        removeIf(stored -> isEqual(stored, reading), 1);
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return removeIf(filter, Integer.MAX_VALUE);
+    }
+
+    private synchronized int removeIf(Predicate<? super Reading> filter, int maxItems) {
+        int removed = 0;
+        final Iterator<Reading> iterator = returned.iterator();
+        while (removed < maxItems && iterator.hasNext()) {
+            if (filter.test(iterator.next())) {
+                iterator.remove();
+                removed++;
+            }
+        }
+
+        for (Slab slab : slabs) {
+            final ByteBuffer buffer = slab.buffer;
+            int start = slab.readIndex;
+            while (removed < maxItems && start < buffer.position()) {
+                final int typeIndex = start + Integer.BYTES + Long.BYTES;
+                final int end = recordEnd(buffer, start);
+                if ((buffer.get(typeIndex) & REMOVED) == 0 && filter.test(decode(buffer, start))) {
+                    buffer.put(typeIndex, (byte) (buffer.get(typeIndex) | REMOVED));
+                    readingCount--;
+                    bytesInUse -= end - start;
+                    removed++;
+                }
+                start = end;
+            }
+        }
+
+        if (removed > 0 && readingCount == 0) {
+            rewind();
+        }
+
+        return removed;
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        returned.clear();
+        while (!slabs.isEmpty()) {
+            release(slabs.pollFirst().buffer);
+        }
+
+        readingCount = 0;
+        bytesInUse = 0;
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        alarms.addAlarm(alarm);
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return alarms.pollAlarms();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        return alarms.getAllAlarms();
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        alarms.removeAlarm(alarm);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        alarms.removeAllAlarms();
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return alarms.drainAlarmsTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return alarms.leaseAlarms(maxItems);
+    }
+
+    /**
+     * @return Number of slabs holding readings.
+     */
+    public synchronized int getSlabCount() {
+        return slabs.size();
+    }
+
+    /**
+     * @return Number of drained slabs kept for reuse.
+     */
+    public synchronized int getPooledSlabCount() {
+        return pool.size();
+    }
+
+    /**
+     * @return Number of slab bytes taken by stored readings.
+     */
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    /**
+     * @return Number of slabs allocated since the store was created.
+     * A number that keeps growing means the pool is too small for the backlog.
+     */
+    public synchronized long getAllocatedSlabs() {
+        return allocatedSlabs;
+    }
+
+    public synchronized int getReadingCount() {
+        return readingCount + returned.size();
+    }
+
+    private ByteBuffer writeHeader(String reference, long utc, byte type, int size) {
+        if (size > slabSize) {
+            throw new IllegalArgumentException("Reading of " + size + " bytes does not fit into a slab.");
+        }
+
+        Slab slab = slabs.peekLast();
+        if (slab == null || slab.buffer.remaining() < size) {
+            slab = new Slab(acquire());
+            slabs.addLast(slab);
+        }
+
+        final ByteBuffer buffer = slab.buffer;
+        buffer.putInt(referenceId(reference));
+        buffer.putLong(utc);
+        buffer.put(type);
+
+        readingCount++;
+        bytesInUse += size;
+        return buffer;
+    }
+
+    private Reading read() {
+        Slab slab = slabs.peekFirst();
+        while (true) {
+            if (slab.readIndex == slab.buffer.position()) {
+                release(slabs.pollFirst().buffer);
+                slab = slabs.peekFirst();
+            } else if ((slab.buffer.get(slab.readIndex + Integer.BYTES + Long.BYTES) & REMOVED) != 0) {
+                slab.readIndex = recordEnd(slab.buffer, slab.readIndex);
+            } else {
+                break;
+            }
+        }
+
+        final int start = slab.readIndex;
+        final Reading reading = decode(slab.buffer, start);
+        final int end = recordEnd(slab.buffer, start);
+        slab.readIndex = end;
+        readingCount--;
+        bytesInUse -= end - start;
+
+        if (readingCount == 0) {
+            rewind();
+        }
+
+        return reading;
+    }
+
+    private Reading decode(ByteBuffer buffer, int start) {
+        final String reference = references.get(buffer.getInt(start));
+        final long utc = buffer.getLong(start + Integer.BYTES);
+        final byte type = (byte) (buffer.get(start + Integer.BYTES + Long.BYTES) & ~REMOVED);
+        int index = start + HEADER_SIZE;
+
+        if (type == DOUBLE_VALUE) {
+            return new Reading(reference, buffer.getDouble(index), utc);
+        } else if (type == LONG_VALUE) {
+            return new Reading(reference, buffer.getLong(index), utc);
+        }
+
+        final int count = buffer.getInt(index);
+        index += Integer.BYTES;
+        final List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] value = new byte[buffer.getInt(index)];
+            index += Integer.BYTES;
+            final ByteBuffer view = buffer.duplicate();
+            view.position(index);
+            view.get(value);
+            index += value.length;
+            values.add(new String(value, StandardCharsets.UTF_8));
+        }
+        return new Reading(reference, values, utc);
+    }
+
+    /**
+     * @return Index after the reading that starts at the given index.
+     */
+    private static int recordEnd(ByteBuffer buffer, int start) {
+        final byte type = (byte) (buffer.get(start + Integer.BYTES + Long.BYTES) & ~REMOVED);
+        int index = start + HEADER_SIZE;
+        if (type != STRING_VALUES) {
+            return index + Long.BYTES;
+        }
+
+        final int count = buffer.getInt(index);
+        index += Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            index += Integer.BYTES + buffer.getInt(index);
+        }
+        return index;
+    }
+
+    /**
+     * Rewinds the first slab instead of releasing it once no readings are left, releasing the slabs
+     * that hold only removed readings.
+     */
+    private void rewind() {
+        if (slabs.isEmpty()) {
+            return;
+        }
+
+        final Slab first = slabs.pollFirst();
+        while (!slabs.isEmpty()) {
+            release(slabs.pollLast().buffer);
+        }
+
+        first.buffer.clear();
+        first.readIndex = 0;
+        slabs.addFirst(first);
+    }
+
+    private static boolean isEqual(Reading stored, Reading reading) {
+        return stored == reading || stored.getUtc() == reading.getUtc()
+                && stored.getReference().equals(reading.getReference())
+                && stored.getValues().equals(reading.getValues());
+    }
+
+    private int referenceId(String reference) {
+        final Integer id = referenceIds.get(reference);
+        if (id != null) {
+            return id;
+        }
+
+        references.add(reference);
+        referenceIds.put(reference, references.size() - 1);
+        return references.size() - 1;
+    }
+
+    private ByteBuffer acquire() {
+        final ByteBuffer pooled = pool.pollFirst();
+        if (pooled != null) {
+            return pooled;
+        }
+
+        allocatedSlabs++;
+        return ByteBuffer.allocateDirect(slabSize);
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pool.size() < maxPooledSlabs) {
+            pool.addFirst(buffer);
+        }
+    }
+
+    private synchronized void restore(List<Reading> readings) {
+        final ListIterator<Reading> iterator = readings.listIterator(readings.size());
+        while (iterator.hasPrevious()) {
+            returned.addFirst(iterator.previous());
+        }
+    }
+
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+        private int readIndex;
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
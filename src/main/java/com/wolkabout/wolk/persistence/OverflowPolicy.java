@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+/**
+ * Decides what a bounded persistence does with a new item once it is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Removes the oldest stored item to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Discards the new item.
+     */
+    DROP_NEWEST,
+    /**
+     * Blocks the producer until there is room for the new item.
+     */
+    BLOCK,
+    /**
+     * Throws an {@link IllegalStateException} to the producer, keeping the stored items.
+     */
+    REJECT,
+    /**
+     * Keeps every Nth stored item, so the stored data covers the same period at a lower rate.
+     */
+    DOWNSAMPLE
+}
@@ -19,8 +19,10 @@ package com.wolkabout.wolk.persistence;
 import com.wolkabout.wolk.model.Alarm;
 import com.wolkabout.wolk.model.Reading;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Predicate;
 
 public interface Persistence {
 
@@ -28,6 +30,22 @@ public interface Persistence {
 
     void addReadings(Collection<Reading> readings);
 
+    /**
+     * Stores a numeric reading. Implementations can override it to store the value
+     * without creating a {@link Reading}.
+     */
+    default void addReading(String reference, double value, long utc) {
+        addReading(new Reading(reference, value, utc));
+    }
+
+    /**
+     * Stores a numeric reading. Implementations can override it to store the value
+     * without creating a {@link Reading}.
+     */
+    default void addReading(String reference, long value, long utc) {
+        addReading(new Reading(reference, value, utc));
+    }
+
     Reading poll();
 
     List<Reading> getAll();
@@ -45,4 +63,86 @@ public interface Persistence {
     void removeAlarm(Alarm alarm);
 
     void removeAllAlarms();
+
+    /**
+     * Removes up to the given number of readings from the store and adds them to the given collection.
+     *
+     * @param target   Collection to add the readings to
+     * @param maxItems Maximum number of readings to remove
+     * @return Number of readings added to the collection
+     */
+    default int drainTo(Collection<? super Reading> target, int maxItems) {
+        int count = 0;
+        Reading reading;
+        while (count < maxItems && (reading = poll()) != null) {
+            target.add(reading);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes up to the given number of alarms from the store and adds them to the given collection.
+     *
+     * @param target   Collection to add the alarms to
+     * @param maxItems Maximum number of alarms to remove
+     * @return Number of alarms added to the collection
+     */
+    default int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        int count = 0;
+        Alarm alarm;
+        while (count < maxItems && (alarm = pollAlarms()) != null) {
+            target.add(alarm);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes the stored readings that match the filter in place, without taking the other readings
+     * out of the store or changing their order. Leased readings that are removed are not delivered
+     * again if their lease is rolled back, where the store supports it.
+     * <p>
+     * The default implementation removes nothing. Implementations should override it if they can
+     * remove readings in place.
+     *
+     * @param filter Matches the readings to remove
+     * @return Number of removed readings
+     */
+    default int removeReadingsIf(Predicate<? super Reading> filter) {
+        return 0;
+    }
+
+    /**
+     * Takes up to the given number of readings from the store. The readings are removed
+     * only when the returned lease is committed.
+     * <p>
+     * The default implementation polls the readings and adds them back to the end of the
+     * store on rollback, so rolled back readings lose their place. Implementations should override it
+     * to return them to the front, as the {@link Lease} of the stores of this package does.
+     *
+     * @param maxItems Maximum number of leased readings
+     * @return {@link Lease} over the readings, possibly empty
+     */
+    default Lease<Reading> leaseReadings(int maxItems) {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, maxItems);
+        return new PolledLease<>(readings, this::addReadings);
+    }
+
+    /**
+     * Takes up to the given number of alarms from the store. The alarms are removed
+     * only when the returned lease is committed.
+     *
+     * @param maxItems Maximum number of leased alarms
+     * @return {@link Lease} over the alarms, possibly empty
+     * @see #leaseReadings(int)
+     */
+    default Lease<Alarm> leaseAlarms(int maxItems) {
+        final List<Alarm> alarms = new ArrayList<>();
+        drainAlarmsTo(alarms, maxItems);
+        return new PolledLease<>(alarms, items -> items.forEach(this::addAlarm));
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Lease over items that were already polled from the store.
+ * Committing does nothing, rolling back hands the items to the given callback.
+ * The optional finish callback runs once the lease is committed or rolled back.
+ * Items that were rolled back before come first, as the stores return them to their front.
+ */
+class PolledLease<T> implements Lease<T> {
+
+    private final List<T> items;
+    private final int redelivered;
+    private final Consumer<List<T>> restore;
+    private final Runnable finish;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    PolledLease(List<T> items, Consumer<List<T>> restore) {
+        this(items, 0, restore);
+    }
+
+    /**
+     * @param redelivered Number of leading items that were rolled back before.
+     */
+    PolledLease(List<T> items, int redelivered, Consumer<List<T>> restore) {
+        this(items, redelivered, restore, () -> {
+        });
+    }
+
+    PolledLease(List<T> items, int redelivered, Consumer<List<T>> restore, Runnable finish) {
+        this.items = items;
+        this.redelivered = redelivered;
+        this.restore = restore;
+        this.finish = finish;
+    }
+
+    @Override
+    public List<T> getItems() {
+        return items;
+    }
+
+    @Override
+    public void commit() {
+        if (finished.compareAndSet(false, true)) {
+            finish.run();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        if (finished.compareAndSet(false, true)) {
+            if (!items.isEmpty()) {
+                restore.accept(items);
+            }
+            finish.run();
+        }
+    }
+
+    @Override
+    public boolean isRedelivered(int index) {
+        return index < redelivered;
+    }
+}
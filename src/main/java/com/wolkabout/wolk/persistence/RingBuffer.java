@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Fixed-capacity FIFO buffer that applies an {@link OverflowPolicy} once it is full.
+ */
+class RingBuffer<T> {
+
+    private final Object[] items;
+    private final OverflowPolicy policy;
+    private final int downsampleFactor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private int head;
+    private int size;
+    // Room held for leased items under a policy that keeps items, so they fit back when rolled back.
+    private int reserved;
+    // Number of items at the front that were returned by a rolled back lease.
+    private int restored;
+
+    RingBuffer(int capacity, OverflowPolicy policy, int downsampleFactor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy must be set.");
+        }
+
+        if (policy == OverflowPolicy.DOWNSAMPLE && (downsampleFactor < 2 || capacity < downsampleFactor)) {
+            throw new IllegalArgumentException("Downsample factor must be between 2 and the capacity: " + downsampleFactor);
+        }
+
+        this.items = new Object[capacity];
+        this.policy = policy;
+        this.downsampleFactor = downsampleFactor;
+    }
+
+    void offer(T item) {
+        lock.lock();
+        try {
+            if (isFull() && !makeRoom()) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            items[index(size)] = item;
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T poll() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+
+            final T item = (T) items[head];
+            removeFirst();
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    int drainTo(Collection<? super T> target, int maxItems) {
+        lock.lock();
+        try {
+            final int count = Math.min(size, maxItems);
+            for (int i = 0; i < count; i++) {
+                target.add((T) items[head]);
+                removeFirst();
+            }
+
+            if (count > 0) {
+                notFull.signalAll();
+            }
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Polls up to the given number of items under a lease. Under a policy that keeps items, their room stays
+     * reserved until the lease is finished, so rolled back items are never dropped.
+     */
+    Lease<T> lease(int maxItems) {
+        final List<T> leased = new ArrayList<>();
+        final int redelivered;
+        lock.lock();
+        try {
+            redelivered = Math.min(restored, maxItems);
+            final int count = drainTo(leased, maxItems);
+            if (keepsItems()) {
+                reserved += count;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return keepsItems()
+                ? new PolledLease<>(leased, redelivered, this::restore, () -> release(leased.size()))
+                : new PolledLease<>(leased, redelivered, this::restore);
+    }
+
+    /**
+     * Puts the items back in front of the buffer. Items that no longer fit are dropped,
+     * starting with the oldest ones.
+     */
+    void restore(List<T> leased) {
+        lock.lock();
+        try {
+            final ListIterator<T> iterator = leased.listIterator(leased.size());
+            while (iterator.hasPrevious()) {
+                final T item = iterator.previous();
+                if (size == items.length) {
+                    dropped.addAndGet(iterator.nextIndex() + 1);
+                    return;
+                }
+
+                head = index(items.length - 1);
+                items[head] = item;
+                size++;
+                restored++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(Object item) {
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                if (items[index(i)].equals(item)) {
+                    if (i < restored) {
+                        restored--;
+                    }
+                    for (int j = i; j < size - 1; j++) {
+                        items[index(j)] = items[index(j + 1)];
+                    }
+
+                    items[index(size - 1)] = null;
+                    size--;
+                    notFull.signal();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    int removeIf(Predicate<? super T> filter) {
+        lock.lock();
+        try {
+            int kept = 0;
+            int keptRestored = 0;
+            for (int i = 0; i < size; i++) {
+                final Object item = items[index(i)];
+                if (!filter.test((T) item)) {
+                    items[index(kept++)] = item;
+                    if (i < restored) {
+                        keptRestored++;
+                    }
+                }
+            }
+            restored = keptRestored;
+
+            final int removed = size - kept;
+            for (int i = kept; i < size; i++) {
+                items[index(i)] = null;
+            }
+            size = kept;
+
+            if (removed > 0) {
+                notFull.signalAll();
+            }
+
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            while (size > 0) {
+                removeFirst();
+            }
+
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Frees room for a new item according to the policy.
+     *
+     * @return false if the new item should be dropped.
+     */
+    private boolean makeRoom() {
+        switch (policy) {
+            case DROP_OLDEST:
+                removeFirst();
+                dropped.incrementAndGet();
+                return true;
+            case BLOCK:
+                while (isFull()) {
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            case DOWNSAMPLE:
+                downsample();
+                return true;
+            case REJECT:
+                throw new IllegalStateException("Buffer is full, capacity: " + items.length);
+            default:
+                return false;
+        }
+    }
+
+    private boolean keepsItems() {
+        return policy == OverflowPolicy.BLOCK || policy == OverflowPolicy.REJECT;
+    }
+
+    private boolean isFull() {
+        return size + reserved >= items.length;
+    }
+
+    private void release(int count) {
+        lock.lock();
+        try {
+            reserved -= count;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void downsample() {
+        final int kept = (size + downsampleFactor - 1) / downsampleFactor;
+        for (int i = 1; i < kept; i++) {
+            items[index(i)] = items[index(i * downsampleFactor)];
+        }
+
+        for (int i = kept; i < size; i++) {
+            items[index(i)] = null;
+        }
+
+        dropped.addAndGet(size - kept);
+        // Item i now holds item i * factor, so the restored items are those kept from before the old count.
+        restored = (restored + downsampleFactor - 1) / downsampleFactor;
+        size = kept;
+    }
+
+    private void removeFirst() {
+        items[head] = null;
+        head = index(1);
+        size--;
+        if (restored > 0) {
+            restored--;
+        }
+    }
+
+    private int index(int offset) {
+        return (head + offset) % items.length;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * In-memory persistence with a fixed capacity, preallocated for readings and for alarms.
+ * Once a buffer is full, new items are handled by its {@link OverflowPolicy}. Alarms have a policy of their own,
+ * {@link OverflowPolicy#REJECT} unless set, so they are never dropped: adding an alarm to a full buffer throws.
+ */
+public class RingBufferPersistence implements Persistence {
+
+    public static final int DEFAULT_DOWNSAMPLE_FACTOR = 2;
+
+    private final RingBuffer<Reading> readings;
+    private final RingBuffer<Alarm> alarms;
+
+    public RingBufferPersistence(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, DEFAULT_DOWNSAMPLE_FACTOR);
+    }
+
+    public RingBufferPersistence(int capacity, OverflowPolicy policy, int downsampleFactor) {
+        this(capacity, policy, downsampleFactor, OverflowPolicy.REJECT);
+    }
+
+    /**
+     * @param capacity         Maximum number of stored readings, and of stored alarms.
+     * @param policy           What to do with new readings once the buffer is full.
+     * @param downsampleFactor Every Nth item is kept when the {@link OverflowPolicy#DOWNSAMPLE} buffer is full.
+     * @param alarmPolicy      What to do with new alarms once the buffer is full.
+     */
+    public RingBufferPersistence(int capacity, OverflowPolicy policy, int downsampleFactor, OverflowPolicy alarmPolicy) {
+        readings = new RingBuffer<>(capacity, policy, downsampleFactor);
+        alarms = new RingBuffer<>(capacity, alarmPolicy, downsampleFactor);
+    }
+
+    @Override
+    public void addReading(Reading reading) {
+        readings.offer(reading);
+    }
+
+    @Override
+    public void addReadings(Collection<Reading> readings) {
+        for (Reading reading : readings) {
+            addReading(reading);
+        }
+    }
+
+    @Override
+    public Reading poll() {
+        return readings.poll();
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> all = new ArrayList<>();
+        readings.drainTo(all, Integer.MAX_VALUE);
+        return all;
+    }
+
+    @Override
+    public void remove(Reading reading) {
+        readings.remove(reading);
+    }
+
+    @Override
+    public int removeReadingsIf(Predicate<? super Reading> filter) {
+        return readings.removeIf(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        readings.clear();
+    }
+
+    @Override
+    public void addAlarm(Alarm alarm) {
+        alarms.offer(alarm);
+    }
+
+    @Override
+    public Alarm pollAlarms() {
+        return alarms.poll();
+    }
+
+    @Override
+    public List<Alarm> getAllAlarms() {
+        final List<Alarm> all = new ArrayList<>();
+        alarms.drainTo(all, Integer.MAX_VALUE);
+        return all;
+    }
+
+    @Override
+    public void removeAlarm(Alarm alarm) {
+        alarms.remove(alarm);
+    }
+
+    @Override
+    public void removeAllAlarms() {
+        alarms.clear();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        return readings.drainTo(target, maxItems);
+    }
+
+    @Override
+    public int drainAlarmsTo(Collection<? super Alarm> target, int maxItems) {
+        return alarms.drainTo(target, maxItems);
+    }
+
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        return readings.lease(maxItems);
+    }
+
+    @Override
+    public Lease<Alarm> leaseAlarms(int maxItems) {
+        return alarms.lease(maxItems);
+    }
+
+    public int getReadingCount() {
+        return readings.size();
+    }
+
+    public int getAlarmCount() {
+        return alarms.size();
+    }
+
+    /**
+     * @return Number of readings dropped by the overflow policy.
+     */
+    public long getDroppedReadings() {
+        return readings.getDropped();
+    }
+
+    /**
+     * @return Number of alarms dropped by the overflow policy.
+     */
+    public long getDroppedAlarms() {
+        return alarms.getDropped();
+    }
+}
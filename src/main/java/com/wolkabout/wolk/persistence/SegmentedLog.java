@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Append-only log of byte records, stored in fixed-size memory-mapped segment files.
+ * <p>
+ * Each segment starts with the position of its committed read cursor, followed by records
+ * written as a length prefix and the record bytes. A zero length marks the end of the written data,
+ * and a negative length marks a removed record, which is skipped when read.
+ * Records are read from an in-memory cursor that runs ahead of the committed one, so reads can be
+ * rewound until they are committed. After a restart, reading resumes from the committed cursor.
+ * <p>
+ * Only the segments that are currently read from and written to are mapped.
+ * A segment is deleted as soon as it is committed entirely.
+ */
+class SegmentedLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedLog.class);
+
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    private final File directory;
+    private final int segmentSize;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+    private Segment cursorSegment;
+    private int cursorOffset;
+
+    SegmentedLog(File directory, int segmentSize) {
+        if (segmentSize <= HEADER_SIZE + LENGTH_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create log directory: " + directory.getAbsolutePath());
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        open();
+    }
+
+    synchronized void append(byte[] record) {
+        if (LENGTH_SIZE + record.length > segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Record of " + record.length + " bytes does not fit into a segment.");
+        }
+
+        Segment segment = last();
+        if (segment.writePosition + LENGTH_SIZE + record.length > segment.size) {
+            if (segment != first() && segment != cursorSegment) {
+                segment.unmap();
+            }
+
+            segment = newSegment(segment.id + 1);
+        }
+
+        final MappedByteBuffer buffer = segment.map();
+        buffer.position(segment.writePosition + LENGTH_SIZE);
+        buffer.put(record);
+        // The length is written last so an interrupted write reads as the end of the segment.
+        buffer.putInt(segment.writePosition, record.length);
+        segment.writePosition += LENGTH_SIZE + record.length;
+    }
+
+    /**
+     * Reads the record at the cursor and moves the cursor past it.
+     *
+     * @return The record, or null if there are no more records.
+     */
+    synchronized byte[] read() {
+        if (!advanceCursor()) {
+            return null;
+        }
+
+        final int length = cursorSegment.lengthAt(cursorOffset);
+        final byte[] record = cursorSegment.recordAt(cursorOffset, length);
+        cursorOffset += LENGTH_SIZE + length;
+        return record;
+    }
+
+    /**
+     * Marks up to the given number of records that were not committed yet and match the filter as removed.
+     * Records that were read but not committed are included, so they are skipped if the cursor is rewound.
+     *
+     * @return Number of removed records.
+     */
+    synchronized int remove(Predicate<byte[]> filter, int maxRecords) {
+        int removed = 0;
+        for (Segment segment : segments.values()) {
+            if (removed == maxRecords) {
+                break;
+            }
+
+            final boolean mapped = segment.buffer != null;
+            int offset = segment.readPosition();
+            int length;
+            while (removed < maxRecords && (length = segment.lengthAt(offset)) > 0) {
+                if (!segment.isRemoved(offset) && filter.test(segment.recordAt(offset, length))) {
+                    segment.map().putInt(offset, -length);
+                    removed++;
+                }
+                offset += LENGTH_SIZE + length;
+            }
+
+            if (!mapped && segment != cursorSegment && segment != last()) {
+                segment.unmap();
+            }
+        }
+
+        return removed;
+    }
+
+    synchronized Position position() {
+        return new Position(cursorSegment.id, cursorOffset);
+    }
+
+    /**
+     * Moves the cursor back to the given, not yet committed, position.
+     */
+    synchronized void rewind(Position position) {
+        final Segment segment = segments.get(position.segment);
+        if (segment == null) {
+            cursorSegment = first();
+            cursorOffset = cursorSegment.readPosition();
+            return;
+        }
+
+        if (cursorSegment != segment && cursorSegment != first() && cursorSegment != last()) {
+            cursorSegment.unmap();
+        }
+
+        cursorSegment = segment;
+        cursorOffset = Math.max(position.offset, segment.readPosition());
+    }
+
+    /**
+     * Marks every record before the given position as consumed, deleting drained segments.
+     */
+    synchronized void commit(Position position) {
+        Segment first = first();
+        while (first.id < position.segment) {
+            if (cursorSegment == first) {
+                cursorSegment = segments.higherEntry(first.id).getValue();
+                cursorOffset = HEADER_SIZE;
+            }
+
+            segments.remove(first.id).delete();
+            first = first();
+        }
+
+        if (first.id == position.segment && position.offset > first.readPosition()) {
+            first.setReadPosition(position.offset);
+        }
+
+        // Drop the first segment right away once it is drained and the cursor has moved on.
+        if (first != last() && first.lengthAt(first.skipRemoved(first.readPosition())) == 0) {
+            advanceCursor();
+            if (cursorSegment != first) {
+                segments.remove(first.id).delete();
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return !advanceCursor();
+    }
+
+    synchronized void clear() {
+        final long nextId = last().id + 1;
+        for (Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+
+        cursorSegment = newSegment(nextId);
+        cursorOffset = HEADER_SIZE;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            if (segment.buffer != null) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor past removed records, and to the next segment while it points to the end of a segment.
+     *
+     * @return true if there is a record at the cursor.
+     */
+    private boolean advanceCursor() {
+        cursorOffset = cursorSegment.skipRemoved(cursorOffset);
+        while (cursorSegment.lengthAt(cursorOffset) == 0) {
+            final Map.Entry<Long, Segment> next = segments.higherEntry(cursorSegment.id);
+            if (next == null) {
+                return false;
+            }
+
+            if (cursorSegment != first()) {
+                cursorSegment.unmap();
+            }
+
+            cursorSegment = next.getValue();
+            cursorOffset = cursorSegment.skipRemoved(HEADER_SIZE);
+        }
+
+        return true;
+    }
+
+    private Segment first() {
+        return segments.firstEntry().getValue();
+    }
+
+    private Segment last() {
+        return segments.lastEntry().getValue();
+    }
+
+    private void open() {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                try {
+                    final long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unknown file in log directory: " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            newSegment(0);
+        }
+
+        cursorSegment = first();
+        cursorOffset = cursorSegment.readPosition();
+
+        final Segment last = last();
+        int position = last == cursorSegment ? cursorOffset : HEADER_SIZE;
+        int length;
+        while ((length = last.lengthAt(position)) > 0) {
+            position += LENGTH_SIZE + length;
+        }
+
+        last.writePosition = position;
+    }
+
+    private Segment newSegment(long id) {
+        final Segment segment = new Segment(id, new File(directory, String.format("%020d", id) + SEGMENT_EXTENSION));
+        segment.map().putInt(0, HEADER_SIZE);
+        segment.writePosition = HEADER_SIZE;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private class Segment {
+
+        private final long id;
+        private final File file;
+        // Segments written with a larger segment size keep their size.
+        private final int size;
+        private MappedByteBuffer buffer;
+        private int writePosition = HEADER_SIZE;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+            this.size = (int) Math.min(Integer.MAX_VALUE, Math.max(file.length(), segmentSize));
+        }
+
+        private MappedByteBuffer map() {
+            if (buffer != null) {
+                return buffer;
+            }
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(size);
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return buffer;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map log segment: " + file.getAbsolutePath(), e);
+            }
+        }
+
+        /**
+         * @return Length of the record at the given offset, removed or not, or 0 if there is none.
+         */
+        private int lengthAt(int offset) {
+            if (offset + LENGTH_SIZE > size) {
+                return 0;
+            }
+
+            final int length = Math.abs(map().getInt(offset));
+            return length < 0 || offset + LENGTH_SIZE + length > size ? 0 : length;
+        }
+
+        private boolean isRemoved(int offset) {
+            return lengthAt(offset) > 0 && map().getInt(offset) < 0;
+        }
+
+        /**
+         * @return Offset of the first record at or after the given offset that is not removed.
+         */
+        private int skipRemoved(int offset) {
+            while (isRemoved(offset)) {
+                offset += LENGTH_SIZE + lengthAt(offset);
+            }
+
+            return offset;
+        }
+
+        private byte[] recordAt(int offset, int length) {
+            final byte[] record = new byte[length];
+            final MappedByteBuffer buffer = map();
+            buffer.position(offset + LENGTH_SIZE);
+            buffer.get(record);
+            return record;
+        }
+
+        private int readPosition() {
+            final int position = map().getInt(0);
+            return position < HEADER_SIZE ? HEADER_SIZE : position;
+        }
+
+        private void setReadPosition(int position) {
+            map().putInt(0, position);
+        }
+
+        private void unmap() {
+            // The mapping is released once the buffer is garbage collected.
+            buffer = null;
+        }
+
+        private void delete() {
+            unmap();
+            if (!file.delete()) {
+                LOG.warn("Unable to delete drained log segment: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    static final class Position {
+
+        private final long segment;
+        private final int offset;
+
+        private Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        boolean isBefore(Position other) {
+            return segment < other.segment || segment == other.segment && offset < other.offset;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Persistence that discards readings older than their time to live, so stale data is neither
+ * kept nor published after a long outage. The age of a reading is measured from its timestamp.
+ * <p>
+ * Expired readings are skipped while the store is drained. The sweeper additionally removes
+ * expired readings in place, see {@link Persistence#removeReadingsIf(Predicate)}, so the rest of the
+ * backlog and any lease being published are left as they are. Alarms do not expire.
+ */
+public class TtlPersistence extends ForwardingPersistence {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TtlPersistence.class);
+
+    // Leases taken from the delegate store for a single lease, so an expired backlog is skipped a part at a time.
+    private static final int MAX_DELEGATE_LEASES = 64;
+
+    private final long defaultTtl;
+    private final ConcurrentMap<String, Long> ttlByReference = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private final AtomicLong expired = new AtomicLong();
+
+    private ScheduledExecutorService sweeper;
+    private ScheduledFuture<?> sweepTask;
+
+    /**
+     * @param delegate Store for the readings.
+     * @param ttl      Time to live of readings without their own time to live.
+     * @param unit     Unit of the time to live.
+     */
+    public TtlPersistence(Persistence delegate, long ttl, TimeUnit unit) {
+        this(delegate, ttl, unit, System::currentTimeMillis);
+    }
+
+    TtlPersistence(Persistence delegate, long ttl, TimeUnit unit, LongSupplier clock) {
+        super(delegate);
+
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive.");
+        }
+
+        this.defaultTtl = unit.toMillis(ttl);
+        this.clock = clock;
+    }
+
+    /**
+     * Overrides the time to live of the readings with the given reference.
+     */
+    public TtlPersistence ttl(String reference, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive.");
+        }
+
+        ttlByReference.put(reference, unit.toMillis(ttl));
+        return this;
+    }
+
+    @Override
+    public Reading poll() {
+        Reading reading;
+        do {
+            reading = delegate.poll();
+        } while (reading != null && isExpired(reading, clock.getAsLong()));
+
+        return reading;
+    }
+
+    @Override
+    public List<Reading> getAll() {
+        final List<Reading> readings = new ArrayList<>();
+        drainTo(readings, Integer.MAX_VALUE);
+        return readings;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Reading> target, int maxItems) {
+        final List<Reading> batch = new ArrayList<>();
+        int count = 0;
+        while (count < maxItems) {
+            final int requested = maxItems - count;
+            final int drained = delegate.drainTo(batch, requested);
+            final long now = clock.getAsLong();
+            for (Reading reading : batch) {
+                if (!isExpired(reading, now)) {
+                    target.add(reading);
+                    count++;
+                }
+            }
+
+            batch.clear();
+            if (drained < requested) {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Expired readings are left out of the lease, and are removed when the lease is committed.
+     * Leases of the delegate store that hold only expired readings are committed right away, and at most
+     * {@value #MAX_DELEGATE_LEASES} of them are taken, so the lease may hold fewer readings than stored.
+     */
+    @Override
+    public Lease<Reading> leaseReadings(int maxItems) {
+        final List<Lease<Reading>> leases = new ArrayList<>();
+        int count = 0;
+        for (int i = 0; i < MAX_DELEGATE_LEASES && count < maxItems; i++) {
+            final int requested = maxItems - count;
+            final Lease<Reading> lease = delegate.leaseReadings(requested);
+            final FreshLease fresh = new FreshLease(lease, clock.getAsLong());
+            if (fresh.getItems().isEmpty()) {
+                fresh.commit();
+            } else {
+                leases.add(fresh);
+                count += fresh.getItems().size();
+            }
+
+            if (lease.getItems().size() < requested) {
+                break;
+            }
+        }
+
+        if (leases.isEmpty()) {
+            return new PolledLease<>(new ArrayList<>(), restored -> {
+            });
+        }
+
+        return leases.size() == 1 ? leases.get(0) : new CompositeLease<>(leases);
+    }
+
+    /**
+     * @return Number of readings discarded because they expired.
+     */
+    public long getExpiredReadings() {
+        return expired.get();
+    }
+
+    /**
+     * Removes expired readings from the store, if it can remove readings in place.
+     */
+    public void sweep() {
+        final long now = clock.getAsLong();
+        expired.addAndGet(delegate.removeReadingsIf(reading -> !isFresh(reading, now)));
+    }
+
+    /**
+     * Starts sweeping expired readings in the background.
+     *
+     * @param period Time between two sweeps.
+     * @param unit   Unit of the period.
+     */
+    public synchronized void startSweeping(long period, TimeUnit unit) {
+        if (sweepTask != null && !sweepTask.isDone()) {
+            return;
+        }
+
+        if (sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "wolk-ttl-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        sweepTask = sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (Exception e) {
+                LOG.warn("Could not sweep expired readings.", e);
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopSweeping() {
+        if (sweeper == null) {
+            return;
+        }
+
+        sweeper.shutdownNow();
+        sweeper = null;
+        sweepTask = null;
+    }
+
+    private boolean isFresh(Reading reading, long now) {
+        final Long ttl = ttlByReference.get(reading.getReference());
+        return now - reading.getUtc() <= (ttl != null ? ttl : defaultTtl);
+    }
+
+    /**
+     * Counts the reading as discarded if it is expired.
+     */
+    private boolean isExpired(Reading reading, long now) {
+        if (isFresh(reading, now)) {
+            return false;
+        }
+
+        expired.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Lease over the readings of another lease that are not expired.
+     */
+    private class FreshLease implements Lease<Reading> {
+
+        private final Lease<Reading> lease;
+        private final List<Reading> items;
+        // Index of each fresh reading in the other lease.
+        private final int[] indices;
+        private final int expiredCount;
+
+        private FreshLease(Lease<Reading> lease, long now) {
+            this.lease = lease;
+            final List<Reading> leased = lease.getItems();
+            this.items = new ArrayList<>(leased.size());
+            this.indices = new int[leased.size()];
+            for (int i = 0; i < leased.size(); i++) {
+                if (isFresh(leased.get(i), now)) {
+                    indices[items.size()] = i;
+                    items.add(leased.get(i));
+                }
+            }
+            this.expiredCount = leased.size() - items.size();
+        }
+
+        @Override
+        public List<Reading> getItems() {
+            return items;
+        }
+
+        @Override
+        public void commit() {
+            lease.commit();
+            expired.addAndGet(expiredCount);
+        }
+
+        @Override
+        public void rollback() {
+            lease.rollback();
+        }
+
+        @Override
+        public boolean isRedelivered(int index) {
+            return lease.isRedelivered(indices[index]);
+        }
+    }
+}
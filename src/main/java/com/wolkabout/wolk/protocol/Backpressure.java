@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a publisher does when the maximum number of messages are already in flight, see {@link InflightWindow}.
+ */
+public final class Backpressure {
+
+    private static final Backpressure BLOCK = new Backpressure(-1, null);
+
+    // Negative to wait until a message is delivered.
+    private final long timeoutNanos;
+    private final Runnable onCapacity;
+
+    private Backpressure(long timeoutNanos, Runnable onCapacity) {
+        this.timeoutNanos = timeoutNanos;
+        this.onCapacity = onCapacity;
+    }
+
+    /**
+     * Waits until a message in flight is delivered. This is the default.
+     */
+    public static Backpressure block() {
+        return BLOCK;
+    }
+
+    /**
+     * Waits at most the given time for a message in flight to be delivered, and fails the publish after it.
+     */
+    public static Backpressure timeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative.");
+        }
+
+        return new Backpressure(unit.toNanos(timeout), null);
+    }
+
+    /**
+     * Fails the publish right away, and runs the callback once a message in flight is delivered,
+     * so the producer can resume. The callback runs on the thread that completes the delivery
+     * and must not block.
+     */
+    public static Backpressure onCapacity(Runnable callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Capacity callback must be set.");
+        }
+
+        return new Backpressure(0, callback);
+    }
+
+    long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    Runnable getOnCapacity() {
+        return onCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return "Backpressure{" +
+                "timeoutNanos=" + timeoutNanos +
+                ", onCapacity=" + (onCapacity != null) +
+                '}';
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of messages in flight, applying {@link Backpressure} to publishers once it is full.
+ * <p>
+ * A publish that is not given a slot fails with {@link MqttException#REASON_CODE_MAX_INFLIGHT},
+ * the same error the MQTT client reports when its own inflight limit is exceeded.
+ */
+public class InflightWindow {
+
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final Semaphore slots;
+    private final AtomicBoolean saturated = new AtomicBoolean();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public InflightWindow(int capacity) {
+        this(capacity, Backpressure.block());
+    }
+
+    public InflightWindow(int capacity, Backpressure backpressure) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Maximum number of inflight messages must be positive.");
+        }
+
+        if (backpressure == null) {
+            throw new IllegalArgumentException("Backpressure must be set.");
+        }
+
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.slots = new Semaphore(capacity);
+    }
+
+    /**
+     * Takes a slot for a message, waiting for one if the backpressure allows it.
+     *
+     * @throws MqttException if no slot is available in time.
+     */
+    public void acquire() throws MqttException, InterruptedException {
+        final long timeoutNanos = backpressure.getTimeoutNanos();
+        if (timeoutNanos < 0) {
+            slots.acquire();
+            return;
+        }
+
+        if (slots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return;
+        }
+
+        reject();
+    }
+
+    /**
+     * Takes a slot for a message without waiting for one, whatever the backpressure.
+     *
+     * @throws MqttException if the window is full.
+     */
+    public void tryAcquire() throws MqttException {
+        if (!slots.tryAcquire()) {
+            reject();
+        }
+    }
+
+    private void reject() throws MqttException {
+        if (backpressure.getOnCapacity() != null) {
+            saturated.set(true);
+            // A slot released before the flag was set would not run the callback.
+            if (slots.tryAcquire()) {
+                return;
+            }
+        }
+
+        rejected.incrementAndGet();
+        throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+    }
+
+    /**
+     * Returns the slot of a message that was delivered or failed.
+     */
+    public void release() {
+        slots.release();
+
+        final Runnable onCapacity = backpressure.getOnCapacity();
+        if (onCapacity != null && saturated.compareAndSet(true, false)) {
+            onCapacity.run();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * @return Number of messages awaiting delivery.
+     */
+    public int getInflightCount() {
+        return capacity - slots.availablePermits();
+    }
+
+    /**
+     * @return Share of the window in use, from 0 to 1.
+     */
+    public double getOccupancy() {
+        return (double) getInflightCount() / capacity;
+    }
+
+    public boolean hasCapacity() {
+        return slots.availablePermits() > 0;
+    }
+
+    /**
+     * @return Number of publishes that failed because the window was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "InflightWindow{" +
+                "capacity=" + capacity +
+                ", inflight=" + getInflightCount() +
+                ", rejected=" + rejected.get() +
+                '}';
+    }
+}
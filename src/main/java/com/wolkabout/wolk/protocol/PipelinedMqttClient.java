@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MQTT client that can also publish through the underlying asynchronous client without waiting for delivery.
+ * <p>
+ * Messages published either way share the {@link InflightWindow}.
+ * Protocols detect this client and use it for their publishes, see {@link Protocol#isPipelined()}.
+ */
+public class PipelinedMqttClient extends WindowedMqttClient {
+
+    public PipelinedMqttClient(String serverURI, String clientId, MqttClientPersistence persistence, int maxInflight)
+            throws MqttException {
+        this(serverURI, clientId, persistence, new InflightWindow(maxInflight));
+    }
+
+    public PipelinedMqttClient(String serverURI, String clientId, MqttClientPersistence persistence,
+                               InflightWindow window) throws MqttException {
+        super(serverURI, clientId, persistence, window);
+    }
+
+    /**
+     * Publishes the message without waiting for its delivery.
+     * If the maximum number of messages are awaiting delivery, the backpressure of the window applies,
+     * except on the callback thread.
+     *
+     * @return Completes when the message is delivered, or exceptionally if the delivery fails.
+     * @throws MqttException if the client does not accept the message, or the window is full.
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained)
+            throws MqttException, InterruptedException {
+        acquire();
+
+        final CompletableFuture<Void> delivery = new CompletableFuture<>();
+        try {
+            aClient.publish(topic, payload, qos, retained, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    window.release();
+                    delivery.complete(null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    window.release();
+                    delivery.completeExceptionally(exception);
+                }
+            });
+        } catch (MqttException | RuntimeException e) {
+            window.release();
+            throw e;
+        }
+
+        return delivery;
+    }
+
+    public int getMaxInflight() {
+        return window.getCapacity();
+    }
+
+    /**
+     * @return Number of messages published through this client that are awaiting delivery.
+     */
+    public int getInflightCount() {
+        return window.getInflightCount();
+    }
+}
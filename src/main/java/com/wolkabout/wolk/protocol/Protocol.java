@@ -20,15 +20,22 @@ import com.wolkabout.wolk.model.ActuatorStatus;
 import com.wolkabout.wolk.model.Alarm;
 import com.wolkabout.wolk.model.Configuration;
 import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.model.ReadingBatch;
 import com.wolkabout.wolk.protocol.handler.ActuatorHandler;
 import com.wolkabout.wolk.protocol.handler.ConfigurationHandler;
-import com.wolkabout.wolk.util.JsonUtil;
+import com.wolkabout.wolk.util.DeflateCompressor;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Protocol {
 
@@ -37,6 +44,7 @@ public abstract class Protocol {
     protected final MqttClient client;
     protected final ActuatorHandler actuatorHandler;
     protected final ConfigurationHandler configurationHandler;
+    protected final PayloadCodec codec;
 
     protected long platformTimestamp;
 
@@ -46,21 +54,234 @@ public abstract class Protocol {
 
     protected static final int QOS = 0;
 
+    /**
+     * Result of a publish that was delivered before it returned.
+     */
+    protected static final CompletableFuture<Void> DELIVERED = CompletableFuture.completedFuture(null);
+
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_READINGS_PER_MESSAGE = 1000;
+
+    private int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+    private int maxReadingsPerMessage = DEFAULT_MAX_READINGS_PER_MESSAGE;
+    private DeflateCompressor compressor;
+    private final PipelinedMqttClient pipelinedClient;
+    private final int[] qos = new int[MessageClass.values().length];
+    private final String deviceKey;
+    private final TopicDispatcher dispatcher;
+
     public Protocol(MqttClient client, ActuatorHandler actuatorHandler, ConfigurationHandler configurationHandler) {
+        this(client, actuatorHandler, configurationHandler, JacksonPayloadCodec.json());
+    }
+
+    public Protocol(MqttClient client, ActuatorHandler actuatorHandler, ConfigurationHandler configurationHandler,
+                    PayloadCodec codec) {
+        this(client, null, null, actuatorHandler, configurationHandler, codec);
+    }
+
+    /**
+     * Creates the protocol of a device sharing the connection of a gateway.
+     *
+     * @param deviceKey  Key of the device used in its topics, or null to use the client ID.
+     * @param dispatcher Routes the messages of the device, or null to subscribe on the client.
+     */
+    public Protocol(MqttClient client, String deviceKey, TopicDispatcher dispatcher, ActuatorHandler actuatorHandler,
+                    ConfigurationHandler configurationHandler, PayloadCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Payload codec must be set.");
+        }
+
         this.client = client;
         this.actuatorHandler = actuatorHandler;
         this.configurationHandler = configurationHandler;
+        this.codec = codec;
+        this.deviceKey = deviceKey;
+        this.dispatcher = dispatcher;
+        this.pipelinedClient = client instanceof PipelinedMqttClient ? (PipelinedMqttClient) client : null;
     }
 
     public abstract void subscribe() throws Exception;
 
-    protected void publish(String topic, Object payload) {
+    /**
+     * @return Key of the device used in its topics.
+     */
+    public String getDeviceKey() {
+        return deviceKey == null ? client.getClientId() : deviceKey;
+    }
+
+    /**
+     * Subscribes to the topic made of the prefix, the device key and the suffix.
+     *
+     * @param prefix Levels of the topic before the device key, each followed by a separator.
+     */
+    protected void subscribe(String prefix, String suffix, IMqttMessageListener listener) throws MqttException {
+        final String topic = prefix + getDeviceKey() + suffix;
+        if (dispatcher == null) {
+            client.subscribe(topic, QOS, listener);
+            return;
+        }
+
+        int keyLevel = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (prefix.charAt(i) == '/') {
+                keyLevel++;
+            }
+        }
+        dispatcher.subscribe(topic, keyLevel, getDeviceKey(), listener);
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a message carrying multiple readings or alarms.
+     * Larger collections are published as multiple messages.
+     */
+    public void setMaxPayloadSize(int maxPayloadSize) {
+        if (maxPayloadSize <= 0) {
+            throw new IllegalArgumentException("Maximum payload size must be positive.");
+        }
+
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public int getMaxReadingsPerMessage() {
+        return maxReadingsPerMessage;
+    }
+
+    /**
+     * Sets the maximum number of readings or alarms in a single message.
+     * Larger collections are published as multiple messages.
+     */
+    public void setMaxReadingsPerMessage(int maxReadingsPerMessage) {
+        if (maxReadingsPerMessage <= 0) {
+            throw new IllegalArgumentException("Maximum readings per message must be positive.");
+        }
+
+        this.maxReadingsPerMessage = maxReadingsPerMessage;
+    }
+
+    public DeflateCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Enables compression of messages carrying multiple readings or alarms.
+     *
+     * @param compressor Compressor to use, or null to disable compression.
+     */
+    public void setCompressor(DeflateCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public int getQos(MessageClass messageClass) {
+        return qos[messageClass.ordinal()];
+    }
+
+    /**
+     * Sets the MQTT quality of service of the messages of the given class. QoS 0 is used by default.
+     * <p>
+     * With a pipelined client, QoS 1 and 2 messages are published without waiting for the acknowledgement
+     * of the previous ones, up to the maximum number of inflight messages.
+     */
+    public void setQos(MessageClass messageClass, int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("QoS must be 0, 1 or 2.");
+        }
+
+        this.qos[messageClass.ordinal()] = qos;
+    }
+
+    protected void publish(String topic, Object payload, MessageClass messageClass) {
+        final byte[] serialized;
         try {
-            LOG.debug("Publishing to '" + topic + "' payload: " + new String(JsonUtil.serialize(payload), StandardCharsets.UTF_8));
-            client.publish(topic, JsonUtil.serialize(payload), QOS, false);
+            serialized = codec.encode(payload);
         } catch (Exception e) {
             throw new IllegalArgumentException("Could not publish message to: " + topic + " with payload: " + payload, e);
         }
+
+        publish(topic, serialized, messageClass);
+    }
+
+    /**
+     * Publishes the payload. With a pipelined client, returns once the client accepts the message,
+     * and a failed delivery is only logged.
+     */
+    protected void publish(String topic, byte[] payload, MessageClass messageClass) {
+        logFailure(publishAsync(topic, payload, messageClass), "message to: " + topic);
+    }
+
+    /**
+     * Publishes the payload, without waiting for its delivery if the client is pipelined.
+     *
+     * @return Completes when the message is delivered. Without a pipelined client, the message is delivered
+     * before this returns.
+     * @throws IllegalArgumentException if the message could not be published.
+     */
+    protected CompletableFuture<Void> publishAsync(String topic, byte[] payload, MessageClass messageClass) {
+        try {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Publishing to '" + topic + "' payload: " + (codec.getFactory().canHandleBinaryNatively()
+                        ? payload.length + " bytes"
+                        : new String(payload, StandardCharsets.UTF_8)));
+            }
+
+            final int qos = getQos(messageClass);
+            if (pipelinedClient != null) {
+                return pipelinedClient.publishAsync(topic, payload, qos, false);
+            }
+
+            client.publish(topic, payload, qos, false);
+            return DELIVERED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while publishing message to: " + topic, e);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Could not publish message to: " + topic, e);
+        }
+    }
+
+    /**
+     * Publishes a payload carrying multiple readings or alarms, compressed if compression is enabled.
+     */
+    protected CompletableFuture<Void> publishBatch(String topic, byte[] payload, MessageClass messageClass) {
+        final byte[] compressed = compressor == null ? null : compressor.compress(payload);
+        if (compressed == null) {
+            return publishAsync(topic, payload, messageClass);
+        } else {
+            return publishAsync(topic + DeflateCompressor.TOPIC_SUFFIX, compressed, messageClass);
+        }
+    }
+
+    /**
+     * @return Completes when all deliveries complete, exceptionally if any of them failed.
+     */
+    protected static CompletableFuture<Void> allDelivered(List<CompletableFuture<Void>> deliveries) {
+        if (deliveries.size() == 1) {
+            return deliveries.get(0);
+        }
+
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0]));
+    }
+
+    protected static void logFailure(CompletableFuture<Void> delivery, String description) {
+        if (delivery == DELIVERED) {
+            return;
+        }
+
+        delivery.whenComplete((ignored, e) -> {
+            if (e != null) {
+                LOG.info("Could not deliver " + description, e);
+            }
+        });
+    }
+
+    /**
+     * @return true if publishes return without waiting for delivery, see {@link PipelinedMqttClient}.
+     */
+    public boolean isPipelined() {
+        return pipelinedClient != null;
     }
 
     public void publishCurrentConfig() {
@@ -77,12 +298,76 @@ public abstract class Protocol {
 
     public abstract void publishReading(Reading reading);
 
+    /**
+     * @return Topic of single readings of the given reference, for use with {@link #publishReading(String, Reading)}.
+     */
+    public abstract String getReadingTopic(String reference);
+
+    /**
+     * Publishes a single reading to a topic obtained from {@link #getReadingTopic(String)}.
+     */
+    public void publishReading(String topic, Reading reading) {
+        publish(topic, reading, MessageClass.READINGS);
+    }
+
+    /**
+     * Publishes the readings, split into messages within the configured limits.
+     * If a message fails, the messages published before it are not taken back.
+     */
     public abstract void publishReadings(Collection<Reading> readings);
 
+    /**
+     * Publishes the readings like {@link #publishReadings(Collection)}, without waiting for their delivery
+     * if the client is pipelined.
+     *
+     * @return Completes when all messages carrying the readings are delivered.
+     */
+    public abstract CompletableFuture<Void> publishReadingsAsync(Collection<Reading> readings);
+
+    /**
+     * Publishes the readings like {@link #publishReadingsAsync(Collection)}, tagged as possible duplicates
+     * in the payload if some of them may have been delivered before, e.g. readings that are published again
+     * after their delivery failed.
+     */
+    public CompletableFuture<Void> publishReadingsAsync(Collection<Reading> readings, boolean possibleDuplicate) {
+        return publishReadingsAsync(readings);
+    }
+
+    /**
+     * Publishes the values of a batch, within the same limits as {@link #publishReadings(Collection)}.
+     */
+    public void publishReadingBatch(ReadingBatch batch) {
+        publishReadings(batch.toReadings());
+    }
+
     public abstract void publishAlarm(Alarm alarm);
 
+    /**
+     * @return Topic of single alarms of the given reference, for use with {@link #publishAlarm(String, Alarm)}.
+     */
+    public abstract String getAlarmTopic(String reference);
+
+    /**
+     * Publishes a single alarm to a topic obtained from {@link #getAlarmTopic(String)}.
+     */
+    public void publishAlarm(String topic, Alarm alarm) {
+        publish(topic, alarm, MessageClass.ALARMS);
+    }
+
     public abstract void publishAlarms(Collection<Alarm> alarms);
 
+    /**
+     * @see #publishReadingsAsync(Collection)
+     */
+    public abstract CompletableFuture<Void> publishAlarmsAsync(Collection<Alarm> alarms);
+
+    /**
+     * @see #publishReadingsAsync(Collection, boolean)
+     */
+    public CompletableFuture<Void> publishAlarmsAsync(Collection<Alarm> alarms, boolean possibleDuplicate) {
+        return publishAlarmsAsync(alarms);
+    }
+
     public abstract void publishConfiguration(Collection<Configuration> configurations);
 
     public abstract void publishActuatorStatus(ActuatorStatus actuatorStatus);
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes messages arriving on an MQTT connection shared by many devices to the listeners of the devices.
+ * <p>
+ * A topic filter is subscribed once for all devices, with the level holding the device key replaced
+ * by a wildcard. Arriving messages are routed by the device key in their topic, instead of being matched
+ * against the filters of every device.
+ */
+public class TopicDispatcher {
+
+    private final MqttClient client;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    public TopicDispatcher(MqttClient client) {
+        if (client == null) {
+            throw new IllegalArgumentException("Client must be set.");
+        }
+
+        this.client = client;
+    }
+
+    /**
+     * Routes the messages of the topic filter to the listener of the device. The connection subscribes
+     * to the filter the first time a device uses it, or when it connects, see {@link #resubscribe()}.
+     *
+     * @param filter    Topic filter of the device.
+     * @param keyLevel  Index of the level of the filter that holds the device key.
+     * @param deviceKey Key of the device.
+     * @throws IllegalArgumentException if the level of the filter is not the device key.
+     */
+    public void subscribe(String filter, int keyLevel, String deviceKey, IMqttMessageListener listener)
+            throws MqttException {
+        final String[] levels = filter.split("/", -1);
+        if (keyLevel < 0 || keyLevel >= levels.length || !levels[keyLevel].equals(deviceKey)) {
+            throw new IllegalArgumentException("Level " + keyLevel + " of topic filter " + filter
+                    + " is not device key " + deviceKey);
+        }
+
+        levels[keyLevel] = "+";
+        final String shared = String.join("/", levels);
+        final Route created = new Route(keyLevel);
+        final Route existing = routes.putIfAbsent(shared, created);
+        final Route route = existing == null ? created : existing;
+        route.listeners.put(deviceKey, listener);
+
+        if (existing == null && client.isConnected()) {
+            client.subscribe(shared, Protocol.QOS, route);
+        }
+    }
+
+    /**
+     * Stops routing messages to the device. The connection stays subscribed to the shared filters.
+     */
+    public void unsubscribe(String deviceKey) {
+        for (Route route : routes.values()) {
+            route.listeners.remove(deviceKey);
+        }
+    }
+
+    /**
+     * Subscribes the connection to all shared filters, after it connects.
+     */
+    public void resubscribe() throws MqttException {
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            client.subscribe(entry.getKey(), Protocol.QOS, entry.getValue());
+        }
+    }
+
+    /**
+     * @return The given level of the topic, or null if the topic has fewer levels.
+     */
+    static String level(String topic, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = topic.indexOf('/', start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+
+        final int end = topic.indexOf('/', start);
+        return end < 0 ? topic.substring(start) : topic.substring(start, end);
+    }
+
+    private static final class Route implements IMqttMessageListener {
+
+        private final int keyLevel;
+        private final Map<String, IMqttMessageListener> listeners = new ConcurrentHashMap<>();
+
+        private Route(int keyLevel) {
+            this.keyLevel = keyLevel;
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            final String deviceKey = level(topic, keyLevel);
+            final IMqttMessageListener listener = deviceKey == null ? null : listeners.get(deviceKey);
+            if (listener != null) {
+                listener.messageArrived(topic, message);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * MQTT client whose publishes take a slot of an {@link InflightWindow} until they are delivered,
+ * so concurrent publishers get backpressure instead of exceeding the inflight limit of the client.
+ * <p>
+ * Publishes from the callback thread of the client, e.g. statuses published in response to a received message,
+ * never wait for a slot, as slots are released on that thread. They fail right away if the window is full.
+ */
+public class WindowedMqttClient extends MqttClient {
+
+    /**
+     * Name of the callback thread of the client, followed by the client ID.
+     */
+    private static final String CALLBACK_THREAD_NAME = "MQTT Call: ";
+
+    protected final InflightWindow window;
+
+    public WindowedMqttClient(String serverURI, String clientId, MqttClientPersistence persistence,
+                              InflightWindow window) throws MqttException {
+        super(serverURI, clientId, persistence);
+
+        if (window == null) {
+            throw new IllegalArgumentException("Inflight window must be set.");
+        }
+
+        this.window = window;
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message) throws MqttException {
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        }
+
+        try {
+            super.publish(topic, message);
+        } finally {
+            window.release();
+        }
+    }
+
+    /**
+     * Takes a slot of the window, without waiting for one on the callback thread.
+     */
+    protected void acquire() throws MqttException, InterruptedException {
+        if (isCallbackThread()) {
+            window.tryAcquire();
+        } else {
+            window.acquire();
+        }
+    }
+
+    protected boolean isCallbackThread() {
+        return Thread.currentThread().getName().equals(CALLBACK_THREAD_NAME + getClientId());
+    }
+
+    public InflightWindow getInflightWindow() {
+        return window;
+    }
+}
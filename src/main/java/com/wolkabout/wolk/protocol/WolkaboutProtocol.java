@@ -19,8 +19,9 @@ package com.wolkabout.wolk.protocol;
 import com.wolkabout.wolk.model.*;
 import com.wolkabout.wolk.protocol.handler.ActuatorHandler;
 import com.wolkabout.wolk.protocol.handler.ConfigurationHandler;
-import com.wolkabout.wolk.util.JsonMultivalueSerializer;
-import com.wolkabout.wolk.util.JsonUtil;
+import com.wolkabout.wolk.util.GroupedPayloadWriter;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -28,7 +29,9 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class WolkaboutProtocol extends Protocol {
 
@@ -44,6 +47,8 @@ public class WolkaboutProtocol extends Protocol {
     private static final String KEEP_ALIVE_REQUEST = "ping/";
     private static final String KEEP_ALIVE_RESPONSE = "pong/";
 
+    private final GroupedPayloadWriter payloadWriter;
+
     public long getPlatformTimestamp() {
         return platformTimestamp;
     }
@@ -54,18 +59,30 @@ public class WolkaboutProtocol extends Protocol {
 
 
     public WolkaboutProtocol(MqttClient client, ActuatorHandler actuatorHandler, ConfigurationHandler configurationHandler) {
-        super(client, actuatorHandler, configurationHandler);
+        this(client, actuatorHandler, configurationHandler, JacksonPayloadCodec.json());
+    }
+
+    public WolkaboutProtocol(MqttClient client, ActuatorHandler actuatorHandler, ConfigurationHandler configurationHandler,
+                             PayloadCodec codec) {
+        this(client, null, null, actuatorHandler, configurationHandler, codec);
+    }
+
+    public WolkaboutProtocol(MqttClient client, String deviceKey, TopicDispatcher dispatcher,
+                             ActuatorHandler actuatorHandler, ConfigurationHandler configurationHandler,
+                             PayloadCodec codec) {
+        super(client, deviceKey, dispatcher, actuatorHandler, configurationHandler, codec);
+        payloadWriter = new GroupedPayloadWriter(codec.getFactory());
     }
 
     @Override
     public void subscribe() throws Exception {
-        client.subscribe(ACTUATOR_SET + client.getClientId() + "/r/#", QOS, new IMqttMessageListener() {
+        subscribe(ACTUATOR_SET, "/r/#", new IMqttMessageListener() {
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
-                final HashMap<String, Object> actuation = JsonUtil.deserialize(message, HashMap.class);
+                final HashMap<String, Object> actuation = codec.decode(message.getPayload(), HashMap.class);
                 final Object value = actuation.get("value");
 
-                final String reference = topic.substring((ACTUATOR_SET + client.getClientId() + "/r/").length());
+                final String reference = topic.substring((ACTUATOR_SET + getDeviceKey() + "/r/").length());
                 final ActuatorCommand actuatorCommand = new ActuatorCommand();
                 actuatorCommand.setCommand(ActuatorCommand.CommandType.SET);
                 actuatorCommand.setReference(reference);
@@ -76,10 +93,10 @@ public class WolkaboutProtocol extends Protocol {
             }
         });
 
-        client.subscribe(CONFIGURATION_SET + client.getClientId(), QOS, new IMqttMessageListener() {
+        subscribe(CONFIGURATION_SET, "", new IMqttMessageListener() {
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
-                final HashMap<String, Object> config = JsonUtil.deserialize(message, HashMap.class);
+                final HashMap<String, Object> config = codec.decode(message.getPayload(), HashMap.class);
                 final ConfigurationCommand configurationCommand = new ConfigurationCommand(ConfigurationCommand.CommandType.SET, config);
 
                 configurationHandler.onConfigurationReceived(configurationCommand.getValues());
@@ -88,10 +105,10 @@ public class WolkaboutProtocol extends Protocol {
             }
         });
 
-        client.subscribe(KEEP_ALIVE_RESPONSE + client.getClientId(), QOS, new IMqttMessageListener() {
+        subscribe(KEEP_ALIVE_RESPONSE, "", new IMqttMessageListener() {
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
-                final HashMap<String, Object> response = JsonUtil.deserialize(message, HashMap.class);
+                final HashMap<String, Object> response = codec.decode(message.getPayload(), HashMap.class);
                 setPlatformTimestamp((long) response.get("value"));
 
             }
@@ -100,60 +117,79 @@ public class WolkaboutProtocol extends Protocol {
 
     @Override
     public void publishReading(Reading reading) {
-        publish(SENSOR_READING + client.getClientId() + "/r/" + reading.getReference(), reading);
+        publishReading(getReadingTopic(reading.getReference()), reading);
+    }
+
+    @Override
+    public String getReadingTopic(String reference) {
+        return SENSOR_READING + getDeviceKey() + "/r/" + reference;
     }
 
     @Override
     public void publishReadings(Collection<Reading> readings) {
+        logFailure(publishReadingsAsync(readings), "readings");
+    }
+
+    @Override
+    public CompletableFuture<Void> publishReadingsAsync(Collection<Reading> readings) {
+        return publishReadingsAsync(readings, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishReadingsAsync(Collection<Reading> readings, boolean possibleDuplicate) {
         if (readings.isEmpty()) {
-            return;
+            return DELIVERED;
         }
 
-        final HashMap<Long, Map<String, Object>> payloadByTime = new HashMap<>();
-        for (Reading reading : readings) {
-            if (payloadByTime.containsKey(reading.getUtc())) {
-                final Map<String, Object> readingMap = payloadByTime.get(reading.getUtc());
-                if (!readingMap.containsKey(reading.getReference())) {
-                    readingMap.put(reading.getReference(), JsonMultivalueSerializer.valuesToString(reading.getValues()));
-                }
-            } else {
-                final HashMap<String, Object> readingMap = new HashMap<>();
-                readingMap.put("utc", reading.getUtc());
-                readingMap.put(reading.getReference(), JsonMultivalueSerializer.valuesToString(reading.getValues()));
-                payloadByTime.put(reading.getUtc(), readingMap);
-            }
+        final String topic = SENSOR_READING + getDeviceKey();
+        final List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        payloadWriter.writeReadings(readings, getMaxReadingsPerMessage(), getMaxPayloadSize(), possibleDuplicate,
+                payload -> deliveries.add(publishBatch(topic, payload, MessageClass.READINGS)));
+        return allDelivered(deliveries);
+    }
+
+    @Override
+    public void publishReadingBatch(ReadingBatch batch) {
+        if (batch.isEmpty()) {
+            return;
         }
 
-        publish(SENSOR_READING + client.getClientId(), new ArrayList<>(payloadByTime.values()));
+        final String topic = SENSOR_READING + getDeviceKey();
+        payloadWriter.writeReadingBatch(batch, getMaxReadingsPerMessage(), getMaxPayloadSize(),
+                payload -> logFailure(publishBatch(topic, payload, MessageClass.READINGS), "reading batch"));
     }
 
     @Override
     public void publishAlarm(Alarm alarm) {
-        publish(ALARM + client.getClientId() + "/r/" + alarm.getReference(), alarm);
+        publishAlarm(getAlarmTopic(alarm.getReference()), alarm);
+    }
+
+    @Override
+    public String getAlarmTopic(String reference) {
+        return ALARM + getDeviceKey() + "/r/" + reference;
     }
 
     @Override
     public void publishAlarms(Collection<Alarm> alarms) {
-        if (alarms.isEmpty()) {
-            return;
-        }
+        logFailure(publishAlarmsAsync(alarms), "alarms");
+    }
 
-        final HashMap<Long, Map<String, Object>> payloadByTime = new HashMap<>();
-        for (Alarm alarm : alarms) {
-            if (payloadByTime.containsKey(alarm.getUtc())) {
-                final Map<String, Object> alarmMap = payloadByTime.get(alarm.getUtc());
-                if (!alarmMap.containsKey(alarm.getReference())) {
-                    alarmMap.put(alarm.getReference(), alarm.getActive());
-                }
-            } else {
-                final HashMap<String, Object> alarmMap = new HashMap<>();
-                alarmMap.put("utc", alarm.getUtc());
-                alarmMap.put(alarm.getReference(), alarm.getActive());
-                payloadByTime.put(alarm.getUtc(), alarmMap);
-            }
+    @Override
+    public CompletableFuture<Void> publishAlarmsAsync(Collection<Alarm> alarms) {
+        return publishAlarmsAsync(alarms, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAlarmsAsync(Collection<Alarm> alarms, boolean possibleDuplicate) {
+        if (alarms.isEmpty()) {
+            return DELIVERED;
         }
 
-        publish(ALARM + client.getClientId(), new ArrayList<>(payloadByTime.values()));
+        final String topic = ALARM + getDeviceKey();
+        final List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        payloadWriter.writeAlarms(alarms, getMaxReadingsPerMessage(), getMaxPayloadSize(), possibleDuplicate,
+                payload -> deliveries.add(publishBatch(topic, payload, MessageClass.ALARMS)));
+        return allDelivered(deliveries);
     }
 
     @Override
@@ -167,16 +203,17 @@ public class WolkaboutProtocol extends Protocol {
 
         payload.put("values", values);
 
-        publish(CONFIGURATION_STATUS + client.getClientId(), payload);
+        publish(CONFIGURATION_STATUS + getDeviceKey(), payload, MessageClass.STATUSES);
     }
 
     @Override
     public void publishActuatorStatus(ActuatorStatus actuatorStatus) {
-        publish(ACTUATOR_STATUS + client.getClientId() + "/r/" + actuatorStatus.getReference(), actuatorStatus);
+        publish(ACTUATOR_STATUS + getDeviceKey() + "/r/" + actuatorStatus.getReference(), actuatorStatus,
+                MessageClass.STATUSES);
     }
 
     @Override
     public void publishKeepAlive() {
-        publish(KEEP_ALIVE_REQUEST + client.getClientId(), null);
+        publish(KEEP_ALIVE_REQUEST + getDeviceKey(), null, MessageClass.STATUSES);
     }
 }
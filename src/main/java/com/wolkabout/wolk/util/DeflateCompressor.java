@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads in the zlib format.
+ * <p>
+ * Compressed payloads are published to their topic with {@link #TOPIC_SUFFIX} appended, so the receiver
+ * knows to decompress them. Payloads below the threshold, or ones that would not get smaller,
+ * are left as they are. Each thread reuses its own deflater and output buffer.
+ */
+public class DeflateCompressor {
+
+    public static final String TOPIC_SUFFIX = "/deflate";
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final int threshold;
+    private final ThreadLocal<Scratch> scratch;
+
+    public DeflateCompressor() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param threshold Size in bytes below which payloads are not compressed.
+     * @param level     Compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+     */
+    public DeflateCompressor(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compression threshold cannot be negative.");
+        }
+
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        this.threshold = threshold;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(level));
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return The compressed payload, or null if it should be sent uncompressed.
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < threshold) {
+            return null;
+        }
+
+        final Scratch scratch = this.scratch.get();
+        final Deflater deflater = scratch.deflater;
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == scratch.buffer.length) {
+                if (length >= payload.length) {
+                    return null;
+                }
+
+                scratch.buffer = Arrays.copyOf(scratch.buffer, Math.min(payload.length, length * 2));
+            }
+
+            length += deflater.deflate(scratch.buffer, length, scratch.buffer.length - length);
+        }
+
+        return length < payload.length ? Arrays.copyOf(scratch.buffer, length) : null;
+    }
+
+    public static byte[] decompress(byte[] payload) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length * 4);
+            final byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed payload is truncated.");
+                }
+
+                output.write(buffer, 0, length);
+            }
+
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed payload.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Deflater and buffer reused by a single thread.
+     */
+    private static final class Scratch {
+
+        private final Deflater deflater;
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        private Scratch(int level) {
+            deflater = new Deflater(level);
+        }
+    }
+}
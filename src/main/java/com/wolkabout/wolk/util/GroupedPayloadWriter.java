@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.NumericValueList;
+import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.model.ReadingBatch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Writes readings and alarms grouped by their timestamp, as an array of objects holding the
+ * timestamp and the value of each reference: {@code [{"utc":1000,"T":"21.5","H":"40"}]}.
+ * Only the first value of a reference is written for a timestamp. Groups are written in time order.
+ * <p>
+ * The payload is generated straight into a buffer that is reused by the calling thread,
+ * and copied out once per message. Large collections can be cut into multiple messages while
+ * they are written, each holding at most a given number of values and bytes. Message sizes are
+ * computed for JSON, which also bounds the size of the same payload written as CBOR.
+ */
+public class GroupedPayloadWriter {
+
+    private static final ItemFormat<Reading> READINGS = new ItemFormat<Reading>("readings") {
+        @Override
+        long utc(Reading reading) {
+            return reading.getUtc();
+        }
+
+        @Override
+        String reference(Reading reading) {
+            return reading.getReference();
+        }
+
+        @Override
+        CharSequence value(Scratch scratch, Reading reading) {
+            return scratch.join(reading.getValues());
+        }
+    };
+
+    private static final ItemFormat<Alarm> ALARMS = new ItemFormat<Alarm>("alarms") {
+        @Override
+        long utc(Alarm alarm) {
+            return alarm.getUtc();
+        }
+
+        @Override
+        String reference(Alarm alarm) {
+            return alarm.getReference();
+        }
+
+        @Override
+        CharSequence value(Scratch scratch, Alarm alarm) {
+            return alarm.getActive();
+        }
+    };
+
+    private static final Format<ReadingBatch> BATCH = new Format<ReadingBatch>("reading batch") {
+        @Override
+        long utc(ReadingBatch batch, int index) {
+            return batch.getUtc();
+        }
+
+        @Override
+        String reference(ReadingBatch batch, int index) {
+            return batch.getReference(index);
+        }
+
+        @Override
+        CharSequence value(Scratch scratch, ReadingBatch batch, int index) {
+            if (!batch.isNumeric(index)) {
+                return batch.getValue(index);
+            }
+
+            scratch.values.setLength(0);
+            batch.appendValue(index, scratch.values);
+            return scratch.values;
+        }
+    };
+
+    // Above this group size, written references are looked up in a hash table instead of being scanned.
+    private static final int SCAN_LIMIT = 16;
+
+    // Length of {"utc":
+    private static final int GROUP_START_SIZE = 7;
+
+    /**
+     * Field set to true in the groups of a message whose values may have been delivered before,
+     * see {@link #writeReadings(Collection, int, int, boolean, Consumer)}.
+     */
+    public static final String DUPLICATE_FIELD = "duplicate";
+
+    // Length of ,"duplicate":true
+    private static final int DUPLICATE_FIELD_SIZE = DUPLICATE_FIELD.length() + 8;
+
+    private final JsonFactory factory;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public GroupedPayloadWriter(JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    public byte[] writeReadings(Collection<Reading> readings) {
+        return writeSingle(readings, READINGS);
+    }
+
+    /**
+     * Writes the readings as one or more messages, passing each to the sink as soon as it is complete.
+     * A value that does not fit into an empty message on its own is written as a message by itself.
+     *
+     * @param maxValues Maximum number of values in a message.
+     * @param maxBytes  Maximum size of a message in bytes.
+     * @param sink      Receives the messages in order. Writing stops if it throws.
+     */
+    public void writeReadings(Collection<Reading> readings, int maxValues, int maxBytes, Consumer<byte[]> sink) {
+        write(readings, READINGS, maxValues, maxBytes, false, sink);
+    }
+
+    /**
+     * Writes the readings like {@link #writeReadings(Collection, int, int, Consumer)}, with
+     * {@link #DUPLICATE_FIELD} set in every group if they may have been delivered before.
+     */
+    public void writeReadings(Collection<Reading> readings, int maxValues, int maxBytes, boolean possibleDuplicate,
+                              Consumer<byte[]> sink) {
+        write(readings, READINGS, maxValues, maxBytes, possibleDuplicate, sink);
+    }
+
+    public byte[] writeAlarms(Collection<Alarm> alarms) {
+        return writeSingle(alarms, ALARMS);
+    }
+
+    /**
+     * @see #writeReadings(Collection, int, int, Consumer)
+     */
+    public void writeAlarms(Collection<Alarm> alarms, int maxValues, int maxBytes, Consumer<byte[]> sink) {
+        write(alarms, ALARMS, maxValues, maxBytes, false, sink);
+    }
+
+    /**
+     * @see #writeReadings(Collection, int, int, boolean, Consumer)
+     */
+    public void writeAlarms(Collection<Alarm> alarms, int maxValues, int maxBytes, boolean possibleDuplicate,
+                            Consumer<byte[]> sink) {
+        write(alarms, ALARMS, maxValues, maxBytes, possibleDuplicate, sink);
+    }
+
+    public byte[] writeReadingBatch(ReadingBatch batch) {
+        final byte[][] payload = new byte[1][];
+        writeReadingBatch(batch, Integer.MAX_VALUE, Integer.MAX_VALUE, message -> payload[0] = message);
+        return payload[0];
+    }
+
+    /**
+     * Writes the batch as a single group, without sorting or copying its values.
+     *
+     * @see #writeReadings(Collection, int, int, Consumer)
+     */
+    public void writeReadingBatch(ReadingBatch batch, int maxValues, int maxBytes, Consumer<byte[]> sink) {
+        checkLimits(maxValues, maxBytes);
+        write(batch, batch.size(), BATCH, this.scratch.get(), maxValues, maxBytes, sink);
+    }
+
+    private <T> byte[] writeSingle(Collection<T> items, ItemFormat<T> format) {
+        final byte[][] payload = new byte[1][];
+        write(items, format, Integer.MAX_VALUE, Integer.MAX_VALUE, false, message -> payload[0] = message);
+        return payload[0];
+    }
+
+    private <T> void write(Collection<T> items, ItemFormat<T> format, int maxValues, int maxBytes,
+                           boolean possibleDuplicate, Consumer<byte[]> sink) {
+        checkLimits(maxValues, maxBytes);
+
+        final Scratch scratch = this.scratch.get();
+        final int count = scratch.sort(items, format);
+        scratch.duplicate = possibleDuplicate;
+        try {
+            write(scratch.items, count, format, scratch, maxValues, maxBytes, sink);
+        } finally {
+            Arrays.fill(scratch.items, 0, count, null);
+        }
+    }
+
+    private <S> void write(S source, int count, Format<S> format, Scratch scratch,
+                           int maxValues, int maxBytes, Consumer<byte[]> sink) {
+        try {
+            int next = 0;
+            do {
+                next = scratch.writeMessage(factory, format, source, next, count, maxValues, maxBytes);
+                sink.accept(scratch.buffer.toByteArray());
+                scratch.buffer.reset();
+            } while (next < count);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not serialize " + format.name + ".", e);
+        } finally {
+            scratch.reset();
+        }
+    }
+
+    private static void checkLimits(int maxValues, int maxBytes) {
+        if (maxValues <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Message limits must be positive.");
+        }
+    }
+
+    /**
+     * Length in bytes of the string written as a JSON string value, without the quotes.
+     */
+    private static int jsonLength(CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x20) {
+                length += c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r' ? 2 : 6;
+            } else if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                // A surrogate pair is written as four bytes.
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    private static int numberLength(long value) {
+        if (value < 0) {
+            return Long.toString(value).length();
+        }
+
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+
+        return length;
+    }
+
+    /**
+     * Reads the values to write from a source, by index.
+     */
+    private abstract static class Format<S> {
+
+        private final String name;
+
+        private Format(String name) {
+            this.name = name;
+        }
+
+        abstract long utc(S source, int index);
+
+        abstract String reference(S source, int index);
+
+        /**
+         * @return The value to write, which may be held by the scratch buffers until the next call.
+         */
+        abstract CharSequence value(Scratch scratch, S source, int index);
+    }
+
+    /**
+     * Reads the values to write from an array of items, sorted by their timestamp.
+     */
+    private abstract static class ItemFormat<T> extends Format<Object[]> {
+
+        private final Comparator<Object> byUtc;
+
+        @SuppressWarnings("unchecked")
+        private ItemFormat(String name) {
+            super(name);
+            this.byUtc = Comparator.comparingLong(item -> utc((T) item));
+        }
+
+        abstract long utc(T item);
+
+        abstract String reference(T item);
+
+        abstract CharSequence value(Scratch scratch, T item);
+
+        @Override
+        @SuppressWarnings("unchecked")
+        final long utc(Object[] items, int index) {
+            return utc((T) items[index]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        final String reference(Object[] items, int index) {
+            return reference((T) items[index]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        final CharSequence value(Scratch scratch, Object[] items, int index) {
+            return value(scratch, (T) items[index]);
+        }
+    }
+
+    /**
+     * Buffers reused by a single thread.
+     */
+    private static final class Scratch {
+
+        private final ByteArrayBuilder buffer = new ByteArrayBuilder();
+        private final StringBuilder values = new StringBuilder();
+        private char[] chars = new char[64];
+        private Object[] items = new Object[64];
+        // References written in the current group. Above the scan limit, they are also hashed into the table.
+        private String[] group = new String[SCAN_LIMIT];
+        private String[] table = new String[4 * SCAN_LIMIT];
+        private int groupSize = -1;
+        private long groupUtc;
+        private boolean duplicate;
+
+        private int sort(Collection<?> collection, ItemFormat<?> format) {
+            final int count = collection.size();
+            if (items.length < count) {
+                items = new Object[Math.max(count, items.length * 2)];
+            }
+
+            int i = 0;
+            for (Object item : collection) {
+                items[i++] = item;
+            }
+
+            // Stable and close to linear for data that is already mostly in time order.
+            Arrays.sort(items, 0, count, format.byUtc);
+            return count;
+        }
+
+        /**
+         * Writes a message starting with the value at the given index, until one of the limits is reached.
+         *
+         * @return Index of the first value that was not written.
+         */
+        private <S> int writeMessage(JsonFactory factory, Format<S> format, S source, int index, int count,
+                                     int maxValues, int maxBytes) throws IOException {
+            try (JsonGenerator generator = factory.createGenerator(buffer)) {
+                generator.writeStartArray();
+                // Bytes written so far, not counting the closing brackets of the open group and the array.
+                long size = 1;
+                int written = 0;
+                boolean groupOpen = false;
+
+                for (; index < count && written < maxValues; index++) {
+                    final long utc = format.utc(source, index);
+                    final String reference = format.reference(source, index);
+                    final boolean sameGroup = groupSize >= 0 && utc == groupUtc;
+                    if (sameGroup && contains(reference)) {
+                        continue;
+                    }
+
+                    final CharSequence value = format.value(this, source, index);
+                    final int fieldSize = jsonLength(reference) + jsonLength(value) + 5;
+                    final long added = groupOpen && sameGroup
+                            ? 1 + fieldSize
+                            : (groupOpen ? 2 : 0) + GROUP_START_SIZE + numberLength(utc) + 1 + fieldSize
+                            + (duplicate ? DUPLICATE_FIELD_SIZE : 0);
+                    if (written > 0 && size + added + 2 > maxBytes) {
+                        break;
+                    }
+
+                    if (!groupOpen || !sameGroup) {
+                        if (groupOpen) {
+                            generator.writeEndObject();
+                        }
+
+                        generator.writeStartObject();
+                        generator.writeNumberField("utc", utc);
+                        if (duplicate) {
+                            generator.writeBooleanField(DUPLICATE_FIELD, true);
+                        }
+                        groupOpen = true;
+                        if (!sameGroup) {
+                            startGroup(utc);
+                        }
+                    }
+
+                    add(reference);
+                    generator.writeFieldName(reference);
+                    writeString(generator, value);
+                    size += added;
+                    written++;
+                }
+
+                // Duplicates of the last group are dropped here, so the next message does not start with nothing
+                // left to write.
+                while (index < count && groupSize >= 0 && format.utc(source, index) == groupUtc
+                        && contains(format.reference(source, index))) {
+                    index++;
+                }
+
+                if (groupOpen) {
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            }
+
+            return index;
+        }
+
+        private void startGroup(long utc) {
+            if (groupSize > SCAN_LIMIT) {
+                Arrays.fill(table, null);
+            }
+
+            groupUtc = utc;
+            groupSize = 0;
+        }
+
+        private boolean contains(String reference) {
+            if (groupSize > SCAN_LIMIT) {
+                final int mask = table.length - 1;
+                for (int i = slot(reference, mask); table[i] != null; i = (i + 1) & mask) {
+                    if (table[i].equals(reference)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            for (int i = 0; i < groupSize; i++) {
+                if (group[i].equals(reference)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void add(String reference) {
+            if (groupSize == group.length) {
+                group = Arrays.copyOf(group, groupSize * 2);
+            }
+            group[groupSize++] = reference;
+
+            if (groupSize > SCAN_LIMIT) {
+                if (groupSize * 2 > table.length) {
+                    table = new String[table.length * 2];
+                    for (int i = 0; i < groupSize; i++) {
+                        insert(group[i]);
+                    }
+                } else if (groupSize == SCAN_LIMIT + 1) {
+                    for (int i = 0; i < groupSize; i++) {
+                        insert(group[i]);
+                    }
+                } else {
+                    insert(reference);
+                }
+            }
+        }
+
+        private void insert(String reference) {
+            final int mask = table.length - 1;
+            int i = slot(reference, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = reference;
+        }
+
+        private static int slot(String reference, int mask) {
+            final int hash = reference.hashCode();
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        private CharSequence join(List<String> values) {
+            if (values instanceof NumericValueList) {
+                this.values.setLength(0);
+                ((NumericValueList) values).appendTo(this.values);
+                return this.values;
+            }
+
+            if (values.size() == 1) {
+                return values.get(0);
+            }
+
+            this.values.setLength(0);
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    this.values.append(JsonMultivalueSerializer.MULTIVALUE_DELIMITER);
+                }
+                this.values.append(values.get(i));
+            }
+
+            return this.values;
+        }
+
+        private void writeString(JsonGenerator generator, CharSequence value) throws IOException {
+            if (value != values) {
+                generator.writeString(value.toString());
+                return;
+            }
+
+            final int length = value.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+
+            values.getChars(0, length, chars, 0);
+            generator.writeString(chars, 0, length);
+        }
+
+        private void reset() {
+            if (groupSize > SCAN_LIMIT) {
+                Arrays.fill(table, null);
+            }
+            Arrays.fill(group, 0, Math.max(groupSize, 0), null);
+            groupSize = -1;
+            duplicate = false;
+            buffer.reset();
+        }
+    }
+}
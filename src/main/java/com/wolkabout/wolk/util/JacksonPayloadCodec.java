@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Payload codec backed by a Jackson data format.
+ * <p>
+ * JSON is what the platform expects. CBOR encodes the same structure in binary, which makes
+ * payloads smaller, but needs a receiver that understands it.
+ */
+public class JacksonPayloadCodec implements PayloadCodec {
+
+    private static final JacksonPayloadCodec JSON = new JacksonPayloadCodec(new ObjectMapper());
+
+    private final ObjectMapper mapper;
+
+    public JacksonPayloadCodec(ObjectMapper mapper) {
+        if (mapper == null) {
+            throw new IllegalArgumentException("Object mapper must be set.");
+        }
+
+        this.mapper = mapper;
+    }
+
+    public static JacksonPayloadCodec json() {
+        return JSON;
+    }
+
+    public static JacksonPayloadCodec cbor() {
+        return new JacksonPayloadCodec(new ObjectMapper(new CBORFactory()));
+    }
+
+    @Override
+    public byte[] encode(Object payload) {
+        try {
+            return mapper.writeValueAsBytes(payload);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Could not serialize: " + payload, e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] payload, Class<T> type) {
+        try {
+            return mapper.readValue(payload, type);
+        } catch (Exception e) {
+            final String content = getFactory().canHandleBinaryNatively()
+                    ? payload.length + " bytes"
+                    : new String(payload, StandardCharsets.UTF_8);
+            throw new IllegalArgumentException("Unable to deserialize " + type.getName() + " from " + content, e);
+        }
+    }
+
+    @Override
+    public JsonFactory getFactory() {
+        return mapper.getFactory();
+    }
+}
@@ -10,7 +10,7 @@ import java.util.Arrays;
 import java.util.List;
 
 public class JsonMultivalueSerializer extends StdSerializer<List<String>> {
-    private static final String MULTIVALUE_DELIMITER = ",";
+    static final String MULTIVALUE_DELIMITER = ",";
 
     public JsonMultivalueSerializer() {
         this(null);
@@ -21,15 +21,11 @@ public class JsonMultivalueSerializer extends StdSerializer<List<String>> {
     }
 
     public static String valuesToString(List<String> values) {
-        String multival = "";
-        for (int i = 0; i < values.size(); ++i) {
-            multival += values.get(i);
-            if (i != values.size() - 1) {
-                multival += MULTIVALUE_DELIMITER;
-            }
+        if (values.size() == 1) {
+            return values.get(0);
         }
 
-        return multival;
+        return String.join(MULTIVALUE_DELIMITER, values);
     }
 
     public static List<String> valuesFromString(String value) {
@@ -16,45 +16,27 @@
  */
 package com.wolkabout.wolk.util;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import java.nio.charset.StandardCharsets;
 
 public class JsonUtil {
 
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final PayloadCodec codec = JacksonPayloadCodec.json();
 
     private JsonUtil() {
         // Not meant to be instantiated.
     }
 
     public static <T> T deserialize(MqttMessage message, Class<T> type) {
-        final String payload = extractPayload(message);
-        return deserialize(payload, type);
-    }
-
-    private static String extractPayload(MqttMessage message) {
-        try {
-            return new String(message.getPayload(), StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Unable to extract payload from: " + message, e);
-        }
+        return codec.decode(message.getPayload(), type);
     }
 
     public static <T> T deserialize(String payload, Class<T> type) {
-        try {
-            return mapper.readValue(payload, type);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Unable to deserialize " + type.getName() + " from " + payload, e);
-        }
+        return codec.decode(payload.getBytes(StandardCharsets.UTF_8), type);
     }
 
     public static byte[] serialize(Object object) {
-        try {
-            return mapper.writeValueAsString(object).getBytes(StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Could not serialize: " + object, e);
-        }
+        return codec.encode(object);
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+/**
+ * Formats doubles in the format of {@link Double#toString(double)}, with the fewest digits that read back
+ * as the same value.
+ * <p>
+ * Values from 10<sup>-3</sup> up to 10<sup>7</sup> with up to 15 significant digits, which covers most sensor
+ * values, are written without going through the general conversion. Other values fall back to it.
+ */
+public final class NumericFormat {
+
+    private static final int MAX_FRACTION_DIGITS = 17;
+    private static final double MAX_EXACT_LONG = 1L << 53;
+
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+    private static final long[] LONG_POWERS_OF_TEN = new long[MAX_FRACTION_DIGITS + 1];
+
+    static {
+        long power = 1;
+        for (int i = 0; i <= MAX_FRACTION_DIGITS; i++) {
+            LONG_POWERS_OF_TEN[i] = power;
+            DOUBLE_POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    private NumericFormat() {
+        // Not meant to be instantiated.
+    }
+
+    public static String toString(double value) {
+        final StringBuilder builder = new StringBuilder(24);
+        append(builder, value);
+        return builder.toString();
+    }
+
+    public static void append(StringBuilder builder, double value) {
+        final double abs = Math.abs(value);
+        // Also sends zero, infinities and NaN to the general conversion.
+        if (!(abs >= 1e-3 && abs < 1e7)) {
+            builder.append(value);
+            return;
+        }
+
+        for (int digits = 0; digits <= MAX_FRACTION_DIGITS; digits++) {
+            final double scaled = abs * DOUBLE_POWERS_OF_TEN[digits];
+            if (scaled >= MAX_EXACT_LONG) {
+                break;
+            }
+
+            // Both operands are exact, so the division is rounded just like parsing the decimal would be.
+            final long mantissa = (long) Math.rint(scaled);
+            if (mantissa / DOUBLE_POWERS_OF_TEN[digits] == abs) {
+                if (value < 0) {
+                    builder.append('-');
+                }
+
+                appendFixed(builder, mantissa, digits);
+                return;
+            }
+        }
+
+        builder.append(value);
+    }
+
+    private static void appendFixed(StringBuilder builder, long mantissa, int fractionDigits) {
+        final long power = LONG_POWERS_OF_TEN[fractionDigits];
+        builder.append(mantissa / power).append('.');
+        if (fractionDigits == 0) {
+            builder.append('0');
+            return;
+        }
+
+        final long fraction = mantissa % power;
+        for (long limit = power / 10; limit > fraction && limit > 1; limit /= 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+}
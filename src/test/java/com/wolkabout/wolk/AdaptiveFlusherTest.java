@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveFlusherTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Semaphore flushes = new Semaphore(0);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void flushesWhenCountIsReached() throws Exception {
+        final AdaptiveFlusher flusher = start(FlushPolicy.builder().maxReadings(3).maxAge(1, TimeUnit.HOURS).build());
+
+        flusher.onBuffered(1, 10);
+        flusher.onBuffered(1, 10);
+        assertFalse(flushes.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+        flusher.onBuffered(1, 10);
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+        assertEquals(0, flusher.getBufferedCount());
+    }
+
+    @Test
+    public void flushesWhenBytesAreReached() throws Exception {
+        final AdaptiveFlusher flusher = start(FlushPolicy.builder().maxBytes(100).maxAge(1, TimeUnit.HOURS).build());
+
+        flusher.onBuffered(1, 60);
+        assertFalse(flushes.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+        flusher.onBuffered(1, 60);
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushesWhenOldestReadingIsOld() throws Exception {
+        final AdaptiveFlusher flusher = start(FlushPolicy.builder().maxAge(50, TimeUnit.MILLISECONDS).build());
+
+        assertFalse("Idle flusher does not flush.", flushes.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        flusher.onBuffered(1, 10);
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+        assertFalse(flushes.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flushesOnPriorityAndStops() throws Exception {
+        final AdaptiveFlusher flusher = start(FlushPolicy.builder().build());
+
+        flusher.onPriority();
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+
+        flusher.stop();
+        flusher.onPriority();
+        assertFalse(flushes.tryAcquire(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void readingBufferedDuringFlushIsFlushedByAge() throws Exception {
+        final FlushPolicy policy = FlushPolicy.builder().maxAge(50, TimeUnit.MILLISECONDS).build();
+        final AdaptiveFlusher[] flusher = new AdaptiveFlusher[1];
+        final Semaphore flushing = new Semaphore(0);
+        flusher[0] = new AdaptiveFlusher(policy, executor, () -> {
+            if (flushing.tryAcquire()) {
+                flusher[0].onBuffered(1, 10);
+            }
+            flushes.release();
+        });
+        flusher[0].start();
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+
+        flushing.release();
+        flusher[0].onPriority();
+        assertTrue(flushes.tryAcquire(1, TimeUnit.SECONDS));
+        assertTrue("Reading buffered while flushing armed the timer.", flushes.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dropsFlushesWhenExecutorIsShutDown() throws Exception {
+        final AdaptiveFlusher flusher = start(FlushPolicy.builder().maxReadings(1).build());
+        executor.shutdown();
+
+        flusher.onBuffered(1, 10);
+        flusher.onPriority();
+        assertFalse(flushes.tryAcquire(100, TimeUnit.MILLISECONDS));
+    }
+
+    private AdaptiveFlusher start(FlushPolicy policy) throws InterruptedException {
+        final AdaptiveFlusher flusher = new AdaptiveFlusher(policy, executor, flushes::release);
+        flusher.start();
+        assertTrue("Starting flushes stored data.", flushes.tryAcquire(1, TimeUnit.SECONDS));
+        return flusher;
+    }
+}
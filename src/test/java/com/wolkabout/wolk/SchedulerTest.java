@@ -0,0 +1,53 @@
+package com.wolkabout.wolk;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SchedulerTest {
+
+    @Test
+    public void ownedExecutorNamesThreadsAndIsRecreatedAfterShutdown() throws Exception {
+        final Scheduler scheduler = new Scheduler(1, "wolk-device", 0, TimeUnit.MILLISECONDS);
+        final ScheduledExecutorService executor = scheduler.getExecutor();
+        assertEquals("wolk-device-1", executor.submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS));
+
+        scheduler.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        final ScheduledExecutorService recreated = scheduler.getExecutor();
+        assertNotSame(executor, recreated);
+        assertEquals("wolk-device-2", recreated.submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void sharedExecutorIsLeftRunning() {
+        final ScheduledExecutorService shared = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final Scheduler scheduler = new Scheduler(shared, 0, TimeUnit.MILLISECONDS);
+            assertSame(shared, scheduler.getExecutor());
+
+            scheduler.shutdown();
+            assertFalse(shared.isShutdown());
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
+    @Test
+    public void initialDelayIsBoundedByJitterAndPeriod() {
+        final Scheduler scheduler = new Scheduler(1, "wolk-device", 100, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            final long delay = scheduler.initialDelayNanos(TimeUnit.SECONDS.toNanos(1));
+            assertTrue(delay >= 0 && delay < TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(scheduler.initialDelayNanos(TimeUnit.MILLISECONDS.toNanos(10)) < TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        assertEquals(0, new Scheduler(1, "wolk-device", 0, TimeUnit.MILLISECONDS).initialDelayNanos(1000));
+    }
+}
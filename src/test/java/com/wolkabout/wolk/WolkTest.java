@@ -1,6 +1,35 @@
 package com.wolkabout.wolk;
 
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.persistence.InMemoryPersistence;
+import com.wolkabout.wolk.persistence.OverflowPolicy;
+import com.wolkabout.wolk.persistence.RingBufferPersistence;
+import com.wolkabout.wolk.protocol.Backpressure;
+import com.wolkabout.wolk.protocol.Protocol;
+import com.wolkabout.wolk.protocol.WolkaboutProtocol;
+import com.wolkabout.wolk.util.GroupedPayloadWriter;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 public class WolkTest {
 
@@ -32,6 +61,367 @@ public class WolkTest {
     public void publish() {
     }
 
+    @Test
+    public void publishSendsAlarmsBetweenReadingBatches() throws Exception {
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .publishBatchSize(2)
+                .build();
+        final Protocol protocol = mock(Protocol.class);
+        final Field field = Wolk.class.getDeclaredField("protocol");
+        field.setAccessible(true);
+        field.set(wolk, protocol);
+
+        for (int i = 0; i < 5; i++) {
+            wolk.addReading("T", i);
+        }
+        wolk.addAlarm("HH", true);
+        doAnswer(invocation -> {
+            wolk.addAlarm("LL", true);
+            return null;
+        }).doNothing().when(protocol).publishReadings(anyCollection());
+        doThrow(new IllegalStateException()).doNothing().when(protocol).publishActuatorStatus("SW");
+        wolk.publishActuatorStatus("SW");
+
+        wolk.publish();
+
+        final InOrder inOrder = inOrder(protocol);
+        inOrder.verify(protocol, times(2)).publishActuatorStatus("SW");
+        inOrder.verify(protocol).publishAlarms(anyCollection());
+        inOrder.verify(protocol).publishReadings(anyCollection());
+        inOrder.verify(protocol).publishAlarms(anyCollection());
+        inOrder.verify(protocol, times(2)).publishReadings(anyCollection());
+        verify(protocol, times(2)).publishAlarms(anyCollection());
+        verify(protocol, never()).publishAlarm(any(Alarm.class));
+    }
+
+    @Test
+    public void pipelinedPublishSettlesLeasesOnDelivery() throws Exception {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .commitAfterDelivery(true)
+                .publishBatchSize(2)
+                .build();
+        final Protocol protocol = mock(Protocol.class);
+        final CompletableFuture<Void> first = new CompletableFuture<>();
+        final CompletableFuture<Void> second = new CompletableFuture<>();
+        when(protocol.isPipelined()).thenReturn(true);
+        when(protocol.publishAlarmsAsync(anyCollection())).thenReturn(CompletableFuture.completedFuture(null));
+        when(protocol.publishReadingsAsync(anyCollection())).thenReturn(first).thenReturn(second);
+        final Field field = Wolk.class.getDeclaredField("protocol");
+        field.setAccessible(true);
+        field.set(wolk, protocol);
+
+        for (int i = 0; i < 3; i++) {
+            wolk.addReading("T", i, i);
+        }
+
+        wolk.publish();
+
+        verify(protocol, times(2)).publishReadingsAsync(anyCollection());
+        verify(protocol, never()).publishReadings(anyCollection());
+        assertNull(persistence.poll());
+
+        first.complete(null);
+        second.completeExceptionally(new IllegalStateException());
+        final List<Reading> remaining = persistence.getAll();
+        assertEquals(1, remaining.size());
+        assertEquals(2, remaining.get(0).getUtc());
+    }
+
+    @Test
+    public void rolledBackReadingsArePublishedToTheirTopicByDefault() throws Exception {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .commitAfterDelivery(true)
+                .build();
+        final MqttClient client = mock(MqttClient.class);
+        when(client.getClientId()).thenReturn("device_key");
+        doThrow(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED)).doNothing()
+                .when(client).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
+        final Field field = Wolk.class.getDeclaredField("protocol");
+        field.setAccessible(true);
+        field.set(wolk, new WolkaboutProtocol(client, null, null));
+
+        wolk.addReading("T", 1, 1);
+        wolk.publish();
+        wolk.publish();
+
+        final ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(client, times(2)).publish(eq("d2p/sensor_reading/d/device_key"), payload.capture(), anyInt(), anyBoolean());
+        assertFalse(new String(payload.getValue(), StandardCharsets.UTF_8).contains(GroupedPayloadWriter.DUPLICATE_FIELD));
+        assertNull(persistence.poll());
+    }
+
+    @Test
+    public void rolledBackReadingsAreTaggedAsPossibleDuplicatesWhenEnabled() throws Exception {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .commitAfterDelivery(true)
+                .tagDuplicates(true)
+                .build();
+        final Protocol protocol = mock(Protocol.class);
+        doThrow(new IllegalArgumentException()).doNothing().when(protocol).publishReadings(anyCollection());
+        when(protocol.publishReadingsAsync(anyCollection(), eq(true))).thenReturn(CompletableFuture.completedFuture(null));
+        final Field field = Wolk.class.getDeclaredField("protocol");
+        field.setAccessible(true);
+        field.set(wolk, protocol);
+
+        wolk.addReading("T", 1, 1);
+        wolk.publish();
+        verify(protocol).publishReadings(anyCollection());
+
+        wolk.addReading("T", 2, 2);
+        wolk.publish();
+        verify(protocol).publishReadingsAsync(anyCollection(), eq(true));
+        assertNull(persistence.poll());
+
+        wolk.addReading("T", 3, 3);
+        wolk.publish();
+        verify(protocol, times(2)).publishReadings(anyCollection());
+        verify(protocol, never()).publishReadingsAsync(anyCollection(), eq(false));
+    }
+
+    @Test
+    public void readingsAreNotTaggedOnceRolledBackReadingsAreGone() throws Exception {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .commitAfterDelivery(true)
+                .tagDuplicates(true)
+                .build();
+        final Protocol protocol = mock(Protocol.class);
+        doThrow(new IllegalArgumentException()).doNothing().when(protocol).publishReadings(anyCollection());
+        final Field field = Wolk.class.getDeclaredField("protocol");
+        field.setAccessible(true);
+        field.set(wolk, protocol);
+
+        wolk.addReading("T", 1, 1);
+        wolk.publish();
+        persistence.removeAll();
+
+        wolk.addReading("T", 2, 2);
+        wolk.publish();
+        verify(protocol, times(2)).publishReadings(anyCollection());
+        verify(protocol, never()).publishReadingsAsync(anyCollection(), anyBoolean());
+    }
+
+    @Test
+    public void inflightWindowRequiresBackpressure() {
+        final Wolk unlimited = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .build();
+        assertNull(unlimited.getInflightWindow());
+
+        final Wolk limited = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .maxInflight(5)
+                .backpressure(Backpressure.block())
+                .build()
+                .build();
+        assertEquals(5, limited.getInflightWindow().getCapacity());
+    }
+
+    @Test
+    public void gatewayDevicesShareTheConnection() throws Exception {
+        final Gateway gateway = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("gateway_key")
+                .password("password")
+                .build()
+                .buildGateway();
+        final Wolk first = gateway.device("first").build();
+        final Wolk second = gateway.device("second").build();
+
+        final Field client = Wolk.class.getDeclaredField("client");
+        client.setAccessible(true);
+        assertSame(client.get(first), client.get(second));
+
+        final Field protocol = Wolk.class.getDeclaredField("protocol");
+        protocol.setAccessible(true);
+        assertEquals("d2p/sensor_reading/d/first/r/T", ((Protocol) protocol.get(first)).getReadingTopic("T"));
+        assertEquals("d2p/sensor_reading/d/second/r/T", ((Protocol) protocol.get(second)).getReadingTopic("T"));
+    }
+
+    @Test
+    public void gatewayDisconnectPublishesLastWillsOfDevices() throws Exception {
+        final MqttClient client = mock(MqttClient.class);
+        when(client.isConnected()).thenReturn(true);
+        final MqttConnectOptions options = new MqttConnectOptions();
+        options.setWill("lastwill/gateway_key", "Gone offline".getBytes(), 2, false);
+        final Gateway gateway = new Gateway(client, options, new Scheduler(1, "gateway", 0, TimeUnit.MILLISECONDS), 0);
+
+        final Wolk first = gateway.device("first").build();
+        final Wolk second = gateway.device("second").build();
+        first.connect();
+        second.connect();
+        first.startPublishing(FlushPolicy.builder().build());
+
+        gateway.disconnect();
+
+        final InOrder order = inOrder(client);
+        order.verify(client).publish(eq("lastwill/first"), any(byte[].class), eq(2), eq(false));
+        order.verify(client).publish(eq("lastwill/gateway_key"), any(byte[].class), eq(2), eq(false));
+        order.verify(client).disconnect();
+        verify(client).publish(eq("lastwill/second"), any(byte[].class), eq(2), eq(false));
+
+        // Producers of a disconnected device only store readings.
+        first.addReading("T", "1");
+    }
+
+    @Test
+    public void gatewayRejectsDeviceKeysThatAreNotTopicLevels() {
+        final Gateway gateway = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("gateway_key")
+                .password("password")
+                .build()
+                .buildGateway();
+
+        for (String key : new String[]{"", "a/b", "+", "device#"}) {
+            try {
+                gateway.device(key);
+                fail("Device key is not a topic level: " + key);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void alarmsRefusedByFullStoreAreCounted() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(1, OverflowPolicy.DROP_OLDEST);
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .build();
+
+        wolk.addAlarm("A", true);
+        wolk.addAlarm("A", false);
+
+        assertEquals(1, wolk.getRejectedAlarms());
+        assertEquals("true", persistence.pollAlarms().getActive());
+    }
+
+    @Test
+    public void sensorHandleStoresReadings() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .build();
+
+        final SensorHandle sensor = wolk.sensor(new String("T"));
+        sensor.record(21.5, 1000);
+        sensor.record(22L, 2000);
+        wolk.alarm("HH").record(true, 3000);
+
+        assertSame("T", sensor.getReference());
+        final Reading first = persistence.poll();
+        assertEquals("T", first.getReference());
+        assertEquals("21.5", first.getValues().get(0));
+        assertEquals(1000, first.getUtc());
+        assertEquals("22", persistence.poll().getValues().get(0));
+        assertEquals("true", persistence.pollAlarms().getActive());
+    }
+
+    @Test
+    public void frameStoresReadingsWithSharedTimestamp() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .persistence(persistence)
+                .build();
+
+        wolk.frame(1000).put("T", 21.5).put("H", 40).put("SW", true).commit();
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(3, readings.size());
+        assertEquals("T", readings.get(0).getReference());
+        assertEquals("21.5", readings.get(0).getValues().get(0));
+        assertEquals("40", readings.get(1).getValues().get(0));
+        assertEquals("true", readings.get(2).getValues().get(0));
+        for (Reading reading : readings) {
+            assertEquals(1000, reading.getUtc());
+        }
+    }
+
+    @Test
+    public void handlesPublishToPrecomputedTopics() throws Exception {
+        final Wolk wolk = Wolk.builder()
+                .mqtt()
+                .host("ssl://api-demo.wolkabout.com:8883")
+                .deviceKey("device_key")
+                .password("password")
+                .build()
+                .build();
+        final Protocol protocol = mock(Protocol.class);
+        when(protocol.getReadingTopic("T")).thenReturn("readings/T");
+        when(protocol.getAlarmTopic("HH")).thenReturn("alarms/HH");
+        final Field protocolField = Wolk.class.getDeclaredField("protocol");
+        protocolField.setAccessible(true);
+        protocolField.set(wolk, protocol);
+        final Field persistenceField = Wolk.class.getDeclaredField("persistence");
+        persistenceField.setAccessible(true);
+        persistenceField.set(wolk, null);
+
+        final SensorHandle sensor = wolk.sensor("T");
+        sensor.record(21.5);
+        sensor.record(22.5);
+        wolk.alarm("HH").record(true);
+
+        verify(protocol, times(1)).getReadingTopic("T");
+        verify(protocol, times(2)).publishReading(eq("readings/T"), any(Reading.class));
+        verify(protocol).publishAlarm(eq("alarms/HH"), any(Alarm.class));
+    }
+
     @Test
     public void addReading() {
     }
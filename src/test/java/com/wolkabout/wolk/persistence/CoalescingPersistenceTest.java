@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoalescingPersistenceTest {
+
+    @Test
+    public void onlyLatestValueOfCoalescedReferenceIsKept() {
+        final CoalescingPersistence persistence = new CoalescingPersistence(new InMemoryPersistence(), "SP");
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading("SP", (long) i, i);
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(101, readings.size());
+        assertEquals("SP", readings.get(0).getReference());
+        assertEquals("99", readings.get(0).getValues().get(0));
+        assertEquals("T", readings.get(1).getReference());
+    }
+
+    @Test
+    public void olderValueDoesNotReplaceNewerOne() {
+        final CoalescingPersistence persistence = new CoalescingPersistence(new InMemoryPersistence(), "SP");
+        persistence.addReading(new Reading("SP", "2", 2000));
+        persistence.addReading(new Reading("SP", "1", 1000));
+
+        assertEquals("2", persistence.poll().getValues().get(0));
+        assertNull(persistence.poll());
+    }
+
+    @Test
+    public void rolledBackValueDoesNotReplaceNewerOne() {
+        final CoalescingPersistence persistence = new CoalescingPersistence(new InMemoryPersistence(), "SP", "STATE");
+        persistence.addReading(new Reading("SP", "1", 1000));
+        persistence.addReading(new Reading("STATE", "ON", 1000));
+        persistence.addReading(new Reading("T", "20", 1000));
+
+        final Lease<Reading> lease = persistence.leaseReadings(10);
+        assertEquals(3, lease.getItems().size());
+        persistence.addReading(new Reading("SP", "2", 2000));
+        lease.rollback();
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(3, readings.size());
+        for (Reading reading : readings) {
+            if (reading.getReference().equals("SP")) {
+                assertEquals("2", reading.getValues().get(0));
+            }
+        }
+    }
+
+    @Test
+    public void alarmsAreCoalesced() {
+        final CoalescingPersistence persistence = new CoalescingPersistence(new InMemoryPersistence(), "HH");
+        persistence.addAlarm(new Alarm("HH", true, 1000L));
+        persistence.addAlarm(new Alarm("HH", false, 2000L));
+        persistence.addAlarm(new Alarm("LL", true, 1000L));
+        persistence.addAlarm(new Alarm("LL", false, 2000L));
+
+        final List<Alarm> alarms = persistence.getAllAlarms();
+        assertEquals(3, alarms.size());
+        assertEquals("false", alarms.get(0).getActive());
+    }
+
+    @Test
+    public void replacedRolledBackValueIsNotRedelivered() {
+        final CoalescingPersistence persistence = new CoalescingPersistence(new InMemoryPersistence(), "SP", "ST");
+        persistence.addReading(new Reading("SP", "1", 1000));
+        persistence.addReading(new Reading("ST", "1", 1000));
+
+        final Lease<Reading> lease = persistence.leaseReadings(10);
+        persistence.addReading(new Reading("SP", "2", 2000));
+        lease.rollback();
+
+        final Lease<Reading> again = persistence.leaseReadings(10);
+        assertEquals(2, again.getItems().size());
+        assertEquals("ST", again.getItems().get(0).getReference());
+        assertTrue(again.isRedelivered(0));
+        assertFalse(again.isRedelivered(1));
+    }
+}
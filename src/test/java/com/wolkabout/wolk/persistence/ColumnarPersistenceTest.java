@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarPersistenceTest {
+
+    @Test
+    public void numericReadingsAreFormattedWhenRead() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        persistence.addReading("T", 21.5, 1000);
+        persistence.addReading("P", 1013L, 1000);
+
+        final List<Reading> readings = persistence.getAll();
+        readings.sort((first, second) -> first.getReference().compareTo(second.getReference()));
+
+        assertEquals(2, readings.size());
+        assertEquals("P", readings.get(0).getReference());
+        assertEquals(Collections.singletonList("1013"), readings.get(0).getValues());
+        assertEquals("T", readings.get(1).getReference());
+        assertEquals(Collections.singletonList("21.5"), readings.get(1).getValues());
+        assertEquals(1000, readings.get(1).getUtc());
+        assertNull(persistence.poll());
+    }
+
+    @Test
+    public void readingsOfOneReferenceKeepTheirOrder() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        for (int i = 0; i < 5000; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(5000, readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            assertEquals(Long.toString(i), readings.get(i).getValues().get(0));
+            assertEquals(i, readings.get(i).getUtc());
+        }
+    }
+
+    @Test
+    public void numericReadingsAreUnwrapped() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        persistence.addReading(new Reading("T", 21.5, 1000));
+        persistence.addReading(new Reading("T", 22L, 2000));
+        persistence.addReading(new Reading("ACL", Arrays.asList("0.4", "0.2", "0.0"), 3000));
+
+        final List<Reading> readings = new ArrayList<>();
+        assertEquals(2, persistence.drainTo(readings, 2));
+        assertEquals("21.5", readings.get(0).getValues().get(0));
+        assertEquals("22", readings.get(1).getValues().get(0));
+
+        final Reading multiValue = persistence.poll();
+        assertEquals(Arrays.asList("0.4", "0.2", "0.0"), multiValue.getValues());
+        assertNull(persistence.poll());
+    }
+
+    @Test
+    public void columnIsReusedAfterDrain() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        persistence.addReading("T", 1.0, 1);
+        assertNotNull(persistence.poll());
+
+        persistence.addReading("T", 2.0, 2);
+        persistence.addReading("T", 3L, 3);
+        persistence.removeAll();
+        persistence.addReading("T", 4.0, 4);
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(1, readings.size());
+        assertEquals("4.0", readings.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void drainedColumnAcceptsOtherValueType() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        persistence.addReading("T", 1.0, 1);
+        assertNotNull(persistence.poll());
+
+        persistence.addReading("T", 2L, 2);
+
+        assertEquals("2", persistence.poll().getValues().get(0));
+    }
+
+    @Test
+    public void recycledChunksKeepReadingsInOrder() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5000; i++) {
+                persistence.addReading("T", (long) i, i);
+            }
+            persistence.addReading("T", 0.5, 5000);
+
+            final List<Reading> readings = persistence.getAll();
+            assertEquals(5001, readings.size());
+            for (int i = 0; i < 5000; i++) {
+                assertEquals(Integer.toString(i), readings.get(i).getValues().get(0));
+            }
+            assertEquals("0.5", readings.get(5000).getValues().get(0));
+
+            persistence.addReading("T", 1L, 1);
+            persistence.removeAll();
+        }
+    }
+
+    @Test
+    public void alarmsAreStoredSeparately() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        persistence.addAlarm(new Alarm("HH", true, 1000L));
+
+        assertNull(persistence.poll());
+        assertEquals("HH", persistence.pollAlarms().getReference());
+        assertNull(persistence.pollAlarms());
+    }
+
+    @Test
+    public void rolledBackLeaseIsReturnedFirst() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading(new Reading("S", "on", 0));
+
+        final Lease<Reading> lease = persistence.leaseReadings(4);
+        assertEquals(4, lease.getItems().size());
+        persistence.addReading("T", 5L, 5);
+        lease.rollback();
+
+        final List<Reading> readings = new ArrayList<>();
+        assertEquals(7, persistence.drainTo(readings, 10));
+        final List<String> values = new ArrayList<>();
+        for (Reading reading : readings) {
+            if (reading.getReference().equals("T")) {
+                values.add(reading.getValues().get(0));
+            }
+        }
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5"), values);
+    }
+
+    @Test
+    public void numericReadingsCanBeRemoved() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        for (int i = 0; i < 40; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading("T", 0.5, 40);
+
+        persistence.leaseReadings(2).rollback();
+        persistence.remove(new Reading("T", 1L, 1));
+        for (int i = 2; i < 16; i++) {
+            persistence.remove(new Reading("T", (long) i, i));
+        }
+        persistence.remove(new Reading("T", 20L, 20));
+        persistence.remove(new Reading("T", 20L, 20));
+        persistence.remove(new Reading("T", 0.5, 40));
+        persistence.remove(new Reading("T", 21L, 22));
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(24, readings.size());
+        assertEquals("0", readings.get(0).getValues().get(0));
+        assertEquals("16", readings.get(1).getValues().get(0));
+        assertEquals("21", readings.get(5).getValues().get(0));
+        assertEquals("39", readings.get(23).getValues().get(0));
+
+        persistence.addReading("T", 41L, 41);
+        assertEquals("41", persistence.poll().getValues().get(0));
+    }
+
+    @Test
+    public void readingsAreRemovedByFilter() {
+        final ColumnarPersistence persistence = new ColumnarPersistence();
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading(new Reading("S", "text", 0));
+        persistence.leaseReadings(3).rollback();
+
+        assertEquals(51, persistence.removeReadingsIf(reading -> reading.getUtc() % 2 == 0));
+        persistence.addReading("T", 101L, 101);
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(51, readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            assertEquals(Integer.toString(2 * i + 1), readings.get(i).getValues().get(0));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompactingPersistenceTest {
+
+    @Test
+    public void oldestReadingsAreAggregatedPerWindow() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 100, 1, TimeUnit.MINUTES);
+        for (int i = 0; i <= 100; i++) {
+            persistence.addReading("T", (double) i, i * 1000L);
+        }
+
+        assertEquals(50, persistence.getCompactedReadings());
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(51, readings.size());
+        assertEquals(Arrays.asList("0.0", "50.0", "25.0", "51"), readings.get(0).getValues());
+        assertEquals(0, readings.get(0).getUtc());
+        assertEquals(Arrays.asList("51.0"), readings.get(1).getValues());
+        assertEquals(51_000, readings.get(1).getUtc());
+        assertEquals(Arrays.asList("100.0"), readings.get(50).getValues());
+    }
+
+    @Test
+    public void referencesAreAggregatedSeparatelyAndOtherReadingsKept() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 10, 10, TimeUnit.SECONDS);
+        for (int i = 0; i < 6; i++) {
+            persistence.addReading("T", (long) i, i * 1000L);
+            persistence.addReading(new Reading("SW", Boolean.toString(i % 2 == 0), i * 1000L));
+        }
+
+        persistence.compact();
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals("T", readings.get(0).getReference());
+        assertEquals(Arrays.asList("0.0", "2.0", "1.0", "3"), readings.get(0).getValues());
+        assertEquals("SW", readings.get(1).getReference());
+        assertEquals(Arrays.asList("true"), readings.get(1).getValues());
+    }
+
+    @Test
+    public void rolledBackCompactedReadingsStayFirst() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 4, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(2);
+        assertEquals(4, lease.getItems().get(0).getValues().size());
+        lease.rollback();
+
+        assertEquals(4, persistence.poll().getValues().size());
+    }
+
+    @Test
+    public void removedReadingsAreNotCountedTowardsTheWatermark() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 10, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 10; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        assertEquals(4, persistence.removeReadingsIf(reading -> reading.getUtc() < 4));
+        persistence.remove(new Reading("T", 4L, 4));
+        for (int i = 10; i < 15; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        assertEquals(0, persistence.getCompactedReadings());
+        assertEquals(10, persistence.getAll().size());
+    }
+
+    @Test
+    public void compactedReadingsAreRemoved() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 4, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        assertEquals(1, persistence.removeReadingsIf(reading -> reading.getValues().size() == 4));
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(2, readings.size());
+        assertEquals(Arrays.asList("3"), readings.get(0).getValues());
+    }
+
+    @Test
+    public void adjacentAggregatesAreMergedAboveTheWatermark() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 4, 1, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final List<Reading> readings = persistence.getAll();
+        assertTrue(readings.size() <= 8);
+        assertEquals(Arrays.asList("0.0"), readings.get(0).getValues().subList(0, 1));
+        assertEquals(0, readings.get(0).getUtc());
+
+        long count = 0;
+        for (Reading reading : readings) {
+            count += reading.getValues().size() == 4 ? Long.parseLong(reading.getValues().get(3)) : 1;
+        }
+        assertEquals(100, count);
+        assertEquals(0, persistence.getDroppedReadings());
+    }
+
+    @Test
+    public void oldestCompactedReadingsAreDroppedWhenTheyCannotBeMerged() {
+        final CompactingPersistence persistence = new CompactingPersistence(new InMemoryPersistence(), 4, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 20; i++) {
+            persistence.addReading(new Reading("S", "v" + i, i));
+        }
+
+        final List<Reading> readings = persistence.getAll();
+        assertTrue(readings.size() <= 8);
+        assertEquals(20, readings.size() + persistence.getDroppedReadings());
+        assertEquals(Arrays.asList("v19"), readings.get(readings.size() - 1).getValues());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedPersistenceTest {
+
+    @Test
+    public void irregularSeriesIsRestoredExactly() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        final Random random = new Random(42);
+        final long[] utc = new long[3000];
+        final double[] values = new double[utc.length];
+        final long[] steps = {0, 1, 60, 250, 2000, 100_000, -5, Integer.MAX_VALUE * 4L};
+        long time = 1_500_000_000_000L;
+        for (int i = 0; i < utc.length; i++) {
+            time += 1000 + steps[random.nextInt(steps.length)];
+            utc[i] = time;
+            values[i] = i % 100 == 0 ? Double.NaN : random.nextGaussian() * Math.pow(10, random.nextInt(10) - 5);
+            persistence.addReading("T", values[i], utc[i]);
+        }
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(utc.length, readings.size());
+        for (int i = 0; i < utc.length; i++) {
+            assertEquals(utc[i], readings.get(i).getUtc());
+            assertEquals(Double.toString(values[i]), readings.get(i).getValues().get(0));
+        }
+        assertEquals(0, persistence.getCompressedBytes());
+    }
+
+    @Test
+    public void longValuesAreRestored() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        persistence.addReading("C", 1L, 1000);
+        persistence.addReading("C", -7L, 2000);
+        persistence.addReading("C", Long.MAX_VALUE, 3000);
+        persistence.addReading("C", 2.5, 4000);
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals("1", readings.get(0).getValues().get(0));
+        assertEquals("-7", readings.get(1).getValues().get(0));
+        assertEquals(Long.toString(Long.MAX_VALUE), readings.get(2).getValues().get(0));
+        assertEquals("2.5", readings.get(3).getValues().get(0));
+        assertEquals(4000, readings.get(3).getUtc());
+    }
+
+    @Test
+    public void slowlyChangingSeriesIsSmall() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        final int count = 100_000;
+        for (int i = 0; i < count; i++) {
+            persistence.addReading("T", 20 + (i / 600) * 0.5, 1_500_000_000_000L + i * 1000L);
+        }
+
+        // A Reading with its value list and strings takes well over 100 bytes on the heap.
+        assertTrue(persistence.getCompressedBytes() < count);
+    }
+
+    @Test
+    public void readingsAreDecompressedWhileDraining() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        for (int i = 0; i < 2500; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final List<Reading> batch = new ArrayList<>();
+        assertEquals(1500, persistence.drainTo(batch, 1500));
+        persistence.addReading("T", 2500L, 2500);
+        persistence.addReading(new Reading("ACL", Arrays.asList("0.4", "0.2", "0.0"), 3000));
+
+        batch.clear();
+        assertEquals(1002, persistence.drainTo(batch, 2000));
+        assertEquals("1500", batch.get(0).getValues().get(0));
+        assertEquals("2500", batch.get(1000).getValues().get(0));
+        assertEquals("ACL", batch.get(1001).getReference());
+        assertNull(persistence.poll());
+    }
+
+    @Test
+    public void rolledBackLeaseIsReturnedFirst() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading(new Reading("S", "on", 0));
+
+        final Lease<Reading> lease = persistence.leaseReadings(4);
+        assertEquals(4, lease.getItems().size());
+        persistence.addReading("T", 5L, 5);
+        lease.rollback();
+
+        final List<Reading> readings = new ArrayList<>();
+        assertEquals(7, persistence.drainTo(readings, 10));
+        final List<String> values = new ArrayList<>();
+        for (Reading reading : readings) {
+            if (reading.getReference().equals("T")) {
+                values.add(reading.getValues().get(0));
+            }
+        }
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5"), values);
+    }
+
+    @Test
+    public void numericReadingsCanBeRemoved() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        for (int i = 0; i < 40; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading("T", 0.5, 40);
+
+        persistence.leaseReadings(2).rollback();
+        persistence.remove(new Reading("T", 1L, 1));
+        for (int i = 2; i < 16; i++) {
+            persistence.remove(new Reading("T", (long) i, i));
+        }
+        persistence.remove(new Reading("T", 20L, 20));
+        persistence.remove(new Reading("T", 20L, 20));
+        persistence.remove(new Reading("T", 0.5, 40));
+        persistence.remove(new Reading("T", 21L, 22));
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(24, readings.size());
+        assertEquals("0", readings.get(0).getValues().get(0));
+        assertEquals("16", readings.get(1).getValues().get(0));
+        assertEquals("21", readings.get(5).getValues().get(0));
+        assertEquals("39", readings.get(23).getValues().get(0));
+
+        persistence.addReading("T", 41L, 41);
+        assertEquals("41", persistence.poll().getValues().get(0));
+    }
+
+    @Test
+    public void blocksOfRemovedReadingsAreDropped() {
+        final CompressedPersistence persistence = new CompressedPersistence();
+        for (int i = 0; i < 3 * GorillaBlock.MAX_POINTS; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.poll();
+        final long bytes = persistence.getCompressedBytes();
+
+        final int cut = 2 * GorillaBlock.MAX_POINTS + 10;
+        assertEquals(cut - 1, persistence.removeReadingsIf(reading -> reading.getUtc() < cut));
+        assertTrue(persistence.getCompressedBytes() < bytes / 2);
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(GorillaBlock.MAX_POINTS - 10, readings.size());
+        assertEquals(Integer.toString(cut), readings.get(0).getValues().get(0));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+public class FilePersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readingsAreReturnedInOrder() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath());
+        persistence.addReading(new Reading("T", "21.5", 1000));
+        persistence.addReading(new Reading("ACL", Arrays.asList("0.4", "0.2", "0.0"), 2000));
+
+        final Reading first = persistence.poll();
+        assertEquals("T", first.getReference());
+        assertEquals(Arrays.asList("21.5"), first.getValues());
+        assertEquals(1000, first.getUtc());
+
+        final Reading second = persistence.poll();
+        assertEquals("ACL", second.getReference());
+        assertEquals(Arrays.asList("0.4", "0.2", "0.0"), second.getValues());
+        assertEquals(2000, second.getUtc());
+
+        assertNull(persistence.poll());
+        assertTrue(persistence.isEmpty());
+    }
+
+    @Test
+    public void alarmsAreStoredSeparately() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath());
+        persistence.addAlarm(new Alarm("HH", true, 1000L));
+        persistence.addReading(new Reading("T", "21.5", 1000));
+
+        final List<Alarm> alarms = persistence.getAllAlarms();
+        assertEquals(1, alarms.size());
+        assertEquals("HH", alarms.get(0).getReference());
+        assertEquals("true", alarms.get(0).getActive());
+        assertEquals(1000, alarms.get(0).getUtc());
+        assertNull(persistence.pollAlarms());
+        assertEquals(1, persistence.getAll().size());
+    }
+
+    @Test
+    public void backlogSurvivesRestart() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath());
+        for (int i = 0; i < 10; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+        persistence.poll();
+        persistence.poll();
+        persistence.close();
+
+        final FilePersistence reopened = new FilePersistence(folder.getRoot().getPath());
+        assertEquals("2", reopened.poll().getValues().get(0));
+        reopened.addReading(new Reading("T", "10", 10));
+
+        final List<Reading> readings = reopened.getAll();
+        assertEquals(8, readings.size());
+        assertEquals("10", readings.get(7).getValues().get(0));
+    }
+
+    @Test
+    public void drainedSegmentsAreDeleted() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 128);
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final File readings = new File(folder.getRoot(), "readings");
+        assertTrue(Objects.requireNonNull(readings.listFiles()).length > 1);
+
+        final List<Reading> drained = persistence.getAll();
+        assertEquals(100, drained.size());
+        for (int i = 0; i < drained.size(); i++) {
+            assertEquals(Integer.toString(i), drained.get(i).getValues().get(0));
+        }
+        assertEquals(1, Objects.requireNonNull(readings.listFiles()).length);
+    }
+
+    @Test
+    public void removeAllClearsBacklog() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 128);
+        for (int i = 0; i < 20; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        persistence.removeAll();
+
+        assertNull(persistence.poll());
+        persistence.addReading(new Reading("T", "1", 1));
+        assertEquals(1, persistence.getAll().size());
+    }
+
+    @Test
+    public void removedRecordsAreSkippedAfterRestart() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 128);
+        for (int i = 0; i < 10; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+        persistence.addAlarm(new Alarm("HH", true, 1L));
+        persistence.addAlarm(new Alarm("HH", false, 2L));
+
+        final Lease<Reading> lease = persistence.leaseReadings(2);
+        persistence.remove(new Reading("T", "1", 1));
+        persistence.remove(new Reading("T", "5", 5));
+        persistence.remove(new Reading("T", "9", 9));
+        persistence.removeAlarm(new Alarm("HH", true, 1L));
+        lease.rollback();
+        persistence.close();
+
+        final FilePersistence reopened = new FilePersistence(folder.getRoot().getPath(), 128);
+        final List<Reading> readings = reopened.getAll();
+        assertEquals(7, readings.size());
+        assertEquals("0", readings.get(0).getValues().get(0));
+        assertEquals("2", readings.get(1).getValues().get(0));
+        assertEquals("8", readings.get(6).getValues().get(0));
+        final List<Alarm> alarms = reopened.getAllAlarms();
+        assertEquals(1, alarms.size());
+        assertEquals("false", alarms.get(0).getActive());
+        assertTrue(reopened.isEmpty());
+        assertEquals(1, Objects.requireNonNull(new File(folder.getRoot(), "readings").listFiles()).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordLargerThanSegmentIsRejected() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 64);
+        final char[] value = new char[100];
+        Arrays.fill(value, 'x');
+        persistence.addReading(new Reading("T", new String(value)));
+    }
+
+    @Test
+    public void leaseIsRemovedOnlyWhenCommitted() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 128);
+        for (int i = 0; i < 20; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final Lease<Reading> first = persistence.leaseReadings(5);
+        final Lease<Reading> second = persistence.leaseReadings(5);
+        assertEquals("5", second.getItems().get(0).getValues().get(0));
+
+        second.commit();
+        first.rollback();
+
+        final Lease<Reading> retried = persistence.leaseReadings(100);
+        assertEquals(20, retried.getItems().size());
+        assertEquals("0", retried.getItems().get(0).getValues().get(0));
+        retried.commit();
+        assertTrue(persistence.isEmpty());
+    }
+
+    @Test
+    public void uncommittedLeaseIsReplayedAfterRestart() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath(), 128);
+        for (int i = 0; i < 20; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        persistence.leaseReadings(5).commit();
+        persistence.leaseReadings(10);
+        persistence.close();
+
+        final FilePersistence reopened = new FilePersistence(folder.getRoot().getPath(), 128);
+        final List<Reading> readings = reopened.getAll();
+        assertEquals(15, readings.size());
+        assertEquals("5", readings.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void rolledBackReadingsAreReportedAsRedelivered() {
+        final FilePersistence persistence = new FilePersistence(folder.getRoot().getPath());
+        for (int i = 0; i < 6; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final Lease<Reading> first = persistence.leaseReadings(2);
+        final Lease<Reading> second = persistence.leaseReadings(2);
+        assertFalse(second.isRedelivered(0));
+        first.rollback();
+
+        final Lease<Reading> again = persistence.leaseReadings(5);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(again.isRedelivered(i));
+        }
+        assertFalse(again.isRedelivered(4));
+    }
+}
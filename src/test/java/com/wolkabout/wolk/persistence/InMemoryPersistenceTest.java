@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InMemoryPersistenceTest {
+
+    @Test
+    public void drainToIsBounded() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final List<Reading> batch = new ArrayList<>();
+        assertEquals(2, persistence.drainTo(batch, 2));
+        assertEquals("0", batch.get(0).getValues().get(0));
+        assertEquals("1", batch.get(1).getValues().get(0));
+
+        batch.clear();
+        assertEquals(3, persistence.drainTo(batch, 10));
+        assertEquals(0, persistence.drainTo(batch, 10));
+    }
+
+    @Test
+    public void drainAlarmsToIsBounded() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        persistence.addAlarm(new Alarm("HH", true, 1L));
+        persistence.addAlarm(new Alarm("HH", false, 2L));
+
+        final List<Alarm> batch = new ArrayList<>();
+        assertEquals(1, persistence.drainAlarmsTo(batch, 1));
+        assertEquals(1L, batch.get(0).getUtc());
+        assertEquals(2L, persistence.pollAlarms().getUtc());
+    }
+
+    @Test
+    public void committedLeaseRemovesReadings() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(3);
+        assertEquals(3, lease.getItems().size());
+        lease.commit();
+        lease.rollback();
+
+        final List<Reading> remaining = persistence.getAll();
+        assertEquals(2, remaining.size());
+        assertEquals("3", remaining.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void rolledBackLeaseKeepsOrder() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(3);
+        persistence.addReading(new Reading("T", "5", 5));
+        lease.rollback();
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(6, readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            assertEquals(Integer.toString(i), readings.get(i).getValues().get(0));
+        }
+    }
+
+    @Test
+    public void alarmLeaseRollback() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        persistence.addAlarm(new Alarm("HH", true, 1L));
+        persistence.addAlarm(new Alarm("HH", false, 2L));
+
+        final Lease<Alarm> lease = persistence.leaseAlarms(10);
+        assertEquals(2, lease.getItems().size());
+        assertNull(persistence.pollAlarms());
+
+        lease.rollback();
+        assertEquals(1L, persistence.pollAlarms().getUtc());
+    }
+
+    @Test
+    public void removeAllAlarmsKeepsReadings() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        persistence.addReading(new Reading("T", "1"));
+        persistence.addAlarm(new Alarm("HH", true));
+
+        persistence.removeAllAlarms();
+
+        assertNull(persistence.pollAlarms());
+        assertNotNull(persistence.poll());
+    }
+
+    @Test
+    public void rolledBackReadingsAreReportedAsRedelivered() {
+        final InMemoryPersistence persistence = new InMemoryPersistence();
+        for (int i = 0; i < 4; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+
+        final Lease<Reading> first = persistence.leaseReadings(2);
+        assertFalse(first.isRedelivered(0));
+        first.rollback();
+
+        final Lease<Reading> second = persistence.leaseReadings(3);
+        assertTrue(second.isRedelivered(0));
+        assertTrue(second.isRedelivered(1));
+        assertFalse(second.isRedelivered(2));
+        second.commit();
+
+        assertFalse(persistence.leaseReadings(2).isRedelivered(0));
+    }
+}
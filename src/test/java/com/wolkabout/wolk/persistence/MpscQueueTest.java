@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+
+    @Test
+    public void itemsAreReturnedInOrderAcrossChunks() {
+        final MpscQueue<Integer> queue = new MpscQueue<>();
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(i);
+        }
+
+        final List<Integer> items = new ArrayList<>();
+        assertEquals(3000, queue.drainTo(items, 3000));
+        assertEquals(2000, queue.drainTo(items, Integer.MAX_VALUE));
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(i, (int) items.get(i));
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test(timeout = 10_000)
+    public void concurrentProducersLoseNothing() throws Exception {
+        final MpscQueue<long[]> queue = new MpscQueue<>();
+        final int producers = 8;
+        final int perProducer = 50_000;
+        final ExecutorService executor = Executors.newFixedThreadPool(producers);
+        for (int producer = 0; producer < producers; producer++) {
+            final long id = producer;
+            executor.execute(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    queue.offer(new long[]{id, i});
+                }
+            });
+        }
+        executor.shutdown();
+
+        final long[] next = new long[producers];
+        final List<long[]> batch = new ArrayList<>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            batch.clear();
+            received += queue.drainTo(batch, 100);
+            for (long[] item : batch) {
+                assertEquals(next[(int) item[0]]++, item[1]);
+            }
+        }
+
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void restoredItemsAreReturnedFirst() {
+        final MpscQueue<Integer> queue = new MpscQueue<>();
+        queue.offer(1);
+        queue.offer(2);
+        final Integer first = queue.poll();
+        queue.offer(3);
+
+        queue.restore(Arrays.asList(first));
+
+        final List<Integer> items = new ArrayList<>();
+        queue.drainTo(items, 10);
+        assertEquals(Arrays.asList(1, 2, 3), items);
+    }
+
+    @Test
+    public void removedItemIsSkipped() {
+        final MpscQueue<String> queue = new MpscQueue<>();
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+
+        queue.remove("b");
+
+        assertEquals("a", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+}
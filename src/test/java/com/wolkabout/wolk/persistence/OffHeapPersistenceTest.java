@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapPersistenceTest {
+
+    @Test
+    public void readingsAreRestoredInOrder() {
+        final OffHeapPersistence persistence = new OffHeapPersistence();
+        persistence.addReading("T", 21.5, 1000);
+        persistence.addReading("P", 1013L, 2000);
+        persistence.addReading(new Reading("ACL", Arrays.asList("0.4", "0.2", "0.0"), 3000));
+        persistence.addReading(new Reading("T", 22.0, 4000));
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(4, readings.size());
+        assertEquals("T", readings.get(0).getReference());
+        assertEquals("21.5", readings.get(0).getValues().get(0));
+        assertEquals(1000, readings.get(0).getUtc());
+        assertEquals("1013", readings.get(1).getValues().get(0));
+        assertEquals(Arrays.asList("0.4", "0.2", "0.0"), readings.get(2).getValues());
+        assertEquals("22.0", readings.get(3).getValues().get(0));
+        assertNull(persistence.poll());
+        assertEquals(0, persistence.getBytesInUse());
+    }
+
+    @Test
+    public void drainedSlabsArePooled() {
+        final OffHeapPersistence persistence = new OffHeapPersistence(1024, 2);
+        for (int i = 0; i < 1000; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        assertTrue(persistence.getSlabCount() > 10);
+        assertEquals(1000 * 21, persistence.getBytesInUse());
+
+        final List<Reading> readings = new ArrayList<>();
+        while (persistence.drainTo(readings, 100) > 0) {
+            assertEquals(Long.toString(readings.size() - 1), readings.get(readings.size() - 1).getValues().get(0));
+        }
+
+        assertEquals(1000, readings.size());
+        assertEquals(1, persistence.getSlabCount());
+        assertEquals(2, persistence.getPooledSlabCount());
+
+        final long allocated = persistence.getAllocatedSlabs();
+        persistence.addReading("T", 1L, 1);
+        persistence.addReading("T", 2L, 2);
+        assertEquals(allocated, persistence.getAllocatedSlabs());
+    }
+
+    @Test
+    public void rolledBackLeaseIsReturnedFirst() {
+        final OffHeapPersistence persistence = new OffHeapPersistence();
+        for (int i = 0; i < 5; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(3);
+        persistence.addReading("T", 5L, 5);
+        lease.rollback();
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(6, readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            assertEquals(Integer.toString(i), readings.get(i).getValues().get(0));
+        }
+    }
+
+    @Test
+    public void removedReadingsAreSkipped() {
+        final OffHeapPersistence persistence = new OffHeapPersistence(1024, 2);
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        persistence.addReading(new Reading("ACL", Arrays.asList("0.4", "0.2"), 100));
+
+        persistence.leaseReadings(2).rollback();
+        persistence.remove(new Reading("T", 50L, 50));
+        persistence.remove(new Reading("ACL", Arrays.asList("0.4", "0.2"), 100));
+        persistence.remove(new Reading("T", 0L, 0));
+        persistence.remove(new Reading("T", 1L, 2));
+        assertEquals(98, persistence.getReadingCount());
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(98, readings.size());
+        assertEquals("1", readings.get(0).getValues().get(0));
+        assertEquals("51", readings.get(49).getValues().get(0));
+        assertEquals("99", readings.get(97).getValues().get(0));
+        assertNull(persistence.poll());
+        assertEquals(0, persistence.getBytesInUse());
+        assertEquals(1, persistence.getSlabCount());
+    }
+
+    @Test
+    public void removingLastReadingsReleasesSlabs() {
+        final OffHeapPersistence persistence = new OffHeapPersistence(1024, 2);
+        for (int i = 0; i < 100; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            persistence.remove(new Reading("T", (long) i, i));
+        }
+
+        assertNull(persistence.poll());
+        assertEquals(1, persistence.getSlabCount());
+        assertEquals(0, persistence.getBytesInUse());
+        persistence.addReading("T", 1L, 1);
+        assertEquals("1", persistence.poll().getValues().get(0));
+    }
+
+    @Test
+    public void rolledBackLeaseCanBeRemovedAfterRemoveAll() {
+        final OffHeapPersistence persistence = new OffHeapPersistence();
+        for (int i = 0; i < 3; i++) {
+            persistence.addReading("T", (long) i, i);
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(2);
+        persistence.removeAll();
+        lease.rollback();
+
+        assertEquals(1, persistence.removeReadingsIf(reading -> reading.getUtc() == 0));
+        assertEquals("1", persistence.poll().getValues().get(0));
+        assertNull(persistence.poll());
+        persistence.addReading("T", 3L, 3);
+        assertEquals("3", persistence.poll().getValues().get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readingLargerThanSlabIsRejected() {
+        final OffHeapPersistence persistence = new OffHeapPersistence(64, 1);
+        final char[] value = new char[100];
+        Arrays.fill(value, 'x');
+        persistence.addReading(new Reading("T", new String(value)));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferPersistenceTest {
+
+    @Test
+    public void dropOldestKeepsNewestReadings() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(3, OverflowPolicy.DROP_OLDEST);
+        addReadings(persistence, 5);
+
+        assertEquals(2, persistence.getDroppedReadings());
+        assertEquals(Arrays.asList("2", "3", "4"), valuesOf(persistence.getAll()));
+    }
+
+    @Test
+    public void dropNewestKeepsOldestReadings() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(3, OverflowPolicy.DROP_NEWEST);
+        addReadings(persistence, 5);
+
+        assertEquals(2, persistence.getDroppedReadings());
+        assertEquals(Arrays.asList("0", "1", "2"), valuesOf(persistence.getAll()));
+    }
+
+    @Test
+    public void downsampleKeepsEveryNthReading() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(4, OverflowPolicy.DOWNSAMPLE, 2);
+        addReadings(persistence, 6);
+
+        assertEquals(2, persistence.getDroppedReadings());
+        assertEquals(Arrays.asList("0", "2", "4", "5"), valuesOf(persistence.getAll()));
+    }
+
+    @Test
+    public void blockWaitsForDrain() throws Exception {
+        final RingBufferPersistence persistence = new RingBufferPersistence(2, OverflowPolicy.BLOCK);
+        addReadings(persistence, 2);
+
+        final CountDownLatch added = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            persistence.addReading(new Reading("T", "2", 2));
+            added.countDown();
+        });
+        producer.start();
+
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+        assertEquals("0", persistence.poll().getValues().get(0));
+        assertTrue(added.await(1, TimeUnit.SECONDS));
+
+        assertEquals(0, persistence.getDroppedReadings());
+        assertEquals(Arrays.asList("1", "2"), valuesOf(persistence.getAll()));
+    }
+
+    @Test
+    public void rolledBackLeaseIsReturnedFirst() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(10, OverflowPolicy.DROP_OLDEST);
+        addReadings(persistence, 5);
+
+        final Lease<Reading> lease = persistence.leaseReadings(3);
+        persistence.addReading(new Reading("T", "5", 5));
+        lease.rollback();
+
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5"), valuesOf(persistence.getAll()));
+    }
+
+    @Test
+    public void concurrentProducersAreCounted() throws Exception {
+        final RingBufferPersistence persistence = new RingBufferPersistence(1000, OverflowPolicy.DROP_OLDEST);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Reading> drained = new ArrayList<>();
+
+        for (int thread = 0; thread < 8; thread++) {
+            executor.execute(() -> addReadings(persistence, 10_000));
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+            persistence.drainTo(drained, 100);
+        }
+        persistence.drainTo(drained, Integer.MAX_VALUE);
+
+        assertEquals(80_000, drained.size() + persistence.getDroppedReadings());
+    }
+
+    @Test
+    public void alarmsAreRejectedInsteadOfDropped() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(2, OverflowPolicy.DROP_OLDEST);
+        persistence.addAlarm(new Alarm("A", true, 1L));
+        persistence.addAlarm(new Alarm("A", false, 2L));
+
+        try {
+            persistence.addAlarm(new Alarm("A", true, 3L));
+            fail("Alarm buffer is full.");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(0, persistence.getDroppedAlarms());
+        assertEquals(2, persistence.getAlarmCount());
+    }
+
+    @Test
+    public void leasedAlarmsKeepTheirRoom() {
+        final RingBufferPersistence persistence = new RingBufferPersistence(3, OverflowPolicy.DROP_OLDEST);
+        persistence.addAlarm(new Alarm("A", true, 1L));
+        persistence.addAlarm(new Alarm("A", false, 2L));
+
+        final Lease<Alarm> lease = persistence.leaseAlarms(1);
+        persistence.addAlarm(new Alarm("A", true, 3L));
+        try {
+            persistence.addAlarm(new Alarm("A", false, 4L));
+            fail("Room of the leased alarm is reserved.");
+        } catch (IllegalStateException expected) {
+        }
+        lease.rollback();
+
+        assertEquals(0, persistence.getDroppedAlarms());
+        final List<Alarm> alarms = persistence.getAllAlarms();
+        assertEquals(3, alarms.size());
+        assertEquals(1, alarms.get(0).getUtc());
+
+        for (long utc = 5; utc < 8; utc++) {
+            persistence.addAlarm(new Alarm("A", true, utc));
+        }
+        persistence.leaseAlarms(1).commit();
+        persistence.addAlarm(new Alarm("A", true, 8L));
+        assertEquals(3, persistence.getAlarmCount());
+    }
+
+    private static void addReadings(RingBufferPersistence persistence, int count) {
+        for (int i = 0; i < count; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i));
+        }
+    }
+
+    private static List<String> valuesOf(List<Reading> readings) {
+        final List<String> values = new ArrayList<>();
+        for (Reading reading : readings) {
+            values.add(reading.getValues().get(0));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.persistence;
+
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TtlPersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(100_000);
+
+    @Test
+    public void expiredReadingsAreSkippedOnDrain() {
+        final TtlPersistence persistence = new TtlPersistence(new InMemoryPersistence(), 10, TimeUnit.SECONDS, now::get);
+        persistence.addReading("T", 1L, 80_000);
+        persistence.addReading("T", 2L, 95_000);
+        persistence.addReading("T", 3L, 85_000);
+        persistence.addReading("T", 4L, 99_000);
+
+        final List<Reading> readings = new ArrayList<>();
+        assertEquals(2, persistence.drainTo(readings, 2));
+        assertEquals("2", readings.get(0).getValues().get(0));
+        assertEquals("4", readings.get(1).getValues().get(0));
+        assertEquals(2, persistence.getExpiredReadings());
+    }
+
+    @Test
+    public void referenceOverridesDefaultTtl() {
+        final TtlPersistence persistence = new TtlPersistence(new InMemoryPersistence(), 10, TimeUnit.SECONDS, now::get)
+                .ttl("H", 1, TimeUnit.HOURS)
+                .ttl("P", 1, TimeUnit.SECONDS);
+        persistence.addReading("T", 1L, 50_000);
+        persistence.addReading("H", 2L, 50_000);
+        persistence.addReading("P", 3L, 95_000);
+
+        final List<Reading> readings = persistence.getAll();
+        assertEquals(1, readings.size());
+        assertEquals("H", readings.get(0).getReference());
+    }
+
+    @Test
+    public void leaseIsFilledWithFreshReadings() {
+        final TtlPersistence persistence = new TtlPersistence(new InMemoryPersistence(), 10, TimeUnit.SECONDS, now::get);
+        for (int i = 0; i < 10; i++) {
+            persistence.addReading("T", (long) i, i % 2 == 0 ? 0 : 100_000);
+        }
+
+        final Lease<Reading> lease = persistence.leaseReadings(4);
+        assertEquals(4, lease.getItems().size());
+        assertEquals("1", lease.getItems().get(0).getValues().get(0));
+        lease.commit();
+
+        assertEquals(1, persistence.getAll().size());
+        assertEquals(5, persistence.getExpiredReadings());
+    }
+
+    @Test
+    public void freshReadingsAreNotRedeliveredWhenRolledBackReadingsExpire() {
+        final TtlPersistence persistence = new TtlPersistence(new InMemoryPersistence(), 10, TimeUnit.SECONDS, now::get);
+        persistence.addReading("T", 1L, 95_000);
+        persistence.addReading("T", 2L, 98_000);
+        persistence.leaseReadings(2).rollback();
+        persistence.addReading("T", 3L, 100_000);
+
+        now.set(106_000);
+        final Lease<Reading> lease = persistence.leaseReadings(10);
+        assertEquals(2, lease.getItems().size());
+        assertTrue(lease.isRedelivered(0));
+        assertFalse(lease.isRedelivered(1));
+    }
+
+    @Test
+    public void expiredLeasesOfDelegateAreCommittedRightAway() {
+        final InMemoryPersistence store = new InMemoryPersistence();
+        final TtlPersistence persistence = new TtlPersistence(store, 10, TimeUnit.SECONDS, now::get);
+        for (int i = 0; i < 1000; i++) {
+            persistence.addReading("T", (long) i, 0);
+        }
+        persistence.addReading("T", 1000L, 100_000);
+
+        final Lease<Reading> first = persistence.leaseReadings(4);
+        assertTrue(first.getItems().isEmpty());
+        assertEquals(256, persistence.getExpiredReadings());
+        first.commit();
+
+        Lease<Reading> lease;
+        do {
+            lease = persistence.leaseReadings(4);
+        } while (lease.getItems().isEmpty());
+        assertEquals(1000, persistence.getExpiredReadings());
+        assertEquals("1000", lease.getItems().get(0).getValues().get(0));
+    }
+
+    @Test
+    public void sweepRemovesExpiredReadingsOfNumericStores() {
+        final Persistence[] stores = {new ColumnarPersistence(), new CompressedPersistence(),
+                new RingBufferPersistence(100, OverflowPolicy.DROP_OLDEST),
+                new CoalescingPersistence(new InMemoryPersistence(), "S")};
+        for (Persistence store : stores) {
+            final TtlPersistence persistence = new TtlPersistence(store, 10, TimeUnit.SECONDS, now::get);
+            for (int i = 0; i < 50; i++) {
+                persistence.addReading("T", (long) i, i < 30 ? 0 : 100_000);
+            }
+            persistence.addReading("S", 1L, 0);
+
+            persistence.sweep();
+
+            assertEquals(31, persistence.getExpiredReadings());
+            assertEquals(20, store.getAll().size());
+        }
+    }
+
+    @Test
+    public void sweepRemovesExpiredReadingsInPlace() {
+        final InMemoryPersistence store = new InMemoryPersistence();
+        final TtlPersistence persistence = new TtlPersistence(store, 10, TimeUnit.SECONDS, now::get)
+                .ttl("H", 1, TimeUnit.HOURS);
+        for (int i = 0; i < 250; i++) {
+            persistence.addReading(i % 2 == 0 ? "T" : "H", (long) i, i < 220 ? 0 : 100_000);
+        }
+        store.leaseReadings(2).rollback();
+
+        persistence.sweep();
+
+        assertEquals(110, persistence.getExpiredReadings());
+        final List<Reading> remaining = store.getAll();
+        assertEquals(140, remaining.size());
+        for (int i = 0; i < remaining.size(); i++) {
+            final int value = Integer.parseInt(remaining.get(i).getValues().get(0));
+            assertEquals(i < 110 ? 2 * i + 1 : i + 110, value);
+        }
+    }
+
+    @Test
+    public void sweepLeavesLeasesOfFileStoreInPlace() {
+        final FilePersistence store = new FilePersistence(folder.getRoot().getPath(), 1024);
+        final TtlPersistence persistence = new TtlPersistence(store, 10, TimeUnit.SECONDS, now::get);
+        for (int i = 0; i < 10; i++) {
+            persistence.addReading(new Reading("T", Integer.toString(i), i < 5 ? 0 : 100_000));
+        }
+
+        final Lease<Reading> first = store.leaseReadings(2);
+        final Lease<Reading> second = store.leaseReadings(6);
+        persistence.sweep();
+        assertEquals(5, persistence.getExpiredReadings());
+        assertEquals("8", store.leaseReadings(1).getItems().get(0).getValues().get(0));
+        first.commit();
+        second.rollback();
+
+        final List<Reading> remaining = store.getAll();
+        assertEquals(5, remaining.size());
+        assertEquals("5", remaining.get(0).getValues().get(0));
+        assertEquals("9", remaining.get(4).getValues().get(0));
+        store.close();
+    }
+}
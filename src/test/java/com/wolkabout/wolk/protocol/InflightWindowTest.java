@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class InflightWindowTest {
+
+    @Test
+    public void blockingWindowWaitsForRelease() throws Exception {
+        final InflightWindow window = new InflightWindow(1);
+        window.acquire();
+        assertEquals(1.0, window.getOccupancy(), 0.0);
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            try {
+                window.acquire();
+                acquired.countDown();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        producer.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        window.release();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(1, window.getInflightCount());
+        assertEquals(0, window.getRejectedCount());
+    }
+
+    @Test
+    public void timedWindowRejectsAfterTimeout() throws Exception {
+        final InflightWindow window = new InflightWindow(1, Backpressure.timeout(20, TimeUnit.MILLISECONDS));
+        window.acquire();
+
+        try {
+            window.acquire();
+            fail("Window is full.");
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, e.getReasonCode());
+        }
+
+        assertEquals(1, window.getRejectedCount());
+        window.release();
+        window.acquire();
+    }
+
+    @Test
+    public void callbackRunsOnceWhenCapacityReturns() throws Exception {
+        final AtomicInteger callbacks = new AtomicInteger();
+        final InflightWindow window = new InflightWindow(2, Backpressure.onCapacity(callbacks::incrementAndGet));
+        window.acquire();
+        window.acquire();
+        window.release();
+        assertEquals("Window was not saturated.", 0, callbacks.get());
+        window.acquire();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                window.acquire();
+                fail("Window is full.");
+            } catch (MqttException e) {
+                assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, e.getReasonCode());
+            }
+        }
+
+        assertFalse(window.hasCapacity());
+        window.release();
+        window.release();
+        assertEquals(1, callbacks.get());
+        assertEquals(2, window.getRejectedCount());
+        assertEquals(0.0, window.getOccupancy(), 0.0);
+    }
+
+    @Test
+    public void publishOnCallbackThreadFailsInsteadOfWaiting() throws Exception {
+        final InflightWindow window = new InflightWindow(1);
+        final PipelinedMqttClient client = new PipelinedMqttClient("tcp://localhost:1883", "device_key",
+                new MemoryPersistence(), window);
+        window.acquire();
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final Thread callback = new Thread(() -> {
+            try {
+                client.publishAsync("topic", new byte[1], 1, false);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        }, "MQTT Call: device_key");
+        callback.start();
+        callback.join(1000);
+
+        assertFalse("Callback thread waits for the window.", callback.isAlive());
+        assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, ((MqttException) failure.get()).getReasonCode());
+        assertEquals(1, window.getRejectedCount());
+        window.release();
+        client.close();
+    }
+
+    @Test
+    public void failedPublishReleasesSlot() throws Exception {
+        final InflightWindow window = new InflightWindow(1);
+        final WindowedMqttClient client = new WindowedMqttClient("tcp://localhost:1883", "device_key",
+                new MemoryPersistence(), window);
+
+        try {
+            client.publish("topic", new byte[1], 0, false);
+            fail("Client is not connected.");
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, e.getReasonCode());
+        }
+
+        assertEquals(0, window.getInflightCount());
+        client.close();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelinedMqttClientTest {
+
+    @Test
+    public void rejectedPublishReleasesInflightSlot() throws Exception {
+        final PipelinedMqttClient client = new PipelinedMqttClient("tcp://localhost:1883", "device_key",
+                new MemoryPersistence(), 1);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.publishAsync("topic", new byte[1], 0, false);
+                fail("Client is not connected.");
+            } catch (MqttException e) {
+                assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, e.getReasonCode());
+            }
+        }
+
+        assertEquals(0, client.getInflightCount());
+        client.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxInflightMustBePositive() throws Exception {
+        new PipelinedMqttClient("tcp://localhost:1883", "device_key", new MemoryPersistence(), 0);
+    }
+}
@@ -0,0 +1,92 @@
+package com.wolkabout.wolk.protocol;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.*;
+
+public class TopicDispatcherTest {
+    @Mock
+    MqttClient clientMock;
+
+    @Mock
+    IMqttMessageListener firstListener;
+
+    @Mock
+    IMqttMessageListener secondListener;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Test
+    public void routesMessagesByDeviceKey() throws Exception {
+        when(clientMock.isConnected()).thenReturn(true);
+        TopicDispatcher dispatcher = new TopicDispatcher(clientMock);
+        dispatcher.subscribe("p2d/actuator_set/d/first/r/#", 3, "first", firstListener);
+        dispatcher.subscribe("p2d/actuator_set/d/second/r/#", 3, "second", secondListener);
+
+        ArgumentCaptor<IMqttMessageListener> route = ArgumentCaptor.forClass(IMqttMessageListener.class);
+        verify(clientMock).subscribe(eq("p2d/actuator_set/d/+/r/#"), anyInt(), route.capture());
+        verifyNoMoreInteractions(firstListener, secondListener);
+
+        MqttMessage message = new MqttMessage("{}".getBytes());
+        route.getValue().messageArrived("p2d/actuator_set/d/second/r/SW", message);
+        route.getValue().messageArrived("p2d/actuator_set/d/unknown/r/SW", message);
+        verify(secondListener).messageArrived("p2d/actuator_set/d/second/r/SW", message);
+        verifyNoMoreInteractions(firstListener, secondListener);
+
+        dispatcher.unsubscribe("second");
+        route.getValue().messageArrived("p2d/actuator_set/d/second/r/SW", message);
+        verifyNoMoreInteractions(secondListener);
+    }
+
+    @Test
+    public void subscribesSharedFiltersOnConnect() throws Exception {
+        TopicDispatcher dispatcher = new TopicDispatcher(clientMock);
+        dispatcher.subscribe("pong/first", 1, "first", firstListener);
+        dispatcher.subscribe("pong/second", 1, "second", secondListener);
+        verify(clientMock, never()).subscribe(anyString(), anyInt(), any(IMqttMessageListener.class));
+
+        dispatcher.resubscribe();
+        verify(clientMock).subscribe(eq("pong/+"), anyInt(), any(IMqttMessageListener.class));
+    }
+
+    @Test
+    public void routesKeysEqualToOtherLevels() throws Exception {
+        when(clientMock.isConnected()).thenReturn(true);
+        TopicDispatcher dispatcher = new TopicDispatcher(clientMock);
+        dispatcher.subscribe("p2d/actuator_set/d/d/r/#", 3, "d", firstListener);
+        dispatcher.subscribe("pong/pong", 1, "pong", secondListener);
+
+        ArgumentCaptor<IMqttMessageListener> route = ArgumentCaptor.forClass(IMqttMessageListener.class);
+        verify(clientMock).subscribe(eq("p2d/actuator_set/d/+/r/#"), anyInt(), route.capture());
+        verify(clientMock).subscribe(eq("pong/+"), anyInt(), route.capture());
+
+        MqttMessage message = new MqttMessage("{}".getBytes());
+        route.getAllValues().get(0).messageArrived("p2d/actuator_set/d/d/r/SW", message);
+        route.getAllValues().get(1).messageArrived("pong/pong", message);
+        verify(firstListener).messageArrived("p2d/actuator_set/d/d/r/SW", message);
+        verify(secondListener).messageArrived("pong/pong", message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFilterWithoutDeviceKey() throws Exception {
+        new TopicDispatcher(clientMock).subscribe("pong/other", 1, "first", firstListener);
+    }
+
+    @Test
+    public void level() {
+        assertEquals("d", TopicDispatcher.level("p2d/actuator_set/d/key", 2));
+        assertEquals("key", TopicDispatcher.level("p2d/actuator_set/d/key", 3));
+        assertNull(TopicDispatcher.level("pong", 1));
+    }
+}
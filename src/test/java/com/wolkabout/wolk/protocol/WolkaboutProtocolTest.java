@@ -1,24 +1,40 @@
 package com.wolkabout.wolk.protocol;
 
+import com.wolkabout.wolk.model.ActuatorCommand;
 import com.wolkabout.wolk.model.ActuatorStatus;
 import com.wolkabout.wolk.model.Alarm;
 import com.wolkabout.wolk.model.Configuration;
 import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.model.ReadingBatch;
+import com.wolkabout.wolk.protocol.PipelinedMqttClient;
 import com.wolkabout.wolk.protocol.WolkaboutProtocol;
 import com.wolkabout.wolk.protocol.handler.ActuatorHandler;
 import com.wolkabout.wolk.protocol.handler.ConfigurationHandler;
+import com.wolkabout.wolk.util.DeflateCompressor;
+import com.wolkabout.wolk.util.GroupedPayloadWriter;
+import com.wolkabout.wolk.util.JacksonPayloadCodec;
+import com.wolkabout.wolk.util.PayloadCodec;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class WolkaboutProtocolTest {
@@ -59,6 +75,16 @@ public class WolkaboutProtocolTest {
         verify(clientMock, atMostOnce()).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
     }
 
+    @Test
+    public void publishReadingBatch() throws MqttException {
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        when(clientMock.getClientId()).thenReturn("device_key");
+        ReadingBatch batch = new ReadingBatch(1000).put("T", 21.5).put("H", 40);
+        wolkaboutProtocol.publishReadingBatch(batch);
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device_key"),
+                eq("[{\"utc\":1000,\"T\":\"21.5\",\"H\":\"40\"}]".getBytes()), anyInt(), anyBoolean());
+    }
+
     @Test
     public void publishAlarm() throws MqttException {
         WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
@@ -94,4 +120,152 @@ public class WolkaboutProtocolTest {
         wolkaboutProtocol.publishActuatorStatus(actuatorStatus);
         verify(clientMock, atMostOnce()).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void publishReadingsSplitsLargeBatches() throws MqttException {
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setMaxReadingsPerMessage(100);
+        List<Reading> readings = new ArrayList<Reading>();
+        for (int i = 0; i < 250; i++) {
+            readings.add(new Reading("reference", "value", i));
+        }
+        wolkaboutProtocol.publishReadings(readings);
+        verify(clientMock, times(3)).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void pipelinedPublishDoesNotWaitForDelivery() throws Exception {
+        PipelinedMqttClient pipelinedClient = mock(PipelinedMqttClient.class);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        when(pipelinedClient.publishAsync(anyString(), any(byte[].class), anyInt(), anyBoolean()))
+                .thenReturn(first).thenReturn(second);
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(pipelinedClient, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setMaxReadingsPerMessage(1);
+
+        CompletableFuture<Void> delivery = wolkaboutProtocol.publishReadingsAsync(
+                Arrays.asList(new Reading("T", "1", 1), new Reading("T", "2", 2)));
+
+        assertTrue(wolkaboutProtocol.isPipelined());
+        verify(pipelinedClient, times(2)).publishAsync(anyString(), any(byte[].class), anyInt(), anyBoolean());
+        verify(pipelinedClient, never()).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
+        first.complete(null);
+        assertFalse(delivery.isDone());
+        second.complete(null);
+        assertTrue(delivery.isDone());
+        assertFalse(delivery.isCompletedExceptionally());
+    }
+
+    @Test
+    public void publishUsesQosOfMessageClass() throws MqttException {
+        when(clientMock.getClientId()).thenReturn("device");
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setQos(MessageClass.READINGS, 1);
+        wolkaboutProtocol.setQos(MessageClass.ALARMS, 2);
+        wolkaboutProtocol.publishReadings(Arrays.asList(new Reading("T", "1", 1)));
+        wolkaboutProtocol.publishAlarms(Arrays.asList(new Alarm("A", true, 1L)));
+        wolkaboutProtocol.publishActuatorStatus(new ActuatorStatus(ActuatorStatus.Status.READY, "value", "SW"));
+
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device"), any(byte[].class), eq(1), anyBoolean());
+        verify(clientMock).publish(eq("d2p/events/d/device"), any(byte[].class), eq(2), anyBoolean());
+        verify(clientMock).publish(eq("d2p/actuator_status/d/device/r/SW"), any(byte[].class), eq(0), anyBoolean());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setQosRejectsInvalidLevel() {
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setQos(MessageClass.READINGS, 3);
+    }
+
+    @Test
+    public void possibleDuplicatesAreTaggedInThePayload() throws Exception {
+        when(clientMock.getClientId()).thenReturn("device");
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        List<Reading> readings = new ArrayList<Reading>();
+        readings.add(new Reading("T", "21.5", 1000));
+        readings.add(new Reading("T", "22.5", 2000));
+        wolkaboutProtocol.publishReadingsAsync(readings, true);
+        wolkaboutProtocol.publishReadingsAsync(readings, false);
+
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(clientMock, times(2)).publish(eq("d2p/sensor_reading/d/device"), payload.capture(), anyInt(), anyBoolean());
+        List<?> duplicates = JacksonPayloadCodec.json().decode(payload.getAllValues().get(0), List.class);
+        assertEquals(2, duplicates.size());
+        for (Object group : duplicates) {
+            assertEquals(true, ((Map<?, ?>) group).get(GroupedPayloadWriter.DUPLICATE_FIELD));
+        }
+        List<?> groups = JacksonPayloadCodec.json().decode(payload.getAllValues().get(1), List.class);
+        assertFalse(((Map<?, ?>) groups.get(0)).containsKey(GroupedPayloadWriter.DUPLICATE_FIELD));
+    }
+
+    @Test
+    public void compressedPossibleDuplicatesKeepTheirTopic() throws Exception {
+        when(clientMock.getClientId()).thenReturn("device");
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setCompressor(new DeflateCompressor());
+        List<Reading> readings = new ArrayList<Reading>();
+        for (int i = 0; i < 100; i++) {
+            readings.add(new Reading("T", "21.5", i));
+        }
+        wolkaboutProtocol.publishReadingsAsync(readings, true);
+
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device/deflate"), any(byte[].class), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void binaryCodecRoundTrip() throws Exception {
+        // The mocked client stands in for a broker that routes messages between the device and a CBOR-aware receiver.
+        final PayloadCodec codec = JacksonPayloadCodec.cbor();
+        when(clientMock.getClientId()).thenReturn("device");
+        final Map<String, IMqttMessageListener> subscriptions = new HashMap<>();
+        doAnswer(invocation -> subscriptions.put(invocation.getArgument(0), invocation.getArgument(2)))
+                .when(clientMock).subscribe(anyString(), anyInt(), any(IMqttMessageListener.class));
+        when(actuatorHandlerMock.getActuatorStatus("SW"))
+                .thenReturn(new ActuatorStatus(ActuatorStatus.Status.READY, "true", "SW"));
+
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock, codec);
+        wolkaboutProtocol.subscribe();
+        List<Reading> readings = new ArrayList<Reading>();
+        readings.add(new Reading("T", "21.5", 1000));
+        readings.add(new Reading("H", "40", 1000));
+        wolkaboutProtocol.publishReadings(readings);
+
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device"), payload.capture(), anyInt(), anyBoolean());
+        List<?> groups = codec.decode(payload.getValue(), List.class);
+        assertEquals(1, groups.size());
+        assertEquals("21.5", ((Map<?, ?>) groups.get(0)).get("T"));
+        assertEquals("40", ((Map<?, ?>) groups.get(0)).get("H"));
+
+        Map<String, Object> actuation = new HashMap<>();
+        actuation.put("value", "true");
+        subscriptions.get("p2d/actuator_set/d/device/r/#")
+                .messageArrived("p2d/actuator_set/d/device/r/SW", new MqttMessage(codec.encode(actuation)));
+
+        ArgumentCaptor<ActuatorCommand> command = ArgumentCaptor.forClass(ActuatorCommand.class);
+        verify(actuatorHandlerMock).onActuationReceived(command.capture());
+        assertEquals("SW", command.getValue().getReference());
+        assertEquals("true", command.getValue().getValue());
+        verify(clientMock).publish(eq("d2p/actuator_status/d/device/r/SW"), payload.capture(), anyInt(), anyBoolean());
+        assertEquals("READY", codec.decode(payload.getValue(), Map.class).get("status"));
+    }
+
+    @Test
+    public void publishReadingsCompressesLargeBatches() throws Exception {
+        when(clientMock.getClientId()).thenReturn("device");
+        WolkaboutProtocol wolkaboutProtocol = new WolkaboutProtocol(clientMock, actuatorHandlerMock, configurationHandlerMock);
+        wolkaboutProtocol.setCompressor(new DeflateCompressor());
+        List<Reading> readings = new ArrayList<Reading>();
+        for (int i = 0; i < 100; i++) {
+            readings.add(new Reading("T", "21.5", i));
+        }
+        wolkaboutProtocol.publishReadings(readings);
+        wolkaboutProtocol.publishReadings(readings.subList(0, 1));
+
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device/deflate"), payload.capture(), anyInt(), anyBoolean());
+        List<?> groups = JacksonPayloadCodec.json().decode(DeflateCompressor.decompress(payload.getValue()), List.class);
+        assertEquals(100, groups.size());
+        verify(clientMock).publish(eq("d2p/sensor_reading/d/device"), any(byte[].class), anyInt(), anyBoolean());
+    }
+}
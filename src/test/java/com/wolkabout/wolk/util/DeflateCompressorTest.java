@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class DeflateCompressorTest {
+
+    @Test
+    public void payloadRoundTrips() {
+        final DeflateCompressor compressor = new DeflateCompressor(0, Deflater.BEST_SPEED);
+        for (int size : new int[]{100, 10_000, 1_000_000}) {
+            final byte[] payload = payload(size);
+
+            final byte[] compressed = compressor.compress(payload);
+
+            assertTrue(compressed.length < payload.length);
+            assertArrayEquals(payload, DeflateCompressor.decompress(compressed));
+        }
+    }
+
+    @Test
+    public void smallPayloadIsNotCompressed() {
+        final DeflateCompressor compressor = new DeflateCompressor();
+
+        assertNull(compressor.compress(payload(DeflateCompressor.DEFAULT_THRESHOLD - 1)));
+        assertNotNull(compressor.compress(payload(DeflateCompressor.DEFAULT_THRESHOLD)));
+    }
+
+    @Test
+    public void incompressiblePayloadIsNotCompressed() {
+        final byte[] payload = new byte[10_000];
+        new Random(1).nextBytes(payload);
+
+        assertNull(new DeflateCompressor(0, Deflater.BEST_COMPRESSION).compress(payload));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPayloadIsRejected() {
+        DeflateCompressor.decompress("[{\"utc\":1}]".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] payload(int size) {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("{\"utc\":").append(1_600_000_000_000L + i).append(",\"T\":\"2").append(i % 10).append(".5\"},");
+        }
+
+        return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wolkabout.wolk.model.Alarm;
+import com.wolkabout.wolk.model.Reading;
+import com.wolkabout.wolk.model.ReadingBatch;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GroupedPayloadWriterTest {
+
+    private final GroupedPayloadWriter writer = new GroupedPayloadWriter(new JsonFactory());
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void readingsAreGroupedByUtc() throws Exception {
+        final List<Reading> readings = Arrays.asList(
+                new Reading("T", 21.5, 2000),
+                new Reading("T", "20", 1000),
+                new Reading("ACL", Arrays.asList("0.4", "0.2", "0.0"), 1000),
+                new Reading("T", "99", 1000));
+
+        final List<Map<String, Object>> payload = parse(writer.writeReadings(readings));
+
+        assertEquals(2, payload.size());
+        assertEquals(1000, payload.get(0).get("utc"));
+        assertEquals("20", payload.get(0).get("T"));
+        assertEquals("0.4,0.2,0.0", payload.get(0).get("ACL"));
+        assertEquals(3, payload.get(0).size());
+        assertEquals(2000, payload.get(1).get("utc"));
+        assertEquals("21.5", payload.get(1).get("T"));
+    }
+
+    @Test
+    public void largeGroupsKeepFirstValuePerReference() throws Exception {
+        final List<Reading> readings = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 40; i++) {
+                readings.add(new Reading("S" + i, Integer.toString(round), 1000));
+            }
+        }
+
+        final List<Map<String, Object>> payload = parse(writer.writeReadings(readings));
+
+        assertEquals(1, payload.size());
+        assertEquals(41, payload.get(0).size());
+        assertEquals("0", payload.get(0).get("S39"));
+    }
+
+    @Test
+    public void buffersAreReused() throws Exception {
+        final List<Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            readings.add(new Reading("T", (long) i, i));
+        }
+        assertEquals(10_000, parse(writer.writeReadings(readings)).size());
+
+        final List<Map<String, Object>> payload = parse(writer.writeAlarms(Arrays.asList(new Alarm("HH", true, 5L))));
+        assertEquals(1, payload.size());
+        assertEquals("true", payload.get(0).get("HH"));
+    }
+
+    @Test
+    public void messagesAreCutAtByteLimit() throws Exception {
+        final List<Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            readings.add(new Reading(i % 2 == 0 ? "T" : "\u00e9\"\n", Arrays.asList(Integer.toString(i), "x"), i / 2));
+        }
+
+        final List<byte[]> messages = new ArrayList<>();
+        writer.writeReadings(readings, Integer.MAX_VALUE, 200, messages::add);
+
+        assertTrue(messages.size() > 1);
+        int values = 0;
+        long lastUtc = -1;
+        for (byte[] message : messages) {
+            assertTrue(message.length <= 200);
+            for (Map<String, Object> group : parse(message)) {
+                final long utc = ((Number) group.get("utc")).longValue();
+                assertTrue(utc >= lastUtc);
+                lastUtc = utc;
+                values += group.size() - 1;
+            }
+        }
+        assertEquals(1000, values);
+    }
+
+    @Test
+    public void messagesAreCutAtValueLimit() throws Exception {
+        final List<Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            readings.add(new Reading("S" + i, "1", 1000));
+            readings.add(new Reading("S" + i, "2", 1000));
+        }
+
+        final List<byte[]> messages = new ArrayList<>();
+        writer.writeReadings(readings, 10, Integer.MAX_VALUE, messages::add);
+
+        assertEquals(3, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final List<Map<String, Object>> payload = parse(messages.get(i));
+            assertEquals(1, payload.size());
+            assertEquals(i < 2 ? 11 : 6, payload.get(0).size());
+            assertFalse(payload.get(0).containsValue("2"));
+        }
+    }
+
+    @Test
+    public void duplicatesAtValueLimitDoNotWriteEmptyMessage() throws Exception {
+        final List<Reading> readings = Arrays.asList(new Reading("T", "1", 1000), new Reading("T", "2", 1000));
+
+        final List<byte[]> messages = new ArrayList<>();
+        writer.writeReadings(readings, 1, Integer.MAX_VALUE, messages::add);
+
+        assertEquals(1, messages.size());
+        assertEquals("1", parse(messages.get(0)).get(0).get("T"));
+    }
+
+    @Test
+    public void oversizedValueIsWrittenAlone() throws Exception {
+        final char[] value = new char[100];
+        Arrays.fill(value, 'x');
+        final List<Reading> readings = Arrays.asList(
+                new Reading("T", "1", 1000), new Reading("L", new String(value), 1000), new Reading("T", "2", 2000));
+
+        final List<byte[]> messages = new ArrayList<>();
+        writer.writeReadings(readings, Integer.MAX_VALUE, 50, messages::add);
+
+        assertEquals(3, messages.size());
+        assertEquals(new String(value), parse(messages.get(1)).get(0).get("L"));
+    }
+
+    @Test
+    public void readingBatchIsWrittenAsOneGroup() throws Exception {
+        final ReadingBatch batch = new ReadingBatch(1000)
+                .put("T", 21.5)
+                .put("H", 40)
+                .put("SW", "on")
+                .put("T", 99.0);
+
+        final List<Map<String, Object>> payload = parse(writer.writeReadingBatch(batch));
+
+        assertEquals(1, payload.size());
+        assertEquals(1000, payload.get(0).get("utc"));
+        assertEquals("21.5", payload.get(0).get("T"));
+        assertEquals("40", payload.get(0).get("H"));
+        assertEquals("on", payload.get(0).get("SW"));
+        assertEquals(4, payload.get(0).size());
+    }
+
+    @Test
+    public void readingBatchIsCutAtValueLimit() throws Exception {
+        final ReadingBatch batch = new ReadingBatch(1000);
+        for (int i = 0; i < 200; i++) {
+            batch.put("S" + i, (long) i);
+        }
+
+        final List<byte[]> messages = new ArrayList<>();
+        writer.writeReadingBatch(batch, 64, Integer.MAX_VALUE, messages::add);
+
+        assertEquals(4, messages.size());
+        int values = 0;
+        for (byte[] message : messages) {
+            final List<Map<String, Object>> payload = parse(message);
+            assertEquals(1, payload.size());
+            assertEquals(1000, payload.get(0).get("utc"));
+            values += payload.get(0).size() - 1;
+        }
+        assertEquals(200, values);
+        assertEquals("199", parse(messages.get(3)).get(0).get("S199"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> parse(byte[] payload) throws Exception {
+        return mapper.readValue(payload, List.class);
+    }
+}
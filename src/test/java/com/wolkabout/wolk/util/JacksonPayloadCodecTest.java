@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import com.wolkabout.wolk.model.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JacksonPayloadCodecTest {
+
+    @Test
+    public void jsonRoundTrip() {
+        roundTrip(JacksonPayloadCodec.json());
+    }
+
+    @Test
+    public void cborRoundTrip() {
+        roundTrip(JacksonPayloadCodec.cbor());
+    }
+
+    @Test
+    public void cborReadingsAreSmaller() {
+        final List<Reading> readings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            readings.add(new Reading(i % 2 == 0 ? "T" : "H", Double.toString(20 + i % 50 / 10.0), 1_500_000_000_000L + i / 2));
+        }
+
+        final int json = new GroupedPayloadWriter(JacksonPayloadCodec.json().getFactory()).writeReadings(readings).length;
+        final byte[] cbor = new GroupedPayloadWriter(JacksonPayloadCodec.cbor().getFactory()).writeReadings(readings);
+
+        assertTrue(cbor.length < json);
+        final List<?> groups = JacksonPayloadCodec.cbor().decode(cbor, List.class);
+        assertEquals(500, groups.size());
+        assertEquals("20.0", ((Map<?, ?>) groups.get(0)).get("T"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPayloadIsRejected() {
+        JacksonPayloadCodec.json().decode(new byte[]{'{'}, HashMap.class);
+    }
+
+    private void roundTrip(PayloadCodec codec) {
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put("command", "SET");
+        payload.put("value", "21.5");
+        payload.put("utc", 1_500_000_000_000L);
+
+        final Map<?, ?> decoded = codec.decode(codec.encode(payload), HashMap.class);
+
+        assertEquals(payload, decoded);
+    }
+}
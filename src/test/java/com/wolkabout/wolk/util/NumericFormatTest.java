@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018 WolkAbout Technology s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.wolkabout.wolk.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NumericFormatTest {
+
+    @Test
+    public void sensorValuesMatchDoubleToString() {
+        for (int i = -100_000; i <= 100_000; i++) {
+            final double value = i / 100.0;
+            assertEquals(Double.toString(value), NumericFormat.toString(value));
+        }
+
+        for (double value : new double[]{0.001, 0.1 + 0.2, 123456.789, 9999999.5, 1e7, 1e-4, 21.0, -0.0, 0.0,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE}) {
+            assertEquals(Double.toString(value), NumericFormat.toString(value));
+        }
+    }
+
+    @Test
+    public void randomValuesReadBack() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            final double value = i % 2 == 0
+                    ? (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 3)
+                    : Double.longBitsToDouble(random.nextLong());
+            final String formatted = NumericFormat.toString(value);
+
+            assertEquals(formatted, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(formatted)));
+            assertTrue(formatted, formatted.length() <= Double.toString(value).length());
+        }
+    }
+
+    @Test
+    public void appendsToBuilder() {
+        final StringBuilder builder = new StringBuilder("T=");
+        NumericFormat.append(builder, -0.05);
+        assertEquals("T=-0.05", builder.toString());
+    }
+}